@@ -0,0 +1,541 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A predicate over raw Ethernet frames, compiled from a small filter
+ * language, for choosing which frames are written to a dump file. For
+ * example:
+ * <pre>
+ *   ip.dst == 10.0.1.101 &amp;&amp; udp.port == 520
+ *   arp || (icmp &amp;&amp; !(ip.addr == 10.0.0.0/8))
+ * </pre>
+ * An expression combines comparisons and protocol names with
+ * <code>&amp;&amp;</code>, <code>||</code>, <code>!</code> and parentheses.
+ * A comparison is a field, one of <code>== != &lt; &lt;= &gt; &gt;=</code>,
+ * and a number, IP address (optionally with a prefix length) or MAC
+ * address. The fields <code>ip.addr</code>, <code>udp.port</code> and
+ * <code>tcp.port</code> match either the source or the destination. A
+ * comparison with a field the frame does not have is false, and a
+ * literal must fit in the field it is compared with.
+ * <p>
+ * The expression is compiled once into a tree of nodes that read fields at
+ * fixed offsets in the frame, so matching allocates nothing and does not
+ * decode the frame. Frames are assumed to be untagged.
+ */
+public class CaptureFilter
+{
+	private static final int ETHER_HEADER_LENGTH = 14;
+	private static final int TYPE_IPv4 = 0x0800;
+	private static final int TYPE_ARP = 0x0806;
+	private static final int PROTOCOL_ICMP = 1;
+	private static final int PROTOCOL_TCP = 6;
+	private static final int PROTOCOL_UDP = 17;
+	private static final int RIP_PORT = 520;
+
+	/** Where a field is found */
+	private enum Layer { ETHER, IP, TRANSPORT }
+
+	/** A field at a fixed offset in one of a frame's headers */
+	private static class Field
+	{
+		final Layer layer;
+
+		/** Offset of the field from the start of its header */
+		final int offset;
+
+		/** Width (in bytes) of the field */
+		final int width;
+
+		/** For transport fields, the IP protocol the header belongs to */
+		final int protocol;
+
+		Field(Layer layer, int offset, int width, int protocol)
+		{
+			this.layer = layer;
+			this.offset = offset;
+			this.width = width;
+			this.protocol = protocol;
+		}
+
+		/**
+		 * Read the field from a frame.
+		 * @return the field's value, or -1 if the frame does not have it
+		 */
+		long get(byte[] buf, int offset, int length)
+		{
+			int start;
+			switch (this.layer)
+			{
+			case ETHER:
+				start = offset;
+				break;
+			case IP:
+				if (!isIp(buf, offset, length))
+				{ return -1; }
+				start = offset + ETHER_HEADER_LENGTH;
+				break;
+			default:
+				start = transportStart(buf, offset, length, this.protocol);
+				if (start < 0)
+				{ return -1; }
+				break;
+			}
+			start += this.offset;
+			if (start + this.width > offset + length)
+			{ return -1; }
+
+			long value = 0;
+			for (int i = 0; i < this.width; i++)
+			{ value = (value << 8) | (buf[start + i] & 0xff); }
+			return value;
+		}
+	}
+
+	/** A node of a compiled expression */
+	private abstract static class Node
+	{
+		abstract boolean matches(byte[] buf, int offset, int length);
+	}
+
+	private static class And extends Node
+	{
+		final Node left, right;
+
+		And(Node left, Node right)
+		{
+			this.left = left;
+			this.right = right;
+		}
+
+		boolean matches(byte[] buf, int offset, int length)
+		{
+			return this.left.matches(buf, offset, length)
+					&& this.right.matches(buf, offset, length);
+		}
+	}
+
+	private static class Or extends Node
+	{
+		final Node left, right;
+
+		Or(Node left, Node right)
+		{
+			this.left = left;
+			this.right = right;
+		}
+
+		boolean matches(byte[] buf, int offset, int length)
+		{
+			return this.left.matches(buf, offset, length)
+					|| this.right.matches(buf, offset, length);
+		}
+	}
+
+	private static class Not extends Node
+	{
+		final Node node;
+
+		Not(Node node)
+		{ this.node = node; }
+
+		boolean matches(byte[] buf, int offset, int length)
+		{ return !this.node.matches(buf, offset, length); }
+	}
+
+	/** Compares a field, under a mask, with a constant */
+	private static class Compare extends Node
+	{
+		static final String[] OPS = { "==", "!=", "<", "<=", ">", ">=" };
+
+		final Field field;
+
+		/** Index of the operator in OPS */
+		final int op;
+		final long mask;
+		final long value;
+
+		Compare(Field field, String op, long mask, long value)
+		{
+			this.field = field;
+			this.op = Arrays.asList(OPS).indexOf(op);
+			this.mask = mask;
+			this.value = value & mask;
+		}
+
+		boolean matches(byte[] buf, int offset, int length)
+		{
+			long v = this.field.get(buf, offset, length);
+			if (v < 0)
+			{ return false; }
+			v &= this.mask;
+			switch (this.op)
+			{
+			case 0: return v == this.value;
+			case 1: return v != this.value;
+			case 2: return v < this.value;
+			case 3: return v <= this.value;
+			case 4: return v > this.value;
+			default: return v >= this.value;
+			}
+		}
+	}
+
+	private final String expression;
+	private final Node root;
+
+	private CaptureFilter(String expression, Node root)
+	{
+		this.expression = expression;
+		this.root = root;
+	}
+
+	/**
+	 * Compile a filter expression.
+	 * @param expression the expression
+	 * @return the compiled filter
+	 * @throws IllegalArgumentException if the expression is malformed
+	 */
+	public static CaptureFilter compile(String expression)
+	{
+		Parser parser = new Parser(expression);
+		Node root = parser.parseOr();
+		if (parser.pos < parser.tokens.size())
+		{ throw parser.error("unexpected " + parser.peek()); }
+		return new CaptureFilter(expression, root);
+	}
+
+	/**
+	 * Check whether a frame matches the filter.
+	 * @param buf buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @return true if the frame matches
+	 */
+	public boolean matches(byte[] buf, int offset, int length)
+	{ return this.root.matches(buf, offset, length); }
+
+	public String toString()
+	{ return this.expression; }
+
+	private static boolean isIp(byte[] buf, int offset, int length)
+	{
+		return length >= ETHER_HEADER_LENGTH + 20
+				&& TYPE_IPv4 == (((buf[offset + 12] & 0xff) << 8)
+						| (buf[offset + 13] & 0xff))
+				&& 0x40 == (buf[offset + ETHER_HEADER_LENGTH] & 0xf0);
+	}
+
+	/**
+	 * @return offset of a frame's transport header, or -1 if the frame is
+	 *         not an IP packet for the protocol or is a later fragment
+	 */
+	private static int transportStart(byte[] buf, int offset, int length,
+			int protocol)
+	{
+		if (!isIp(buf, offset, length))
+		{ return -1; }
+		int ip = offset + ETHER_HEADER_LENGTH;
+		if ((buf[ip + 9] & 0xff) != protocol)
+		{ return -1; }
+		if ((buf[ip + 6] & 0x1f) != 0 || buf[ip + 7] != 0)
+		{ return -1; }
+		return ip + (buf[ip] & 0x0f) * 4;
+	}
+
+	/** Recursive descent parser producing a tree of nodes */
+	private static class Parser
+	{
+		final String expression;
+		final List<String> tokens;
+		int pos;
+
+		Parser(String expression)
+		{
+			this.expression = expression;
+			this.tokens = tokenize(expression);
+			this.pos = 0;
+		}
+
+		IllegalArgumentException error(String message)
+		{
+			return new IllegalArgumentException("Bad filter \""
+					+ this.expression + "\": " + message);
+		}
+
+		String peek()
+		{
+			if (this.pos >= this.tokens.size())
+			{ return null; }
+			return this.tokens.get(this.pos);
+		}
+
+		String next()
+		{
+			String token = this.peek();
+			if (null == token)
+			{ throw this.error("unexpected end"); }
+			this.pos++;
+			return token;
+		}
+
+		Node parseOr()
+		{
+			Node node = this.parseAnd();
+			while ("||".equals(this.peek()))
+			{
+				this.pos++;
+				node = new Or(node, this.parseAnd());
+			}
+			return node;
+		}
+
+		Node parseAnd()
+		{
+			Node node = this.parseUnary();
+			while ("&&".equals(this.peek()))
+			{
+				this.pos++;
+				node = new And(node, this.parseUnary());
+			}
+			return node;
+		}
+
+		Node parseUnary()
+		{
+			String token = this.next();
+			if (token.equals("!"))
+			{ return new Not(this.parseUnary()); }
+			if (token.equals("("))
+			{
+				Node node = this.parseOr();
+				if (!")".equals(this.next()))
+				{ throw this.error("expected )"); }
+				return node;
+			}
+
+			String op = this.peek();
+			if (op != null && isComparison(op))
+			{
+				this.pos++;
+				return this.comparison(token, op, this.next());
+			}
+			return this.protocol(token);
+		}
+
+		Node protocol(String name)
+		{
+			switch (name)
+			{
+			case "ip":
+				return new Compare(new Field(Layer.ETHER, 12, 2, 0), "==",
+						0xffff, TYPE_IPv4);
+			case "arp":
+				return new Compare(new Field(Layer.ETHER, 12, 2, 0), "==",
+						0xffff, TYPE_ARP);
+			case "icmp":
+				return this.comparison("ip.proto", "==", "" + PROTOCOL_ICMP);
+			case "tcp":
+				return this.comparison("ip.proto", "==", "" + PROTOCOL_TCP);
+			case "udp":
+				return this.comparison("ip.proto", "==", "" + PROTOCOL_UDP);
+			case "rip":
+				return this.comparison("udp.port", "==", "" + RIP_PORT);
+			default:
+				throw this.error("unknown protocol " + name);
+			}
+		}
+
+		Node comparison(String name, String op, String literal)
+		{
+			switch (name)
+			{
+			case "ip.addr":
+				return this.either("ip.src", "ip.dst", op, literal);
+			case "udp.port":
+				return this.either("udp.srcport", "udp.dstport", op, literal);
+			case "tcp.port":
+				return this.either("tcp.srcport", "tcp.dstport", op, literal);
+			}
+
+			Field field = field(name);
+			if (null == field)
+			{ throw this.error("unknown field " + name); }
+
+			long fieldMask = (field.width >= 8) ? -1
+					: (1L << (8 * field.width)) - 1;
+			long mask = fieldMask;
+			long value;
+			if (literal.indexOf(':') >= 0)
+			{ value = this.parseMac(literal); }
+			else if (literal.indexOf('.') >= 0)
+			{
+				int slash = literal.indexOf('/');
+				int prefix = 32;
+				String address = literal;
+				if (slash >= 0)
+				{
+					prefix = this.parseNumber(literal.substring(slash + 1));
+					address = literal.substring(0, slash);
+					if (prefix < 0 || prefix > 32)
+					{ throw this.error("bad prefix length " + prefix); }
+				}
+				value = this.parseIp(address);
+				mask = (0xffffffffL << (32 - prefix)) & 0xffffffffL;
+				if (prefix < 32 && !op.equals("==") && !op.equals("!="))
+				{ throw this.error("prefixes only compare with == or !="); }
+			}
+			else
+			{ value = this.parseNumber(literal); }
+
+			// Masking a wider value would silently compare something else
+			if ((value & ~fieldMask) != 0)
+			{ throw this.error(literal + " does not fit in " + name); }
+			return new Compare(field, op, mask, value);
+		}
+
+		/**
+		 * A comparison of either of two fields; != is true only if neither
+		 * field equals the value, and, like any comparison, false if the
+		 * frame does not have the fields.
+		 */
+		Node either(String first, String second, String op, String literal)
+		{
+			if (op.equals("!="))
+			{
+				return new And(this.comparison(first, op, literal),
+						this.comparison(second, op, literal));
+			}
+			return new Or(this.comparison(first, op, literal),
+					this.comparison(second, op, literal));
+		}
+
+		static Field field(String name)
+		{
+			switch (name)
+			{
+			case "eth.dst": return new Field(Layer.ETHER, 0, 6, 0);
+			case "eth.src": return new Field(Layer.ETHER, 6, 6, 0);
+			case "eth.type": return new Field(Layer.ETHER, 12, 2, 0);
+			case "ip.tos": return new Field(Layer.IP, 1, 1, 0);
+			case "ip.len": return new Field(Layer.IP, 2, 2, 0);
+			case "ip.ttl": return new Field(Layer.IP, 8, 1, 0);
+			case "ip.proto": return new Field(Layer.IP, 9, 1, 0);
+			case "ip.src": return new Field(Layer.IP, 12, 4, 0);
+			case "ip.dst": return new Field(Layer.IP, 16, 4, 0);
+			case "udp.srcport":
+				return new Field(Layer.TRANSPORT, 0, 2, PROTOCOL_UDP);
+			case "udp.dstport":
+				return new Field(Layer.TRANSPORT, 2, 2, PROTOCOL_UDP);
+			case "tcp.srcport":
+				return new Field(Layer.TRANSPORT, 0, 2, PROTOCOL_TCP);
+			case "tcp.dstport":
+				return new Field(Layer.TRANSPORT, 2, 2, PROTOCOL_TCP);
+			case "tcp.flags":
+				return new Field(Layer.TRANSPORT, 13, 1, PROTOCOL_TCP);
+			case "icmp.type":
+				return new Field(Layer.TRANSPORT, 0, 1, PROTOCOL_ICMP);
+			case "icmp.code":
+				return new Field(Layer.TRANSPORT, 1, 1, PROTOCOL_ICMP);
+			default: return null;
+			}
+		}
+
+		int parseNumber(String literal)
+		{
+			try
+			{ return Integer.decode(literal); }
+			catch (NumberFormatException e)
+			{ throw this.error("bad number " + literal); }
+		}
+
+		long parseIp(String literal)
+		{
+			String[] octets = literal.split("\\.");
+			if (octets.length != 4)
+			{ throw this.error("bad IP address " + literal); }
+			long value = 0;
+			for (String octet : octets)
+			{
+				int b = this.parseNumber(octet);
+				if (b < 0 || b > 255)
+				{ throw this.error("bad IP address " + literal); }
+				value = (value << 8) | b;
+			}
+			return value;
+		}
+
+		long parseMac(String literal)
+		{
+			String[] octets = literal.split(":");
+			if (octets.length != 6)
+			{ throw this.error("bad MAC address " + literal); }
+			long value = 0;
+			for (String octet : octets)
+			{
+				int b;
+				try
+				{ b = Integer.parseInt(octet, 16); }
+				catch (NumberFormatException e)
+				{ throw this.error("bad MAC address " + literal); }
+				if (b < 0 || b > 255)
+				{ throw this.error("bad MAC address " + literal); }
+				value = (value << 8) | b;
+			}
+			return value;
+		}
+
+		static boolean isComparison(String token)
+		{ return Arrays.asList(Compare.OPS).contains(token); }
+
+		/**
+		 * Split an expression into operators, parentheses and words; a word
+		 * is a field or protocol name, a number or an address.
+		 */
+		List<String> tokenize(String expression)
+		{
+			List<String> tokens = new ArrayList<String>();
+			int i = 0;
+			while (i < expression.length())
+			{
+				char c = expression.charAt(i);
+				if (Character.isWhitespace(c))
+				{ i++; }
+				else if (c == '(' || c == ')')
+				{
+					tokens.add(String.valueOf(c));
+					i++;
+				}
+				else if (expression.startsWith("&&", i)
+						|| expression.startsWith("||", i)
+						|| expression.startsWith("==", i)
+						|| expression.startsWith("!=", i)
+						|| expression.startsWith("<=", i)
+						|| expression.startsWith(">=", i))
+				{
+					tokens.add(expression.substring(i, i + 2));
+					i += 2;
+				}
+				else if (c == '!' || c == '<' || c == '>')
+				{
+					tokens.add(String.valueOf(c));
+					i++;
+				}
+				else if (Character.isLetterOrDigit(c))
+				{
+					int start = i;
+					while (i < expression.length() && (Character.isLetterOrDigit(
+							expression.charAt(i)) || ".:/_".indexOf(
+							expression.charAt(i)) >= 0))
+					{ i++; }
+					tokens.add(expression.substring(start, i));
+				}
+				else
+				{ throw this.error("unexpected character " + c); }
+			}
+			return tokens;
+		}
+	}
+}
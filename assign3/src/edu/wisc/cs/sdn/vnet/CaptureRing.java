@@ -0,0 +1,212 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free ring of PCAP records, drained by a background thread
+ * that writes them to a dump file in large blocks. Any number of threads may
+ * add records; a record is dropped, and counted, if the ring is full. Each
+ * slot carries a sequence number saying whether it is free or holds a record,
+ * so adding a record only takes one compare-and-set on the tail.
+ */
+class CaptureRing implements Runnable
+{
+	/** Length (in bytes) of a PCAP record header */
+	static final int RECORD_HEADER_LENGTH = 16;
+
+	/** Size (in bytes) of the blocks written to the channel */
+	private static final int BATCH_SIZE = 1 << 20;
+
+	/** Time (in nanoseconds) the writer sleeps when the ring is empty; the
+	 *  writer polls so that adding a record never needs to wake it */
+	private static final long IDLE_NANOS = 1000 * 1000;
+
+	private final DumpFile file;
+
+	/** Record bytes, one slot after another */
+	private final byte[] data;
+
+	/** Sequence number for each slot: equal to a position when the slot is
+	 *  free for the record at that position, one more once it holds it */
+	private final AtomicLongArray sequence;
+
+	private final int slotSize;
+	private final int mask;
+
+	/** Position of the next record to add */
+	private final AtomicLong tail;
+
+	/** Position of the next record to write; used only by the writer */
+	private long head;
+
+	private final ByteBuffer batch;
+	private final LongAdder dropped;
+	private final Thread thread;
+
+	/** Whether the ring is being closed */
+	private volatile boolean closing;
+
+	/**
+	 * Create a ring, and start its writer thread.
+	 * @param file dump file to which records are written
+	 * @param slots number of records the ring can hold; a power of two
+	 * @param slotSize maximum size of a record, including its header;
+	 *        longer frames are truncated
+	 */
+	CaptureRing(DumpFile file, int slots, int slotSize)
+	{
+		this.file = file;
+		this.data = new byte[slots * slotSize];
+		this.sequence = new AtomicLongArray(slots);
+		for (int i = 0; i < slots; i++)
+		{ this.sequence.set(i, i); }
+		this.slotSize = slotSize;
+		this.mask = slots - 1;
+		this.tail = new AtomicLong();
+		this.head = 0;
+		this.batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+		this.dropped = new LongAdder();
+		this.thread = new Thread(this, "CaptureRing");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Add a record for a frame.
+	 * @param sec seconds part of the record's timestamp
+	 * @param frac fractional part of the record's timestamp
+	 * @param buf buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param capturedLength number of bytes of the frame to capture
+	 * @param length length of the frame
+	 * @return true if the record was added, false if the ring was full
+	 */
+	boolean offer(int sec, int frac, byte[] buf, int offset,
+			int capturedLength, int length)
+	{
+		// Claim the slot at the tail, unless it still holds a record
+		long pos = this.tail.get();
+		int index;
+		while (true)
+		{
+			index = (int)(pos & this.mask);
+			long diff = this.sequence.get(index) - pos;
+			if (0 == diff)
+			{
+				if (this.tail.compareAndSet(pos, pos + 1))
+				{ break; }
+				pos = this.tail.get();
+			}
+			else if (diff < 0)
+			{
+				this.dropped.increment();
+				return false;
+			}
+			else
+			{ pos = this.tail.get(); }
+		}
+
+		int base = index * this.slotSize;
+		capturedLength = Math.min(capturedLength,
+				this.slotSize - RECORD_HEADER_LENGTH);
+		putInt(this.data, base, sec);
+		putInt(this.data, base + 4, frac);
+		putInt(this.data, base + 8, capturedLength);
+		putInt(this.data, base + 12, length);
+		System.arraycopy(buf, offset, this.data, base + RECORD_HEADER_LENGTH,
+				capturedLength);
+
+		// Publish the record to the writer
+		this.sequence.set(index, pos + 1);
+		return true;
+	}
+
+	/**
+	 * @return number of records dropped because the ring was full
+	 */
+	long getDropped()
+	{ return this.dropped.sum(); }
+
+	/**
+	 * Write every record already added, then stop the writer thread.
+	 */
+	void close()
+	{
+		this.closing = true;
+		LockSupport.unpark(this.thread);
+		try
+		{ this.thread.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			int index = (int)(this.head & this.mask);
+			if (this.sequence.get(index) == this.head + 1)
+			{
+				int base = index * this.slotSize;
+				int sec = getInt(this.data, base);
+				int length = RECORD_HEADER_LENGTH + getInt(this.data, base + 8);
+
+				// Records already batched belong in the current file
+				boolean full = this.file.isFull(sec, length);
+				if (full || length > this.batch.remaining())
+				{ this.flush(); }
+				if (!full || this.file.openNext(sec))
+				{
+					this.file.addRecord(length);
+					this.batch.put(this.data, base, length);
+				}
+
+				// Free the slot for the record one lap later
+				this.sequence.set(index, this.head + this.mask + 1);
+				this.head++;
+				continue;
+			}
+
+			// Nothing else is ready, so write what we have
+			if (this.batch.position() > 0)
+			{ this.flush(); }
+			if (this.closing)
+			{ break; }
+			LockSupport.parkNanos(this, IDLE_NANOS);
+		}
+	}
+
+	private void flush()
+	{
+		this.batch.flip();
+		try
+		{
+			WritableByteChannel channel = this.file.getChannel();
+			while (this.batch.hasRemaining())
+			{ channel.write(this.batch); }
+		}
+		catch (IOException e)
+		{ e.printStackTrace(); }
+		this.batch.clear();
+	}
+
+	private static void putInt(byte[] data, int offset, int value)
+	{
+		data[offset] = (byte)(value >>> 24);
+		data[offset+1] = (byte)(value >>> 16);
+		data[offset+2] = (byte)(value >>> 8);
+		data[offset+3] = (byte)value;
+	}
+
+	private static int getInt(byte[] data, int offset)
+	{
+		return ((data[offset] & 0xff) << 24) | ((data[offset+1] & 0xff) << 16)
+				| ((data[offset+2] & 0xff) << 8) | (data[offset+3] & 0xff);
+	}
+}
@@ -1,9 +1,20 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
 
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
 
@@ -18,12 +29,22 @@ public abstract class Device
 	/** List of the device's interfaces; maps interface name's to interfaces */
 	protected Map<String,Iface> interfaces;
 	
+	/** The device's interfaces, by index */
+	private List<Iface> indexedInterfaces;
+	
 	/** PCAP dump file for logging all packets sent/received by the device;
 	 *  null if packets should not be logged */
 	private DumpFile logfile;
 	
-	/** Virtual Network Simulator communication manager for the device */
-	private VNSComm vnsComm;
+	/** Where packets sent by the device go; normally the Virtual Network
+	 *  Simulator communication manager for the device */
+	private PacketSink sink;
+	
+	/** Time taken to handle each received packet */
+	private LatencyHistogram handleLatency;
+	
+	/** Time taken to hand each packet sent to the sink */
+	private LatencyHistogram sendLatency;
 	
 	/**
 	 * Creates a device.
@@ -35,7 +56,10 @@ public abstract class Device
 		this.host = host;
 		this.logfile = logfile;
 		this.interfaces = new HashMap<String,Iface>();
-		this.vnsComm = null;
+		this.indexedInterfaces = new ArrayList<Iface>();
+		this.sink = null;
+		this.handleLatency = new LatencyHistogram();
+		this.sendLatency = new LatencyHistogram();
 	}
 	
 	/**
@@ -69,7 +93,14 @@ public abstract class Device
 	 * @param vnsComm Virtual Network System communication manager for the router
 	 */
 	public void setVNSComm(VNSComm vnsComm)
-	{ this.vnsComm = vnsComm; }
+	{ this.sink = vnsComm; }
+	
+	/**
+	 * @param sink where packets sent by the device go, in place of the
+	 *        Virtual Network System communication manager
+	 */
+	public void setPacketSink(PacketSink sink)
+	{ this.sink = sink; }
 	
 	/**
 	 * Close the PCAP dump file for the router, if logging is enabled.
@@ -85,12 +116,111 @@ public abstract class Device
 	 * @param ifaceName the name of the interface
 	 */
 	public Iface addInterface(String ifaceName)
+	{ return this.addInterface(new Iface(ifaceName)); }
+	
+	/**
+	 * Add an interface to the device, giving it the next index. An interface
+	 * with the same name takes the place, and index, of the old one.
+	 * @param iface the interface
+	 */
+	protected Iface addInterface(Iface iface)
 	{
-		Iface iface = new Iface(ifaceName);
-		this.interfaces.put(ifaceName, iface);
+		Iface old = this.interfaces.put(iface.getName(), iface);
+		if (old != null)
+		{
+			iface.setIndex(old.getIndex());
+			this.indexedInterfaces.set(old.getIndex(), iface);
+		}
+		else
+		{
+			iface.setIndex(this.indexedInterfaces.size());
+			this.indexedInterfaces.add(iface);
+		}
 		return iface;
 	}
 	
+	/**
+	 * Add interfaces described in a file, in place of the interfaces the VNS
+	 * server describes. Each line of the file names an interface and gives 
+	 * its IP address, subnet mask and MAC address, separated by whitespace.
+	 * @param filename the name of the file containing the interfaces
+	 * @return true if the interfaces were added successfully
+	 */
+	public boolean loadInterfaces(String filename)
+	{
+		// Open the file
+		BufferedReader reader;
+		try 
+		{
+			FileReader fileReader = new FileReader(filename);
+			reader = new BufferedReader(fileReader);
+		}
+		catch (FileNotFoundException e) 
+		{
+			Log.error(e.toString());
+			return false;
+		}
+		
+		String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
+		String macByte = "[a-fA-F0-9]{2}";
+		String macPattern = "("+macByte+":"+macByte+":"+macByte
+				+":"+macByte+":"+macByte+":"+macByte+")";
+		Pattern pattern = Pattern.compile(String.format(
+				"\\s*(\\S+)\\s+%s\\s+%s\\s+%s\\s*", ipPattern, ipPattern, 
+				macPattern));
+		
+		while (true)
+		{
+			// Read an interface from the file
+			String line = null;
+			try 
+			{ line = reader.readLine(); }
+			catch (IOException e) 
+			{
+				Log.error(e.toString());
+				try { reader.close(); } catch (IOException f) {};
+				return false;
+			}
+			
+			// Stop if we have reached the end of the file
+			if (null == line)
+			{ break; }
+			if (line.trim().isEmpty())
+			{ continue; }
+			
+			// Parse fields for the interface
+			Matcher matcher = pattern.matcher(line);
+			if (!matcher.matches())
+			{
+				Log.error("Invalid entry in interfaces file: " + line);
+				try { reader.close(); } catch (IOException f) {};
+				return false;
+			}
+			
+			int ip = IPv4.toIPv4Address(matcher.group(2));
+			int mask = IPv4.toIPv4Address(matcher.group(3));
+			MACAddress mac = null;
+			try
+			{ mac = MACAddress.valueOf(matcher.group(4)); }
+			catch(IllegalArgumentException iae)
+			{
+				Log.error("Error loading interfaces, cannot convert " 
+						+ matcher.group(4) + " to valid MAC");
+				try { reader.close(); } catch (IOException f) {};
+				return false;
+			}
+			
+			Iface iface = this.addInterface(matcher.group(1));
+			iface.setIpAddress(ip);
+			iface.setSubnetMask(mask);
+			iface.setMacAddress(mac);
+		}
+		
+		// Close the file
+		try { reader.close(); } catch (IOException f) {};
+		return true;
+	}
+	
 	/**
 	 * Gets an interface on the device by the interface's name.
 	 * @param ifaceName name of the desired interface
@@ -100,6 +230,20 @@ public abstract class Device
 	public Iface getInterface(String ifaceName)
 	{ return this.interfaces.get(ifaceName); }
 	
+	/**
+	 * Gets an interface on the device by the interface's index.
+	 * @param index index of the desired interface
+	 * @return requested interface
+	 */
+	public Iface getInterface(int index)
+	{ return this.indexedInterfaces.get(index); }
+	
+	/**
+	 * @return number of interfaces on the device
+	 */
+	public int getInterfaceCount()
+	{ return this.indexedInterfaces.size(); }
+	
 	/**
 	 * Send an Ethernet packet out a specific interface.
 	 * @param etherPacket an Ethernet packet with all fields, encapsulated
@@ -108,7 +252,98 @@ public abstract class Device
 	 * @return true if the packet was sent successfully, otherwise false
 	 */
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
-	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
+	{
+		byte[] frame = etherPacket.serialize();
+		return this.sendPacket(frame, 0, frame.length, iface);
+	}
+	
+	/**
+	 * Send an already serialized Ethernet frame out a specific interface.
+	 * @param frame buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendPacket(byte[] frame, int offset, int length, Iface iface)
+	{
+		long start = System.nanoTime();
+		boolean sent = this.sink.sendPacket(frame, offset, length, iface);
+		this.sendLatency.record(System.nanoTime() - start);
+		if (sent)
+		{ iface.getStats().sent(length); }
+		else
+		{ iface.getStats().dropped(IfaceStats.Drop.QUEUE_FULL); }
+		return sent;
+	}
+	
+	/**
+	 * Handle a received Ethernet frame: count it, let the device handle it 
+	 * raw if it can, and otherwise decode it and pass it to handlePacket.
+	 * The frame may be modified in place.
+	 * @param frame buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 */
+	public void receivePacket(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{
+		long start = System.nanoTime();
+		if (inIface != null)
+		{ inIface.getStats().received(length); }
+		if (!this.handleRawPacket(frame, offset, length, inIface))
+		{
+			Ethernet etherPacket = new Ethernet();
+			etherPacket.deserialize(frame, offset, length);
+			this.handlePacket(etherPacket, inIface);
+		}
+		this.handleLatency.record(System.nanoTime() - start);
+	}
+	
+	/**
+	 * @return time taken to handle each received packet
+	 */
+	public LatencyHistogram getHandleLatency()
+	{ return this.handleLatency; }
+	
+	/**
+	 * @return time taken to hand each sent packet to the VNS communication
+	 *         manager, or whatever else takes the device's packets
+	 */
+	public LatencyHistogram getSendLatency()
+	{ return this.sendLatency; }
+	
+	/**
+	 * @return the device's counters and latencies, one interface per line
+	 */
+	public String getMetrics()
+	{
+		StringBuilder result = new StringBuilder();
+		result.append("handlePacket: ").append(this.handleLatency).append("\n");
+		result.append("sendPacket: ").append(this.sendLatency).append("\n");
+		for (Iface iface : new TreeMap<String,Iface>(this.interfaces).values())
+		{
+			result.append(iface.getName()).append(": ")
+					.append(iface.getStats()).append("\n");
+		}
+		return result.toString();
+	}
+	
+	/**
+	 * Handle a received Ethernet frame without decoding it, if possible. 
+	 * The frame may be modified in place. Devices without a fast path leave
+	 * every frame to {@link #handlePacket(Ethernet, Iface)}.
+	 * @param frame buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was handled, false if it must be decoded and
+	 *         passed to handlePacket
+	 */
+	public boolean handleRawPacket(byte[] frame, int offset, int length,
+			Iface inIface)
+	{ return false; }
 	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
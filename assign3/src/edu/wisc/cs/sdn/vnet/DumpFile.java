@@ -4,12 +4,15 @@ import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 import net.floodlightcontroller.packet.Ethernet;
 
 public class DumpFile
 {
 	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
+	private static final int TCPDUMP_MAGIC_NANO = 0xa1b23c4d;
 	private static final short PCAP_VERSION_MAJOR = 2;
 	private static final short PCAP_VERSION_MINOR = 4;
 	private static final int THIS_ZONE = 0;
@@ -17,52 +20,206 @@ public class DumpFile
 	private static final int SNAP_LEN = 65535;
 	private static final int LINKTYPE_ETHERNET = 1;
 	
+	/** Length (in bytes) of the PCAP file header */
+	private static final int FILE_HEADER_LENGTH = 24;
+	
+	/** Number of records buffered when logging asynchronously */
+	private static final int RING_SLOTS = 4096;
+	
+	/** Maximum size of a record when logging asynchronously; frames longer
+	 *  than this, less the record header, are truncated */
+	private static final int RING_SLOT_SIZE = 2048;
+	
+	/**
+	 * How a dump file is written.
+	 */
+	public static class Options
+	{
+		private boolean async = false;
+		private int snapLen = SNAP_LEN;
+		private boolean nanosecond = false;
+		private long rotateBytes = 0;
+		private long rotateSeconds = 0;
+		private CaptureFilter filter = null;
+
+		/**
+		 * @param async whether to queue records for a background thread to
+		 *        write, instead of writing them inline; queued records are
+		 *        dropped if the thread falls behind
+		 */
+		public void setAsync(boolean async)
+		{ this.async = async; }
+
+		/**
+		 * @param snapLen maximum number of bytes captured from each frame;
+		 *        must be positive
+		 */
+		public void setSnapLen(int snapLen)
+		{
+			if (snapLen <= 0)
+			{
+				throw new IllegalArgumentException(
+						"Snapshot length must be positive: " + snapLen);
+			}
+			this.snapLen = snapLen;
+		}
+
+		/**
+		 * @param nanosecond whether to write nanosecond timestamps, instead
+		 *        of microsecond timestamps
+		 */
+		public void setNanosecond(boolean nanosecond)
+		{ this.nanosecond = nanosecond; }
+
+		/**
+		 * @param rotateBytes size (in bytes) after which to start a new
+		 *        file; 0 to never rotate by size
+		 */
+		public void setRotateBytes(long rotateBytes)
+		{ this.rotateBytes = rotateBytes; }
+
+		/**
+		 * @param rotateSeconds age (in seconds) after which to start a new
+		 *        file; 0 to never rotate by age
+		 */
+		public void setRotateSeconds(long rotateSeconds)
+		{ this.rotateSeconds = rotateSeconds; }
+
+		/**
+		 * @param filter frames to write; null to write every frame
+		 */
+		public void setFilter(CaptureFilter filter)
+		{ this.filter = filter; }
+	}
+	
+	/** Name of the first file; null for standard output */
+	private String filename;
+	
+	private Options options;
+	
 	private FileOutputStream fileStream;
 	DataOutputStream outStream;
 	
-	private DumpFile(FileOutputStream fileStream)
+	/** Channel for the current file, used to write records in batches */
+	private WritableByteChannel channel;
+	
+	/** Records waiting to be written; null if records are written inline */
+	private CaptureRing ring;
+	
+	/** Number of files opened so far, including the current one */
+	private int fileCount;
+	
+	/** Number of bytes written to the current file */
+	private long fileBytes;
+	
+	/** Timestamp (in seconds since the epoch) the current file was opened */
+	private long fileSeconds;
+	
+	/** Wall clock time (in nanoseconds since the epoch) at clockBase */
+	private long wallClockBase;
+	
+	/** System.nanoTime at wallClockBase; timestamps are measured from here
+	 *  so that each takes a single read of a high-resolution clock */
+	private long clockBase;
+	
+	private DumpFile(String filename, Options options)
+	{
+		this.filename = filename;
+		this.options = options;
+		this.fileCount = 0;
+		this.wallClockBase = System.currentTimeMillis() * 1000 * 1000;
+		this.clockBase = System.nanoTime();
+	}
+	
+	public static DumpFile open(String filename)
+	{ return open(filename, new Options()); }
+	
+	/**
+	 * Open a dump file and write the PCAP header.
+	 * @param filename name of the file; "-" for standard output
+	 * @param async whether to queue records for a background thread to
+	 *        write, instead of writing them inline
+	 * @return the dump file; null if it could not be opened
+	 */
+	public static DumpFile open(String filename, boolean async)
 	{
-		this.fileStream = fileStream;
-		outStream = new DataOutputStream(fileStream);
+		Options options = new Options();
+		options.setAsync(async);
+		return open(filename, options);
 	}
 	
-	private DumpFile()
+	/**
+	 * Open a dump file and write the PCAP header. When the file is rotated,
+	 * later files are named after the first with a counter appended:
+	 * filename.1, filename.2, and so on.
+	 * @param filename name of the file; "-" for standard output, which is
+	 *        never rotated
+	 * @param options how the file is written
+	 * @return the dump file; null if it could not be opened
+	 */
+	public static DumpFile open(String filename, Options options)
 	{
-		this.fileStream = null;
-		outStream = new DataOutputStream(System.out);
+		DumpFile dumpFile = new DumpFile(filename.equals("-") ? null
+				: filename, options);
+		if (!dumpFile.openNext(dumpFile.now() / 1000000000L))
+		{ return null; }
+
+		if (options.async)
+		{
+			int slotSize = Math.min(CaptureRing.RECORD_HEADER_LENGTH
+					+ options.snapLen, RING_SLOT_SIZE);
+			dumpFile.ring = new CaptureRing(dumpFile, RING_SLOTS, slotSize);
+		}
+		return dumpFile;
 	}
 	
-	public static DumpFile open(String filename)
+	/**
+	 * Open the next file, closing the current one if there is one, and
+	 * write the PCAP header. Called only by the thread writing records.
+	 * @param seconds current time (in seconds since the epoch)
+	 * @return true if the file was opened
+	 */
+	boolean openNext(long seconds)
 	{
-		DumpFile dumpFile = null;
-		if (filename.equals("-"))
-		{ dumpFile = new DumpFile(); }
+		this.closeFile();
+		if (null == this.filename)
+		{
+			this.fileStream = null;
+			this.outStream = new DataOutputStream(System.out);
+			this.channel = Channels.newChannel(System.out);
+		}
 		else
 		{
-			try 
-			{ dumpFile = new DumpFile(new FileOutputStream(filename)); } 
-			catch (FileNotFoundException e) 
+			String name = this.filename;
+			if (this.fileCount > 0)
+			{ name += "." + this.fileCount; }
+			try
+			{ this.fileStream = new FileOutputStream(name); }
+			catch (FileNotFoundException e)
 			{
-				System.err.println("Cannot open " + filename);
-				return null;
+				Log.error("Cannot open " + name);
+				return false;
 			}
+			this.outStream = new DataOutputStream(this.fileStream);
+			this.channel = this.fileStream.getChannel();
 		}
-		
-		if (!dumpFile.writeHeader())
-		{ return null; }
-		return dumpFile;
+		this.fileCount++;
+		this.fileBytes = FILE_HEADER_LENGTH;
+		this.fileSeconds = seconds;
+		return this.writeHeader();
 	}
 	
 	private boolean writeHeader()
-	{        
-		try 
+	{
+		try
 		{
-			this.outStream.writeInt(TCPDUMP_MAGIC);
+			this.outStream.writeInt(this.options.nanosecond
+					? TCPDUMP_MAGIC_NANO : TCPDUMP_MAGIC);
 			this.outStream.writeShort(PCAP_VERSION_MAJOR);
 			this.outStream.writeShort(PCAP_VERSION_MINOR);
 			this.outStream.writeInt(THIS_ZONE);
 			this.outStream.writeInt(SIG_FIGS);
-			this.outStream.writeInt(SNAP_LEN);
+			this.outStream.writeInt(this.options.snapLen);
 			this.outStream.writeInt(LINKTYPE_ETHERNET);
 	        this.outStream.flush();
 	        return true;
@@ -72,30 +229,111 @@ public class DumpFile
 			e.printStackTrace();
 			return false;
 		}
-
+	
 	}
 	
+	/**
+	 * @return current time (in nanoseconds since the epoch)
+	 */
+	private long now()
+	{ return this.wallClockBase + (System.nanoTime() - this.clockBase); }
+	
 	public void dump(Ethernet etherPacket)
 	{
 		byte[] buf = etherPacket.serialize();
-		
-		int sec = (int)(System.currentTimeMillis()/1000);
-		int usec = (int)((System.currentTimeMillis() % 1000)*1000);
+		this.dump(buf, 0, buf.length);
+	}
+	
+	public void dump(byte[] buf, int offset, int length)
+	{
+		if (this.options.filter != null
+				&& !this.options.filter.matches(buf, offset, length))
+		{ return; }
+
+		long now = this.now();
+		int sec = (int)(now / 1000000000L);
+		int frac = (int)(now % 1000000000L);
+		if (!this.options.nanosecond)
+		{ frac /= 1000; }
+		int capturedLength = Math.min(length, this.options.snapLen);
+		if (this.ring != null)
+		{
+			this.ring.offer(sec, frac, buf, offset, capturedLength, length);
+			return;
+		}
+
+		synchronized(this)
+		{ this.write(sec, frac, buf, offset, capturedLength, length); }
+	}
+	
+	private void write(int sec, int frac, byte[] buf, int offset,
+			int capturedLength, int length)
+	{
+		int recordLength = CaptureRing.RECORD_HEADER_LENGTH + capturedLength;
+		if (this.isFull(sec, recordLength) && !this.openNext(sec))
+		{ return; }
+		this.addRecord(recordLength);
 		try
 		{
 			this.outStream.writeInt(sec);
-			this.outStream.writeInt(usec);
-			this.outStream.writeInt(buf.length);
-			this.outStream.writeInt(buf.length);
-			this.outStream.write(buf);
+			this.outStream.writeInt(frac);
+			this.outStream.writeInt(capturedLength);
+			this.outStream.writeInt(length);
+			this.outStream.write(buf, offset, capturedLength);
 			this.outStream.flush();
 		}
 		catch (IOException e)
 		{ e.printStackTrace(); }
 	}
 	
-	public void close()
+	/**
+	 * Check whether a record belongs in a new file, because it would make
+	 * the current file too large or the current file is too old. Called 
+	 * only by the thread writing records.
+	 * @param sec timestamp (in seconds since the epoch) of the record
+	 * @param recordLength length of the record, including its header
+	 * @return true if the file should be rotated before writing the record
+	 */
+	boolean isFull(int sec, int recordLength)
+	{
+		if (null == this.filename || FILE_HEADER_LENGTH == this.fileBytes)
+		{ return false; }
+		if (this.options.rotateBytes > 0 
+				&& this.fileBytes + recordLength > this.options.rotateBytes)
+		{ return true; }
+		return (this.options.rotateSeconds > 0 
+				&& sec - this.fileSeconds >= this.options.rotateSeconds);
+	}
+	
+	/**
+	 * Record that a record was written to the current file. Called only by
+	 * the thread writing records.
+	 * @param recordLength length of the record, including its header
+	 */
+	void addRecord(int recordLength)
+	{ this.fileBytes += recordLength; }
+	
+	/**
+	 * @return channel for the current file; changes when the file rotates
+	 */
+	WritableByteChannel getChannel()
+	{ return this.channel; }
+	
+	/**
+	 * @return number of records dropped because the background writer fell
+	 *         behind; always 0 when records are written inline
+	 */
+	public long getDropped()
+	{
+		if (null == this.ring)
+		{ return 0; }
+		return this.ring.getDropped();
+	}
+	
+	private void closeFile()
 	{
+		if (null == this.outStream)
+		{ return; }
 		try
 		{
 			this.outStream.flush();
@@ -104,4 +342,18 @@ public class DumpFile
 		}
 		catch(IOException e) { }
 	}
+	
+	public void close()
+	{
+		if (this.ring != null)
+		{
+			this.ring.close();
+			if (this.ring.getDropped() > 0)
+			{
+				Log.error("Dropped " + this.ring.getDropped()
+						+ " records from dump file");
+			}
+		}
+		this.closeFile();
+	}
 }
@@ -13,17 +13,32 @@ public class Iface
 	private MACAddress macAddress;
 	private int ipAddress;
     private int subnetMask;
+	private IfaceStats stats;
+	
+	/** Position of the interface among its device's interfaces */
+	private int index;
 	
 	public Iface(String name)
 	{
 		this.name = name;
 		this.macAddress = null;
 		this.ipAddress = 0;
+		this.stats = new IfaceStats();
 	}
 	
 	public String getName()
 	{ return this.name; }
 	
+	/**
+	 * @return position of the interface among its device's interfaces, 
+	 *         counting from 0 in the order they were added
+	 */
+	public int getIndex()
+	{ return this.index; }
+	
+	void setIndex(int index)
+	{ this.index = index; }
+	
 	public void setMacAddress(MACAddress mac)
 	{ this.macAddress = mac; }
 	
@@ -41,6 +56,12 @@ public class Iface
 	
 	public int getSubnetMask()
 	{ return this.subnetMask; }
+	
+	/**
+	 * @return counts of packets received, sent and dropped on the interface
+	 */
+	public IfaceStats getStats()
+	{ return this.stats; }
 
 	public String toString()
 	{
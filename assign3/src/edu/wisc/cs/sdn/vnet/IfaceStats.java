@@ -0,0 +1,102 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for an interface: packets and bytes received and sent, and
+ * packets dropped, by reason. Counters are striped, so threads handling
+ * packets at the same time rarely contend on them, and counting allocates
+ * nothing once a counter has been striped.
+ */
+public class IfaceStats
+{
+	/** Reasons a packet is dropped */
+	public enum Drop
+	{
+		/** The IP header checksum was wrong */
+		CHECKSUM,
+		/** The TTL expired */
+		TTL,
+		/** There was no route to the destination */
+		NO_ROUTE,
+		/** The next hop's MAC address could not be resolved */
+		NO_ARP,
+		/** The packet could not be queued, for sending or for ARP */
+		QUEUE_FULL
+	}
+
+	private final LongAdder rxPackets;
+	private final LongAdder rxBytes;
+	private final LongAdder txPackets;
+	private final LongAdder txBytes;
+
+	/** Packets dropped, indexed by reason */
+	private final LongAdder[] drops;
+
+	public IfaceStats()
+	{
+		this.rxPackets = new LongAdder();
+		this.rxBytes = new LongAdder();
+		this.txPackets = new LongAdder();
+		this.txBytes = new LongAdder();
+		this.drops = new LongAdder[Drop.values().length];
+		for (int i = 0; i < this.drops.length; i++)
+		{ this.drops[i] = new LongAdder(); }
+	}
+
+	/**
+	 * Count a packet received on the interface.
+	 * @param length length (in bytes) of the frame
+	 */
+	public void received(int length)
+	{
+		this.rxPackets.increment();
+		this.rxBytes.add(length);
+	}
+
+	/**
+	 * Count a packet sent out the interface.
+	 * @param length length (in bytes) of the frame
+	 */
+	public void sent(int length)
+	{
+		this.txPackets.increment();
+		this.txBytes.add(length);
+	}
+
+	/**
+	 * Count a packet dropped by the interface's device.
+	 * @param reason why the packet was dropped
+	 */
+	public void dropped(Drop reason)
+	{ this.drops[reason.ordinal()].increment(); }
+
+	public long getRxPackets()
+	{ return this.rxPackets.sum(); }
+
+	public long getRxBytes()
+	{ return this.rxBytes.sum(); }
+
+	public long getTxPackets()
+	{ return this.txPackets.sum(); }
+
+	public long getTxBytes()
+	{ return this.txBytes.sum(); }
+
+	public long getDrops(Drop reason)
+	{ return this.drops[reason.ordinal()].sum(); }
+
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder(String.format(
+				"rx %d (%d bytes), tx %d (%d bytes), drops",
+				this.getRxPackets(), this.getRxBytes(), this.getTxPackets(),
+				this.getTxBytes()));
+		for (Drop reason : Drop.values())
+		{
+			result.append(' ').append(reason.name().toLowerCase())
+					.append('=').append(this.getDrops(reason));
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,130 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies, in nanoseconds. Buckets are log-linear: each
+ * power of two is split into 16 equal buckets, so any recorded value is
+ * known to within about 6%, with fixed memory for values up to about 18
+ * minutes. Recording is a few atomic increments and allocates nothing.
+ */
+public class LatencyHistogram
+{
+	/** Each power of two is split into 2^SUB_BITS buckets */
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	/** Values of 2^MAX_BITS nanoseconds or more share the last bucket */
+	private static final int MAX_BITS = 40;
+
+	private final AtomicLongArray counts;
+	private final LongAdder count;
+	private final LongAdder sum;
+	private final AtomicLong max;
+
+	public LatencyHistogram()
+	{
+		this.counts = new AtomicLongArray(
+				(MAX_BITS - SUB_BITS + 1) * SUB_COUNT);
+		this.count = new LongAdder();
+		this.sum = new LongAdder();
+		this.max = new AtomicLong();
+	}
+
+	/**
+	 * Record a latency.
+	 * @param nanos the latency, in nanoseconds
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0)
+		{ nanos = 0; }
+		this.counts.incrementAndGet(index(nanos));
+		this.count.increment();
+		this.sum.add(nanos);
+		long current = this.max.get();
+		while (nanos > current && !this.max.compareAndSet(current, nanos))
+		{ current = this.max.get(); }
+	}
+
+	private static int index(long value)
+	{
+		if (value < SUB_COUNT)
+		{ return (int)value; }
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent >= MAX_BITS)
+		{ return (MAX_BITS - SUB_BITS + 1) * SUB_COUNT - 1; }
+		int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	/**
+	 * @return the smallest value that falls in a bucket
+	 */
+	private static long lowestValue(int index)
+	{
+		if (index < SUB_COUNT)
+		{ return index; }
+		int exponent = index / SUB_COUNT + SUB_BITS - 1;
+		long sub = index % SUB_COUNT;
+		return (SUB_COUNT + sub) << (exponent - SUB_BITS);
+	}
+
+	/**
+	 * @return number of latencies recorded
+	 */
+	public long getCount()
+	{ return this.count.sum(); }
+
+	/**
+	 * @return mean latency (in nanoseconds); 0 if none were recorded
+	 */
+	public long getMean()
+	{
+		long count = this.count.sum();
+		return (0 == count) ? 0 : this.sum.sum() / count;
+	}
+
+	/**
+	 * @return largest latency (in nanoseconds) recorded
+	 */
+	public long getMax()
+	{ return this.max.get(); }
+
+	/**
+	 * @param percentile the percentile, between 0 and 100
+	 * @return latency (in nanoseconds) at or below which the given
+	 *         percentage of latencies fall, rounded up to the end of its
+	 *         bucket; 0 if none were recorded
+	 */
+	public long getPercentile(double percentile)
+	{
+		long total = 0;
+		for (int i = 0; i < this.counts.length(); i++)
+		{ total += this.counts.get(i); }
+		if (0 == total)
+		{ return 0; }
+
+		long rank = Math.max(1, (long)Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < this.counts.length(); i++)
+		{
+			seen += this.counts.get(i);
+			if (seen >= rank)
+			{ return Math.min(lowestValue(i + 1) - 1, this.getMax()); }
+		}
+		return this.getMax();
+	}
+
+	public String toString()
+	{
+		return String.format("count %d, mean %.1f us, p50 %.1f us, "
+				+ "p90 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us",
+				this.getCount(), this.getMean() / 1e3,
+				this.getPercentile(50) / 1e3, this.getPercentile(90) / 1e3,
+				this.getPercentile(99) / 1e3, this.getPercentile(99.9) / 1e3,
+				this.getMax() / 1e3);
+	}
+}
@@ -0,0 +1,298 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled logging for devices. Messages below the current level cost one
+ * comparison. Enabled messages are added to a bounded, lock-free ring, and
+ * a background thread formats them and prints them in batches: debug and
+ * info messages to standard output, warnings and errors to standard error.
+ * A message is dropped, and counted, if the ring is full, so logging never
+ * blocks a thread handling packets.
+ * <p>
+ * A message is a format string and up to three arguments, formatted on
+ * the background thread. Strings, boxed primitives and enums are passed as
+ * they are; any other argument, such as a packet or a table entry, may
+ * change after the call, so it is converted to a string by the calling
+ * thread, and can only be formatted with {@code %s}. Check
+ * {@link #isEnabled(Level)} first if building a message is expensive. A
+ * message that fails to format is printed as an error instead.
+ */
+public final class Log
+{
+	/** Levels of messages, from most to least verbose */
+	public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+	/** Number of messages the ring can hold; a power of two */
+	private static final int SLOTS = 8192;
+
+	/** Time (in nanoseconds) the printer sleeps when the ring is empty */
+	private static final long IDLE_NANOS = 1000 * 1000;
+
+	/** Ordinal of the least severe level printed */
+	private static volatile int threshold = Level.INFO.ordinal();
+
+	private static final Level[] levels = new Level[SLOTS];
+	private static final String[] formats = new String[SLOTS];
+
+	/** Arguments, three per slot; null where a message has fewer */
+	private static final Object[] args = new Object[SLOTS * 3];
+
+	/** Number of arguments of each message */
+	private static final int[] argCounts = new int[SLOTS];
+
+	/** Sequence number for each slot, as in {@link CaptureRing} */
+	private static final AtomicLongArray sequence = new AtomicLongArray(SLOTS);
+
+	/** Position of the next message to add */
+	private static final AtomicLong tail = new AtomicLong();
+
+	/** Position of the next message to print; used only by the printer */
+	private static long head;
+
+	private static final LongAdder dropped = new LongAdder();
+	private static final Thread thread;
+	private static volatile boolean closing;
+
+	static
+	{
+		for (int i = 0; i < SLOTS; i++)
+		{ sequence.set(i, i); }
+		thread = new Thread(new Runnable() {
+			public void run()
+			{ print(); }
+		}, "Log");
+		thread.setDaemon(true);
+		thread.start();
+
+		// Print whatever is left when the program exits
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run()
+			{ close(); }
+		});
+	}
+
+	private Log()
+	{ }
+
+	/**
+	 * @param level the least severe level of messages to print
+	 */
+	public static void setLevel(Level level)
+	{ threshold = level.ordinal(); }
+
+	public static Level getLevel()
+	{ return Level.values()[threshold]; }
+
+	/**
+	 * @return true if messages of the given level are printed
+	 */
+	public static boolean isEnabled(Level level)
+	{ return level.ordinal() >= threshold; }
+
+	public static void debug(String message)
+	{ log(Level.DEBUG, message, 0, null, null, null); }
+
+	public static void debug(String format, Object a)
+	{ log(Level.DEBUG, format, 1, a, null, null); }
+
+	public static void debug(String format, Object a, Object b)
+	{ log(Level.DEBUG, format, 2, a, b, null); }
+
+	public static void debug(String format, Object a, Object b, Object c)
+	{ log(Level.DEBUG, format, 3, a, b, c); }
+
+	public static void info(String message)
+	{ log(Level.INFO, message, 0, null, null, null); }
+
+	public static void info(String format, Object a)
+	{ log(Level.INFO, format, 1, a, null, null); }
+
+	public static void info(String format, Object a, Object b)
+	{ log(Level.INFO, format, 2, a, b, null); }
+
+	public static void info(String format, Object a, Object b, Object c)
+	{ log(Level.INFO, format, 3, a, b, c); }
+
+	public static void warn(String message)
+	{ log(Level.WARN, message, 0, null, null, null); }
+
+	public static void warn(String format, Object a)
+	{ log(Level.WARN, format, 1, a, null, null); }
+
+	public static void warn(String format, Object a, Object b)
+	{ log(Level.WARN, format, 2, a, b, null); }
+
+	public static void error(String message)
+	{ log(Level.ERROR, message, 0, null, null, null); }
+
+	public static void error(String format, Object a)
+	{ log(Level.ERROR, format, 1, a, null, null); }
+
+	public static void error(String format, Object a, Object b)
+	{ log(Level.ERROR, format, 2, a, b, null); }
+
+	/**
+	 * @return number of messages dropped because the ring was full
+	 */
+	public static long getDropped()
+	{ return dropped.sum(); }
+
+	/**
+	 * Add a message to the ring, if its level is printed.
+	 * @param count number of arguments; 0 to print the format verbatim
+	 */
+	private static void log(Level level, String format, int count, Object a,
+			Object b, Object c)
+	{
+		if (level.ordinal() < threshold)
+		{ return; }
+
+		// Claim the slot at the tail, unless it still holds a message
+		long pos = tail.get();
+		int index;
+		while (true)
+		{
+			index = (int)(pos & (SLOTS - 1));
+			long diff = sequence.get(index) - pos;
+			if (0 == diff)
+			{
+				if (tail.compareAndSet(pos, pos + 1))
+				{ break; }
+				pos = tail.get();
+			}
+			else if (diff < 0)
+			{
+				dropped.increment();
+				return;
+			}
+			else
+			{ pos = tail.get(); }
+		}
+
+		levels[index] = level;
+		formats[index] = format;
+		argCounts[index] = count;
+		args[index * 3] = snapshot(a);
+		args[index * 3 + 1] = snapshot(b);
+		args[index * 3 + 2] = snapshot(c);
+
+		// Publish the message to the printer
+		sequence.set(index, pos + 1);
+	}
+
+	/**
+	 * @return the argument if it cannot change, otherwise its current value
+	 *         as a string
+	 */
+	private static Object snapshot(Object arg)
+	{
+		if (null == arg || arg instanceof String || arg instanceof Integer
+				|| arg instanceof Long || arg instanceof Short 
+				|| arg instanceof Byte || arg instanceof Double 
+				|| arg instanceof Float || arg instanceof Character 
+				|| arg instanceof Boolean || arg instanceof Enum)
+		{ return arg; }
+		try
+		{ return String.valueOf(arg); }
+		catch (RuntimeException e)
+		{ return "<" + arg.getClass().getName() + ": " + e + ">"; }
+	}
+
+	private static void print()
+	{
+		StringBuilder out = new StringBuilder();
+		StringBuilder err = new StringBuilder();
+		long reported = 0;
+		while (true)
+		{
+			int index = (int)(head & (SLOTS - 1));
+			if (sequence.get(index) == head + 1)
+			{
+				// A bad message must not stop the printer, which would leave
+				// every later message to be dropped
+				try
+				{
+					String message = format(index);
+					StringBuilder to = (levels[index].ordinal()
+							>= Level.WARN.ordinal()) ? err : out;
+					to.append(message).append('\n');
+				}
+				catch (RuntimeException e)
+				{
+					err.append("Log: failed to format \"")
+							.append(formats[index]).append("\": ")
+							.append(e).append('\n');
+				}
+
+				// Free the slot, and the arguments, for one lap later
+				formats[index] = null;
+				args[index * 3] = null;
+				args[index * 3 + 1] = null;
+				args[index * 3 + 2] = null;
+				sequence.set(index, head + SLOTS);
+				head++;
+				if (out.length() + err.length() < 64 * 1024)
+				{ continue; }
+			}
+
+			// Nothing else is ready, or the batch is large, so print it
+			if (dropped.sum() != reported)
+			{
+				err.append(String.format("Log: %d messages dropped\n",
+						dropped.sum() - reported));
+				reported = dropped.sum();
+			}
+			if (out.length() > 0)
+			{
+				System.out.print(out);
+				System.out.flush();
+				out.setLength(0);
+			}
+			if (err.length() > 0)
+			{
+				System.err.print(err);
+				err.setLength(0);
+			}
+			if (sequence.get((int)(head & (SLOTS - 1))) == head + 1)
+			{ continue; }
+			if (closing)
+			{ break; }
+			LockSupport.parkNanos(IDLE_NANOS);
+		}
+	}
+
+	private static String format(int index)
+	{
+		String format = formats[index];
+		switch (argCounts[index])
+		{
+		case 0:
+			return format;
+		case 1:
+			return String.format(format, args[index * 3]);
+		case 2:
+			return String.format(format, args[index * 3],
+					args[index * 3 + 1]);
+		default:
+			return String.format(format, args[index * 3],
+					args[index * 3 + 1], args[index * 3 + 2]);
+		}
+	}
+
+	/**
+	 * Print every message already added, then stop the printer thread.
+	 */
+	public static void close()
+	{
+		closing = true;
+		LockSupport.unpark(thread);
+		try
+		{ thread.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+}
@@ -0,0 +1,364 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Open-addressing hash table keyed by primitive longs, such as IP or MAC
+ * addresses. Each entry holds a long value, an object, and the time it was
+ * last updated; a table uses whichever of the value and object it needs.
+ * Nothing is allocated except when the table grows. Lookups are optimistic
+ * and lock-free unless they race with a writer; writers are serialized by
+ * a lock. Collisions are resolved by linear probing, and removals shift
+ * later entries back so no deleted markers are needed.
+ * @param <V> type of the objects in the table
+ */
+public class LongKeyTable<V>
+{
+	/** Key of an empty slot, so not a valid key; also the value of none */
+	public static final long NONE = -1;
+
+	/** Initial number of slots; must be a power of two */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** Slot arrays, replaced as a whole when the table grows */
+	private static class Slots
+	{
+		/** Key in each slot; NONE marks an empty slot */
+		final long[] keys;
+
+		/** Value for each slot */
+		final long[] values;
+
+		/** Object for each slot */
+		final Object[] objects;
+
+		/** Time (in milliseconds since the epoch) each slot was updated */
+		final long[] updated;
+
+		final int mask;
+
+		Slots(int capacity)
+		{
+			this.keys = new long[capacity];
+			Arrays.fill(this.keys, NONE);
+			this.values = new long[capacity];
+			this.objects = new Object[capacity];
+			this.updated = new long[capacity];
+			this.mask = capacity - 1;
+		}
+	}
+
+	/** Receives the entries of a table */
+	public interface Visitor<V>
+	{
+		void visit(long key, long value, V object, long updated);
+	}
+
+	private final StampedLock lock;
+
+	private volatile Slots slots;
+
+	/** Number of entries in the table; guarded by the write lock */
+	private int size;
+
+	public LongKeyTable()
+	{
+		this.lock = new StampedLock();
+		this.slots = new Slots(INITIAL_CAPACITY);
+		this.size = 0;
+	}
+
+	/**
+	 * Find the value for a key.
+	 * @param key the key; must not be NONE
+	 * @return the value for the key, NONE if absent
+	 */
+	public long get(long key)
+	{
+		long stamp = this.lock.tryOptimisticRead();
+		long value = getValue(this.slots, key);
+		if (this.lock.validate(stamp))
+		{ return value; }
+
+		stamp = this.lock.readLock();
+		try
+		{ return getValue(this.slots, key); }
+		finally
+		{ this.lock.unlockRead(stamp); }
+	}
+
+	/**
+	 * Find the object for a key.
+	 * @param key the key; must not be NONE
+	 * @return the object for the key, null if absent
+	 */
+	public V getObject(long key)
+	{
+		long stamp = this.lock.tryOptimisticRead();
+		V object = getObject(this.slots, key);
+		if (this.lock.validate(stamp))
+		{ return object; }
+
+		stamp = this.lock.readLock();
+		try
+		{ return getObject(this.slots, key); }
+		finally
+		{ this.lock.unlockRead(stamp); }
+	}
+
+	/**
+	 * Check, without locking, whether the entry for a key already holds a
+	 * value and object and was updated recently, so a put can be skipped.
+	 * @param key the key; must not be NONE
+	 * @param value the expected value
+	 * @param object the expected object, compared by identity
+	 * @param since time (in milliseconds since the epoch) at or after which
+	 *        the entry must have been updated
+	 * @return true if the entry is current
+	 */
+	public boolean isCurrent(long key, long value, V object, long since)
+	{
+		long stamp = this.lock.tryOptimisticRead();
+		Slots s = this.slots;
+		int i = index(s, key);
+		boolean current = s.keys[i] == key && s.values[i] == value
+				&& s.objects[i] == object && s.updated[i] >= since;
+		return current && this.lock.validate(stamp);
+	}
+
+	/**
+	 * Add or replace the entry for a key.
+	 * @param key the key; must not be NONE
+	 * @param value the value
+	 * @param object the object
+	 * @param time time (in milliseconds since the epoch) of the update
+	 * @return the previous value, NONE if there was no entry
+	 */
+	public long put(long key, long value, V object, long time)
+	{
+		long stamp = this.lock.writeLock();
+		try
+		{
+			Slots s = this.slots;
+			int i = index(s, key);
+			if (s.keys[i] == key)
+			{
+				long old = s.values[i];
+				s.values[i] = value;
+				s.objects[i] = object;
+				s.updated[i] = time;
+				return old;
+			}
+
+			if (2 * (this.size + 1) > s.keys.length)
+			{
+				s = this.grow();
+				i = index(s, key);
+			}
+			s.values[i] = value;
+			s.objects[i] = object;
+			s.updated[i] = time;
+			s.keys[i] = key;
+			this.size++;
+			return NONE;
+		}
+		finally
+		{ this.lock.unlockWrite(stamp); }
+	}
+
+	/**
+	 * Record that the entry for a key was confirmed.
+	 * @param key the key; must not be NONE
+	 * @param time time (in milliseconds since the epoch) of the update
+	 */
+	public void touch(long key, long time)
+	{
+		long stamp = this.lock.writeLock();
+		try
+		{
+			Slots s = this.slots;
+			int i = index(s, key);
+			if (s.keys[i] == key)
+			{ s.updated[i] = time; }
+		}
+		finally
+		{ this.lock.unlockWrite(stamp); }
+	}
+
+	/**
+	 * Remove every entry last updated before a given time whose value has
+	 * all of the given flags set.
+	 * @param time time (in milliseconds since the epoch) before which
+	 *        entries are stale
+	 * @param flags bits that must be set in the value of an entry for it
+	 *        to be removed; 0 to remove every stale entry
+	 * @return number of entries removed
+	 */
+	public int removeStale(long time, long flags)
+	{
+		long stamp = this.lock.writeLock();
+		try
+		{
+			Slots s = this.slots;
+			int removed = 0;
+			int i = 0;
+			while (i < s.keys.length)
+			{
+				// A removal may shift an unvisited entry into slot i
+				if (s.keys[i] != NONE && (s.values[i] & flags) == flags
+						&& s.updated[i] < time)
+				{
+					this.removeAt(s, i);
+					removed++;
+				}
+				else
+				{ i++; }
+			}
+			return removed;
+		}
+		finally
+		{ this.lock.unlockWrite(stamp); }
+	}
+
+	/**
+	 * Visit the entry for a key.
+	 * @param key the key; must not be NONE
+	 * @param visitor called with the entry, if there is one
+	 * @return true if the key is in the table
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean visit(long key, Visitor<V> visitor)
+	{
+		long stamp = this.lock.readLock();
+		try
+		{
+			Slots s = this.slots;
+			int i = index(s, key);
+			if (s.keys[i] != key)
+			{ return false; }
+			visitor.visit(key, s.values[i], (V)s.objects[i], s.updated[i]);
+			return true;
+		}
+		finally
+		{ this.lock.unlockRead(stamp); }
+	}
+
+	/**
+	 * Visit every entry in the table.
+	 * @param visitor called with each entry
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach(Visitor<V> visitor)
+	{
+		long stamp = this.lock.readLock();
+		try
+		{
+			Slots s = this.slots;
+			for (int i = 0; i < s.keys.length; i++)
+			{
+				if (s.keys[i] != NONE)
+				{
+					visitor.visit(s.keys[i], s.values[i], (V)s.objects[i],
+							s.updated[i]);
+				}
+			}
+		}
+		finally
+		{ this.lock.unlockRead(stamp); }
+	}
+
+	/**
+	 * @return number of entries in the table
+	 */
+	public int size()
+	{
+		long stamp = this.lock.readLock();
+		try
+		{ return this.size; }
+		finally
+		{ this.lock.unlockRead(stamp); }
+	}
+
+	private static long getValue(Slots s, long key)
+	{
+		int i = index(s, key);
+		return (s.keys[i] == key) ? s.values[i] : NONE;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> V getObject(Slots s, long key)
+	{
+		int i = index(s, key);
+		return (s.keys[i] == key) ? (V)s.objects[i] : null;
+	}
+
+	/**
+	 * @return the slot holding a key, or the empty slot that ends its probe
+	 *         sequence
+	 */
+	private static int index(Slots s, long key)
+	{
+		long[] keys = s.keys;
+		int i = hash(key) & s.mask;
+		while (keys[i] != key && keys[i] != NONE)
+		{ i = (i + 1) & s.mask; }
+		return i;
+	}
+
+	/**
+	 * Empty a slot, moving later entries in the same probe run back into the
+	 * hole when their home slot allows it.
+	 */
+	private void removeAt(Slots s, int hole)
+	{
+		int j = hole;
+		while (true)
+		{
+			j = (j + 1) & s.mask;
+			if (NONE == s.keys[j])
+			{ break; }
+			// The entry at j may fill the hole only if its home slot is not
+			// cyclically between the hole and j
+			int home = hash(s.keys[j]) & s.mask;
+			if (((j - home) & s.mask) >= ((j - hole) & s.mask))
+			{
+				s.keys[hole] = s.keys[j];
+				s.values[hole] = s.values[j];
+				s.objects[hole] = s.objects[j];
+				s.updated[hole] = s.updated[j];
+				hole = j;
+			}
+		}
+		s.keys[hole] = NONE;
+		s.values[hole] = 0;
+		s.objects[hole] = null;
+		s.updated[hole] = 0;
+		this.size--;
+	}
+
+	private Slots grow()
+	{
+		Slots old = this.slots;
+		Slots s = new Slots(old.keys.length * 2);
+		for (int i = 0; i < old.keys.length; i++)
+		{
+			if (old.keys[i] != NONE)
+			{
+				int j = index(s, old.keys[i]);
+				s.keys[j] = old.keys[i];
+				s.values[j] = old.values[i];
+				s.objects[j] = old.objects[i];
+				s.updated[j] = old.updated[i];
+			}
+		}
+		this.slots = s;
+		return s;
+	}
+
+	private static int hash(long key)
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
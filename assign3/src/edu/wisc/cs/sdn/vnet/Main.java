@@ -1,9 +1,20 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.wisc.cs.sdn.vnet.replay.CaptureSink;
+import edu.wisc.cs.sdn.vnet.replay.PcapReader;
+import edu.wisc.cs.sdn.vnet.replay.Replay;
 import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.sim.SimHost;
+import edu.wisc.cs.sdn.vnet.sim.Simulator;
+import edu.wisc.cs.sdn.vnet.sim.Topology;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+import edu.wisc.cs.sdn.vnet.vns.VNSServer;
 
 public class Main 
 {
@@ -17,7 +28,23 @@ public class Main
 		String routeTableFile = null;
 		String arpCacheFile = null;
 		String logfile = null;
+		DumpFile.Options logOptions = new DumpFile.Options();
 		short port = DEFAULT_PORT;
+		boolean fastPath = false;
+		int workers = 0;
+		String ifacesFile = null;
+		List<String> replayFiles = new ArrayList<String>();
+		boolean replayRealTime = false;
+		String replayOutput = null;
+		CaptureSink sink = null;
+		String topoFile = null;
+		String serveFile = null;
+		long linkLatency = 0;
+		double linkLoss = 0;
+		long linkBandwidth = 0;
+		int simPackets = 10000;
+		String metricsFile = null;
+		long metricsInterval = 10;
 		VNSComm vnsComm = null;
 		Device dev = null;
 		
@@ -38,13 +65,108 @@ public class Main
 			{ server = args[++i]; }
 			else if (arg.equals("-l"))
 			{ logfile = args[++i]; }
+			else if (arg.equals("-L"))
+			{
+				logfile = args[++i];
+				logOptions.setAsync(true);
+			}
+			else if (arg.equals("-S"))
+			{
+				try
+				{ logOptions.setSnapLen(Integer.parseInt(args[++i])); }
+				catch (IllegalArgumentException e)
+				{
+					System.err.println(e.getMessage());
+					usage();
+					return;
+				}
+			}
+			else if (arg.equals("-C"))
+			{
+				logOptions.setRotateBytes(
+						Long.parseLong(args[++i]) * 1000 * 1000);
+			}
+			else if (arg.equals("-G"))
+			{ logOptions.setRotateSeconds(Long.parseLong(args[++i])); }
+			else if (arg.equals("-N"))
+			{ logOptions.setNanosecond(true); }
+			else if (arg.equals("-f"))
+			{
+				try
+				{ logOptions.setFilter(CaptureFilter.compile(args[++i])); }
+				catch (IllegalArgumentException e)
+				{
+					System.err.println(e.getMessage());
+					return;
+				}
+			}
 			else if (arg.equals("-r"))
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-x"))
+			{ fastPath = true; }
+			else if (arg.equals("-w"))
+			{ workers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-i"))
+			{ ifacesFile = args[++i]; }
+			else if (arg.equals("-R"))
+			{ replayFiles.add(args[++i]); }
+			else if (arg.equals("-T"))
+			{ replayRealTime = true; }
+			else if (arg.equals("-O"))
+			{ replayOutput = args[++i]; }
+			else if (arg.equals("-t"))
+			{ topoFile = args[++i]; }
+			else if (arg.equals("-V"))
+			{ serveFile = args[++i]; }
+			else if (arg.equals("-D"))
+			{ linkLatency = Long.parseLong(args[++i]) * 1000; }
+			else if (arg.equals("-P"))
+			{ linkLoss = Double.parseDouble(args[++i]) / 100; }
+			else if (arg.equals("-B"))
+			{ linkBandwidth = Long.parseLong(args[++i]) * 1000 * 1000; }
+			else if (arg.equals("-n"))
+			{ simPackets = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-d"))
+			{
+				try
+				{ Log.setLevel(Log.Level.valueOf(args[++i].toUpperCase())); }
+				catch (IllegalArgumentException e)
+				{
+					System.err.println("Unknown log level: " + args[i]);
+					return;
+				}
+			}
+			else if (arg.equals("-m"))
+			{ metricsFile = args[++i]; }
+			else if (arg.equals("-M"))
+			{ metricsInterval = Long.parseLong(args[++i]); }
 		}
 		
-		if (null == host)
+		// Simulate a whole topology instead of running one device
+		if (topoFile != null)
+		{
+			Topology topology = new Topology();
+			if (!topology.load(topoFile))
+			{ System.exit(1); }
+			simulate(new Simulator(topology, linkLatency, linkLoss, 
+					linkBandwidth, fastPath), simPackets);
+			return;
+		}
+		
+		// Serve a topology to devices connecting as to the VNS server
+		if (serveFile != null)
+		{
+			Topology topology = new Topology();
+			if (!topology.load(serveFile))
+			{ System.exit(1); }
+			if (!serve(new VNSServer(topology, port), simPackets))
+			{ System.exit(1); }
+			return;
+		}
+		
+		if (null == host || (!replayFiles.isEmpty() && null == ifacesFile))
 		{
 			usage();
 			return;
@@ -54,7 +176,7 @@ public class Main
 		DumpFile dump = null;
 		if (logfile != null)
 		{
-			dump = DumpFile.open(logfile);
+			dump = DumpFile.open(logfile, logOptions);
 			if (null == dump)
 			{
 				System.err.println("Error opening up dump file "+logfile);
@@ -68,6 +190,7 @@ public class Main
 		{
 			// Create router instance
 			dev = new Router(host, dump);
+			((Router)dev).setFastPath(fastPath);
 		}
 		else 
 		{
@@ -75,13 +198,32 @@ public class Main
 			return;
 		}
 		
-		// Connect to Virtual Network Simulator server and negotiate session
-		System.out.println(String.format("Connecting to server %s:%d", 
-				server, port));
-		vnsComm = new VNSComm(dev);
-		if (!vnsComm.connectToServer(port, server))
-		{ System.exit(1); }
-		vnsComm.readFromServerExpect(Command.VNS_HW_INFO);	
+		if (replayFiles.isEmpty())
+		{
+			// Connect to Virtual Network Simulator server and negotiate session
+			System.out.println(String.format("Connecting to server %s:%d", 
+					server, port));
+			vnsComm = new VNSComm(dev);
+			if (!vnsComm.connectToServer(port, server))
+			{ System.exit(1); }
+			vnsComm.readFromServerExpect(Command.VNS_HW_INFO);	
+			
+			// Handle packets on worker threads, if requested
+			if (workers > 0)
+			{ vnsComm.startPipeline(workers); }
+		}
+		else
+		{
+			// Take interfaces from a file, and capture packets sent
+			if (!dev.loadInterfaces(ifacesFile))
+			{
+				System.err.println("Error loading interfaces from file "
+						+ ifacesFile);
+				System.exit(1);
+			}
+			sink = new CaptureSink(dev, replayOutput);
+			dev.setPacketSink(sink);
+		}
 		
 		if (dev instanceof Router) 
 		{
@@ -95,20 +237,233 @@ public class Main
 			if (arpCacheFile != null)
 			{ ((Router)dev).loadArpCache(arpCacheFile); }
 		}
+		
+		// Write snapshots of the device's counters and latencies
+		MetricsReporter metrics = null;
+		if (metricsFile != null)
+		{
+			metrics = new MetricsReporter(dev, metricsFile, 
+					metricsInterval * 1000);
+			metrics.start();
+		}
 
-		// Read messages from the server until the server closes the connection
-		System.out.println("<-- Ready to process packets -->");
-		while (vnsComm.readFromServer());
+		if (vnsComm != null)
+		{
+			// Read messages from the server until the server closes the 
+			// connection
+			System.out.println("<-- Ready to process packets -->");
+			while (vnsComm.readFromServer());
+			vnsComm.close();
+		}
+		else if (!replay(dev, sink, replayFiles, replayRealTime))
+		{ System.exit(1); }
 		
 		// Shutdown the router
+		if (metrics != null)
+		{ metrics.stop(); }
 		dev.destroy();
 	}
 	
+	/**
+	 * Replay packets from PCAP files into a device, and report the packet 
+	 * rate and what the device sent.
+	 * @param dev the device
+	 * @param sink sink capturing the packets the device sends
+	 * @param files files to replay, each given as iface=filename
+	 * @param realTime whether to space packets as they were recorded
+	 * @return true if every file was replayed
+	 */
+	static boolean replay(Device dev, CaptureSink sink, List<String> files,
+			boolean realTime)
+	{
+		Replay replay = new Replay(dev);
+		replay.setRealTime(realTime);
+		for (String file : files)
+		{
+			int split = file.indexOf('=');
+			Iface iface = (split < 0) ? null 
+					: dev.getInterface(file.substring(0, split));
+			if (null == iface)
+			{
+				System.err.println("Replay file must be given as iface=file: "
+						+ file);
+				return false;
+			}
+			try
+			{ replay.addInput(new PcapReader(file.substring(split + 1)), iface); }
+			catch (IOException e)
+			{
+				System.err.println(e.toString());
+				return false;
+			}
+		}
+		
+		try
+		{ replay.run(); }
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		sink.close();
+		System.out.println(replay);
+		System.out.print(sink);
+		return true;
+	}
+	
+	/**
+	 * Simulate a topology: wait for the routers' routes to converge, ping
+	 * every other host from the first host, then send datagrams from the
+	 * first host to the last as fast as possible. Reports the time taken by
+	 * each step.
+	 * @param sim the simulator, not yet started
+	 * @param packets number of datagrams to send
+	 */
+	static void simulate(Simulator sim, int packets)
+	{
+		sim.start();
+		long converged = sim.awaitConvergence(60 * 1000);
+		if (converged < 0)
+		{ System.out.println("Routes did not converge"); }
+		else
+		{ System.out.println("Routes converged in " + converged + " ms"); }
+		
+		sendTraffic(new ArrayList<SimHost>(sim.getHosts()), packets, 0);
+		System.out.print(sim);
+		sim.stop();
+	}
+	
+	/**
+	 * Serve a topology to routers and switches connecting as to the VNS 
+	 * server: wait for them all to connect, then send traffic between the
+	 * topology's hosts as {@link #simulate} does. Pings are retried until
+	 * they are answered, giving the routers time to converge.
+	 * @param server the server, not yet started
+	 * @param packets number of datagrams to send
+	 * @return false if the server could not start or the devices did not
+	 *         all connect
+	 */
+	static boolean serve(VNSServer server, int packets)
+	{
+		try
+		{ server.start(); }
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		long connected = server.awaitConnections(60 * 1000);
+		if (connected < 0)
+		{ 
+			System.out.println("Devices did not connect");
+			server.stop();
+			return false;
+		}
+		System.out.println("Devices connected in " + connected + " ms");
+		
+		sendTraffic(new ArrayList<SimHost>(server.getHosts()), packets, 
+				60 * 1000);
+		System.out.print(server);
+		server.stop();
+		return true;
+	}
+	
+	/**
+	 * Ping every other host from the first host, then send datagrams from
+	 * the first host to the last as fast as possible, and report the round
+	 * trip times and packet rate.
+	 * @param hosts the hosts
+	 * @param packets number of datagrams to send
+	 * @param retryMillis how long (in milliseconds) to keep retrying pings
+	 *        that are not answered; 0 to send each ping once
+	 */
+	private static void sendTraffic(List<SimHost> hosts, int packets, 
+			long retryMillis)
+	{
+		if (hosts.size() >= 2)
+		{
+			SimHost src = hosts.get(0);
+			long retryDeadline = System.currentTimeMillis() + retryMillis;
+			for (SimHost dst : hosts.subList(1, hosts.size()))
+			{
+				long pings = src.getPingsReceived();
+				do
+				{
+					src.ping(dst.getIface().getIpAddress());
+					long deadline = System.currentTimeMillis() + 1000;
+					while (src.getPingsReceived() == pings 
+							&& System.currentTimeMillis() < deadline)
+					{ sleep(1); }
+				} while (src.getPingsReceived() == pings
+						&& System.currentTimeMillis() < retryDeadline);
+				System.out.println(String.format("Ping %s -> %s: %s", 
+						src.getHost(), dst.getHost(), 
+						(src.getPingsReceived() > pings) ? "ok" : "no reply"));
+			}
+			
+			// Send datagrams until they all arrive or arrivals stall
+			SimHost dst = hosts.get(hosts.size() - 1);
+			byte[] payload = new byte[64];
+			long received = dst.getUdpReceived();
+			long start = System.nanoTime();
+			for (int i = 0; i < packets; i++)
+			{
+				src.sendUdp(dst.getIface().getIpAddress(), (short)5000, 
+						(short)5000, payload);
+			}
+			long last = received;
+			long lastProgress = System.nanoTime();
+			while (dst.getUdpReceived() - received < packets
+					&& System.nanoTime() - lastProgress < 1000L * 1000 * 1000)
+			{
+				sleep(1);
+				if (dst.getUdpReceived() != last)
+				{
+					last = dst.getUdpReceived();
+					lastProgress = System.nanoTime();
+				}
+			}
+			long delivered = dst.getUdpReceived() - received;
+			double seconds = (dst.getLastReceived() - start) / 1e9;
+			System.out.println(String.format(
+					"Sent %d datagrams %s -> %s: %d delivered, %.0f packets/s",
+					packets, src.getHost(), dst.getHost(), delivered,
+					(seconds > 0) ? delivered / seconds : 0.0));
+		}
+		
+		for (SimHost host : hosts)
+		{ System.out.println(host); }
+	}
+	
+	private static void sleep(long millis)
+	{
+		try
+		{ Thread.sleep(millis); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+	
 	static void usage()
 	{
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
 		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-L log_file]  (log packets from a background thread)");
+		System.out.println("     [-S snaplen]  (bytes of each packet to log)");
+		System.out.println("     [-C megabytes] [-G seconds]  (start a new log file after this size/age)");
+		System.out.println("     [-N]  (log nanosecond timestamps)");
+		System.out.println("     [-f filter]  (log only matching packets, e.g. \"ip.dst == 10.0.1.101 && udp.port == 520\")");
+		System.out.println("     [-x]  (forward raw frames without decoding them)");
+		System.out.println("     [-w workers]  (handle packets on worker threads)");
+		System.out.println("     [-d level]  (log debug, info, warn or error messages and up; default info)");
+		System.out.println("     [-m metrics_file] [-M seconds]  (write counters and latencies every 10 s, or as given)");
+		System.out.println("     [-i ifaces -R iface=pcap_file ...]  (replay packets from files instead of a server)");
+		System.out.println("     [-T]  (replay packets with recorded timing)");
+		System.out.println("     [-O prefix]  (write replayed output to prefix.iface.pcap)");
+		System.out.println("VNet -t topo_file [-D latency_us] [-P loss_percent] [-B mbps]");
+		System.out.println("     [-n packets] [-x]  (simulate every device in a topology)");
+		System.out.println("VNet -V topo_file [-p port] [-n packets]  (serve a topology to devices");
+		System.out.println("     connecting as to the VNS server, and send traffic between its hosts)");
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
 	}
@@ -0,0 +1,102 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+
+/**
+ * Periodically writes a snapshot of a device's counters and latencies to a
+ * file. Each snapshot is written to a temporary file that then replaces
+ * the last snapshot, so a reader never sees a partial snapshot.
+ */
+public class MetricsReporter implements Runnable
+{
+	private final Device device;
+	private final File file;
+	private final File tmpFile;
+
+	/** Time (in milliseconds) between snapshots */
+	private final long interval;
+
+	private final Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * Create a reporter; snapshots start once the reporter is started.
+	 * @param device the device whose metrics are reported
+	 * @param filename the name of the file to write snapshots to
+	 * @param interval time (in milliseconds) between snapshots
+	 */
+	public MetricsReporter(Device device, String filename, long interval)
+	{
+		this.device = device;
+		this.file = new File(filename);
+		this.tmpFile = new File(filename + ".tmp");
+		this.interval = interval;
+		this.thread = new Thread(this, "MetricsReporter");
+		this.thread.setDaemon(true);
+	}
+
+	public void start()
+	{
+		this.running = true;
+		this.thread.start();
+	}
+
+	/**
+	 * Stop taking snapshots, then write a final one.
+	 */
+	public void stop()
+	{
+		this.running = false;
+		this.thread.interrupt();
+		try
+		{ this.thread.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+		this.write();
+	}
+
+	public void run()
+	{
+		while (this.running)
+		{
+			try
+			{ Thread.sleep(this.interval); }
+			catch (InterruptedException e)
+			{ break; }
+			this.write();
+		}
+	}
+
+	/**
+	 * Write a snapshot of the device's metrics.
+	 * @return true if the snapshot was written, otherwise false
+	 */
+	public boolean write()
+	{
+		String snapshot = String.format("# %s at %s\n%s",
+				this.device.getHost(), new Date(), this.device.getMetrics());
+		try
+		{
+			Writer writer = new FileWriter(this.tmpFile);
+			try
+			{ writer.write(snapshot); }
+			finally
+			{ writer.close(); }
+			Files.move(this.tmpFile.toPath(), this.file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			Log.error("Error writing metrics: " + e);
+			return false;
+		}
+		return true;
+	}
+}
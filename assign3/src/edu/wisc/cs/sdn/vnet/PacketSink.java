@@ -0,0 +1,31 @@
+package edu.wisc.cs.sdn.vnet;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+/**
+ * Where a device's outgoing packets go: normally the connection to the VNS
+ * server, or a capture when packets are replayed from a file.
+ */
+public interface PacketSink
+{
+	/**
+	 * Send an Ethernet packet out a specific interface.
+	 * @param etherPacket an Ethernet packet with all fields, encapsulated
+	 * 		  headers, and payloads completed
+	 * @param iface interface on which to send the packet
+	 * @return true if the packet was sent successfully, otherwise false
+	 */
+	public boolean sendPacket(Ethernet etherPacket, Iface iface);
+	
+	/**
+	 * Send an already serialized Ethernet frame out a specific interface.
+	 * The frame must not be modified after this call.
+	 * @param frame buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendPacket(byte[] frame, int offset, int length, 
+			Iface iface);
+}
@@ -0,0 +1,121 @@
+package edu.wisc.cs.sdn.vnet.replay;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.DumpFile;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.PacketSink;
+
+/**
+ * Captures the packets a device sends while packets are replayed into it.
+ * For each interface it counts the frames and bytes sent and keeps a
+ * checksum over the frames in the order they were sent, so the output of
+ * two builds can be compared; the frames can also be written to a PCAP
+ * file per interface.
+ */
+public class CaptureSink implements PacketSink
+{
+	/** What was sent out one interface */
+	private static class Output
+	{
+		long packets;
+		long bytes;
+		final CRC32 digest = new CRC32();
+		DumpFile dumpFile;
+	}
+
+	private final Device device;
+
+	/** Prefix of the per-interface PCAP files; null to not write them */
+	private final String prefix;
+
+	/** Output for each interface, by interface name */
+	private final Map<String,Output> outputs;
+
+	/**
+	 * Create a sink for a device's packets.
+	 * @param device the device whose packets are captured; packets are also
+	 *        logged to the device's dump file, if it has one
+	 * @param prefix prefix for the files to which packets sent out each
+	 *        interface are written, as prefix.iface.pcap; null to only count
+	 *        packets
+	 */
+	public CaptureSink(Device device, String prefix)
+	{
+		this.device = device;
+		this.prefix = prefix;
+		this.outputs = new TreeMap<String,Output>();
+	}
+
+	public boolean sendPacket(Ethernet etherPacket, Iface iface)
+	{
+		byte[] frame = etherPacket.serialize();
+		return this.sendPacket(frame, 0, frame.length, iface);
+	}
+
+	public synchronized boolean sendPacket(byte[] frame, int offset,
+			int length, Iface iface)
+	{
+		if (this.device.getLogFile() != null)
+		{ this.device.getLogFile().dump(frame, offset, length); }
+
+		Output output = this.outputs.get(iface.getName());
+		if (null == output)
+		{
+			output = new Output();
+			if (this.prefix != null)
+			{
+				output.dumpFile = DumpFile.open(this.prefix + "."
+						+ iface.getName() + ".pcap");
+			}
+			this.outputs.put(iface.getName(), output);
+		}
+		output.packets++;
+		output.bytes += length;
+		output.digest.update(frame, offset, length);
+		if (output.dumpFile != null)
+		{ output.dumpFile.dump(frame, offset, length); }
+		return true;
+	}
+
+	/**
+	 * @return total number of packets sent out all interfaces
+	 */
+	public synchronized long getPackets()
+	{
+		long packets = 0;
+		for (Output output : this.outputs.values())
+		{ packets += output.packets; }
+		return packets;
+	}
+
+	/**
+	 * Close the per-interface PCAP files.
+	 */
+	public synchronized void close()
+	{
+		for (Output output : this.outputs.values())
+		{
+			if (output.dumpFile != null)
+			{ output.dumpFile.close(); }
+		}
+	}
+
+	public synchronized String toString()
+	{
+		StringBuilder result = new StringBuilder();
+		for (Map.Entry<String,Output> entry : this.outputs.entrySet())
+		{
+			Output output = entry.getValue();
+			result.append(String.format("%s\tpackets %d, bytes %d, digest %08x\n",
+					entry.getKey(), output.packets, output.bytes,
+					output.digest.getValue()));
+		}
+		return result.toString();
+	}
+}
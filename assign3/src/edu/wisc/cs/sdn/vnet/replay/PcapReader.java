@@ -0,0 +1,187 @@
+package edu.wisc.cs.sdn.vnet.replay;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the records of a PCAP file one at a time. The file is memory-mapped
+ * a window at a time, so files of any size are streamed without being read
+ * into the heap. Files in either byte order, with microsecond or nanosecond
+ * timestamps, are accepted; only Ethernet captures are.
+ */
+public class PcapReader
+{
+	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
+	private static final int TCPDUMP_MAGIC_NANO = 0xa1b23c4d;
+	private static final int LINKTYPE_ETHERNET = 1;
+	private static final int FILE_HEADER_LENGTH = 24;
+	private static final int RECORD_HEADER_LENGTH = 16;
+
+	/**
+	 * Initial size (in bytes) of the frame buffer, which grows to fit longer
+	 * records; the snapshot length in the file header is not trusted
+	 */
+	private static final int INITIAL_FRAME_LENGTH = 1514;
+
+	/** Size (in bytes) of the part of the file mapped at once */
+	private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private final String filename;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long fileSize;
+	private ByteOrder order;
+	private boolean nanosecond;
+
+	/** Mapped part of the file, and the file offset at which it starts */
+	private MappedByteBuffer window;
+	private long windowStart;
+
+	/** File offset of the next record */
+	private long position;
+
+	/** Fields of the current record */
+	private long timestamp;
+	private int capturedLength;
+	private int length;
+	private byte[] frame;
+
+	/**
+	 * Open a PCAP file and read its header.
+	 * @param filename name of the file
+	 * @throws IOException if the file cannot be read or is not an Ethernet
+	 *         capture
+	 */
+	public PcapReader(String filename) throws IOException
+	{
+		this.filename = filename;
+		this.file = new RandomAccessFile(filename, "r");
+		this.channel = this.file.getChannel();
+		this.fileSize = this.channel.size();
+		this.order = ByteOrder.BIG_ENDIAN;
+		try
+		{ this.readHeader(); }
+		catch (IOException e)
+		{
+			this.close();
+			throw e;
+		}
+	}
+
+	private void readHeader() throws IOException
+	{
+		if (!this.map(0, FILE_HEADER_LENGTH))
+		{ throw new IOException(this.filename + ": not a PCAP file"); }
+		int magic = this.window.getInt(0);
+		if (Integer.reverseBytes(magic) == TCPDUMP_MAGIC
+				|| Integer.reverseBytes(magic) == TCPDUMP_MAGIC_NANO)
+		{
+			this.order = ByteOrder.LITTLE_ENDIAN;
+			magic = Integer.reverseBytes(magic);
+		}
+		if (magic != TCPDUMP_MAGIC && magic != TCPDUMP_MAGIC_NANO)
+		{ throw new IOException(this.filename + ": not a PCAP file"); }
+		this.nanosecond = (TCPDUMP_MAGIC_NANO == magic);
+		this.window.order(this.order);
+
+		if (this.window.getInt(20) != LINKTYPE_ETHERNET)
+		{ throw new IOException(this.filename + ": not an Ethernet capture"); }
+		this.frame = new byte[INITIAL_FRAME_LENGTH];
+		this.position = FILE_HEADER_LENGTH;
+	}
+
+	/**
+	 * Make sure part of the file is mapped.
+	 * @param offset file offset of the part
+	 * @param size size (in bytes) of the part
+	 * @return false if the file ends before the end of the part
+	 */
+	private boolean map(long offset, int size) throws IOException
+	{
+		if (offset + size > this.fileSize)
+		{ return false; }
+		if (this.window != null && offset >= this.windowStart
+				&& offset + size <= this.windowStart + this.window.limit())
+		{ return true; }
+
+		long mapSize = Math.min(Math.max(WINDOW_SIZE, size),
+				this.fileSize - offset);
+		this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, offset,
+				mapSize);
+		this.window.order(this.order);
+		this.windowStart = offset;
+		return true;
+	}
+
+	/**
+	 * Advance to the next record.
+	 * @return false if there are no more records; a record cut short by the
+	 *         end of the file is ignored
+	 */
+	public boolean next() throws IOException
+	{
+		if (!this.map(this.position, RECORD_HEADER_LENGTH))
+		{ return false; }
+		int base = (int)(this.position - this.windowStart);
+		long sec = this.window.getInt(base) & 0xffffffffL;
+		long frac = this.window.getInt(base + 4) & 0xffffffffL;
+		int capturedLength = this.window.getInt(base + 8);
+		int length = this.window.getInt(base + 12);
+		if (capturedLength < 0)
+		{ throw new IOException(this.filename + ": bad record length"); }
+
+		long data = this.position + RECORD_HEADER_LENGTH;
+		if (!this.map(data, capturedLength))
+		{ return false; }
+		if (capturedLength > this.frame.length)
+		{ this.frame = new byte[capturedLength]; }
+		this.window.position((int)(data - this.windowStart));
+		this.window.get(this.frame, 0, capturedLength);
+
+		this.timestamp = sec * 1000000000L
+				+ (this.nanosecond ? frac : frac * 1000);
+		this.capturedLength = capturedLength;
+		this.length = length;
+		this.position = data + capturedLength;
+		return true;
+	}
+
+	/**
+	 * @return timestamp (in nanoseconds since the epoch) of the current record
+	 */
+	public long getTimestamp()
+	{ return this.timestamp; }
+
+	/**
+	 * @return buffer holding the current record's frame, starting at offset 0;
+	 *         reused for the next record
+	 */
+	public byte[] getFrame()
+	{ return this.frame; }
+
+	/**
+	 * @return number of bytes of the frame in the current record
+	 */
+	public int getCapturedLength()
+	{ return this.capturedLength; }
+
+	/**
+	 * @return original length of the frame in the current record
+	 */
+	public int getLength()
+	{ return this.length; }
+
+	public String getFilename()
+	{ return this.filename; }
+
+	public void close()
+	{
+		this.window = null;
+		try
+		{ this.file.close(); }
+		catch (IOException e) { }
+	}
+}
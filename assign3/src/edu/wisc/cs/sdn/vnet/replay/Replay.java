@@ -0,0 +1,146 @@
+package edu.wisc.cs.sdn.vnet.replay;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Feeds frames recorded in PCAP files into a device, as if they had been
+ * received from the VNS server. Each file holds the frames received on one
+ * interface; frames from all files are replayed in timestamp order, either
+ * spaced as they were recorded or as fast as the device handles them.
+ * Frames are handled on the calling thread.
+ */
+public class Replay
+{
+	/** A file of frames received on one interface */
+	private static class Input
+	{
+		final PcapReader reader;
+		final Iface iface;
+
+		/** Whether the reader is on a record not yet replayed */
+		boolean ready;
+
+		Input(PcapReader reader, Iface iface)
+		{
+			this.reader = reader;
+			this.iface = iface;
+		}
+	}
+
+	private final Device device;
+	private final List<Input> inputs;
+
+	/** Whether to space frames as they were recorded */
+	private boolean realTime;
+
+	private long packets;
+	private long bytes;
+	private long elapsedNanos;
+
+	/**
+	 * Create a replay into a device.
+	 * @param device the device into which frames are fed
+	 */
+	public Replay(Device device)
+	{
+		this.device = device;
+		this.inputs = new ArrayList<Input>();
+		this.realTime = false;
+	}
+
+	/**
+	 * Add a file of frames to replay.
+	 * @param reader reader for the file
+	 * @param iface interface on which the frames are received
+	 */
+	public void addInput(PcapReader reader, Iface iface)
+	{ this.inputs.add(new Input(reader, iface)); }
+
+	/**
+	 * @param realTime true to space frames as they were recorded, false to
+	 *        replay them as fast as possible
+	 */
+	public void setRealTime(boolean realTime)
+	{ this.realTime = realTime; }
+
+	/**
+	 * Replay every frame in every file, then close the files.
+	 */
+	public void run() throws IOException
+	{
+		for (Input input : this.inputs)
+		{ input.ready = input.reader.next(); }
+
+		long start = System.nanoTime();
+		long firstTimestamp = -1;
+		while (true)
+		{
+			// Take the earliest frame of any file
+			Input next = null;
+			for (Input input : this.inputs)
+			{
+				if (input.ready && (null == next || input.reader.getTimestamp()
+						< next.reader.getTimestamp()))
+				{ next = input; }
+			}
+			if (null == next)
+			{ break; }
+
+			PcapReader reader = next.reader;
+			if (this.realTime)
+			{
+				if (firstTimestamp < 0)
+				{ firstTimestamp = reader.getTimestamp(); }
+				long due = start + (reader.getTimestamp() - firstTimestamp);
+				long wait;
+				while ((wait = due - System.nanoTime()) > 0)
+				{ LockSupport.parkNanos(wait); }
+			}
+
+			this.handle(reader.getFrame(), reader.getCapturedLength(),
+					next.iface);
+			next.ready = reader.next();
+		}
+		this.elapsedNanos = System.nanoTime() - start;
+
+		for (Input input : this.inputs)
+		{ input.reader.close(); }
+	}
+
+	private void handle(byte[] frame, int length, Iface inIface)
+	{
+		this.packets++;
+		this.bytes += length;
+
+		if (this.device.getLogFile() != null)
+		{ this.device.getLogFile().dump(frame, 0, length); }
+
+		this.device.receivePacket(frame, 0, length, inIface);
+	}
+
+	/**
+	 * @return number of frames replayed
+	 */
+	public long getPackets()
+	{ return this.packets; }
+
+	/**
+	 * @return time (in nanoseconds) taken to replay every frame
+	 */
+	public long getElapsedNanos()
+	{ return this.elapsedNanos; }
+
+	public String toString()
+	{
+		double seconds = this.elapsedNanos / 1e9;
+		return String.format("Replayed %d packets (%d bytes) in %.3f s, "
+				+ "%.0f packets/s", this.packets, this.bytes, seconds,
+				(seconds > 0) ? this.packets / seconds : 0.0);
+	}
+}
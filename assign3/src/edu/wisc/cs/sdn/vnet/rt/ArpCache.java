@@ -4,27 +4,75 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
+import edu.wisc.cs.sdn.vnet.LongKeyTable;
+
 /**
  * A cache of MAC address to IP address mappings.
  * @author Aaron Gember-Jacobson
  */
-public class ArpCache {
-	/** Entries in the cache; maps an IP address to an entry */
-	private Map<Integer,ArpEntry> entries;
+public class ArpCache implements Runnable
+{
+	/** Timeout (in milliseconds) for learned entries in the cache */
+	public static final int TIMEOUT = 15 * 1000;
+
+	/** Number of requests sent for an IP address before giving up */
+	public static final int MAX_ATTEMPTS = 3;
+
+	/** Router to which this cache belongs */
+	private Router router;
+
+	/** Value returned by getMac for IP addresses not in the cache */
+	public static final long NO_MAC = LongKeyTable.NONE;
+
+	/** Flag set in the value of entries that time out */
+	private static final long EXPIRES = 1L << 48;
+
+	/** Mask selecting the MAC address from the value of an entry */
+	private static final long MAC_MASK = EXPIRES - 1;
+
+	/** 
+	 * Entries in the cache; maps an IP address, as an unsigned key, to a MAC
+	 * address and flags
+	 */
+	private LongKeyTable<Void> entries;
+
+	/** Outstanding requests; maps an IP address to a request */
+	private Map<Integer,ArpRequest> requests;
+
+	/** Number of times the cache has changed */
+	private AtomicLong generation;
+
+	/** Thread for timing out requests and entries in the cache */
+	private Thread timeoutThread;
 
 	/**
 	 * Initializes an empty ARP cache for a router.
+	 * @param router router to which this cache belongs
 	 */
-	public ArpCache()
-	{ this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
+	public ArpCache(Router router)
+	{
+		this.router = router;
+		this.entries = new LongKeyTable<Void>();
+		this.requests = new HashMap<Integer,ArpRequest>();
+		this.generation = new AtomicLong();
+		this.timeoutThread = new Thread(this, "ArpCache timeout");
+		this.timeoutThread.setDaemon(true);
+		this.timeoutThread.start();
+	}
 
 	/**
 	 * Insert an entry in the ARP cache for a specific IP address, MAC address
@@ -33,15 +81,152 @@ public class ArpCache {
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	{ this.insert(mac.toLong(), ip); }
+
+	/**
+	 * Insert an entry in the ARP cache for a specific IP address, MAC address
+	 * pair.
+	 * @param mac MAC address corresponding to IP address, in the low 48 bits
+	 * @param ip IP address corresponding to MAC address
+	 */
+	public void insert(long mac, int ip)
+	{
+		this.entries.put(key(ip), mac & MAC_MASK, null, 
+				System.currentTimeMillis());
+		this.generation.incrementAndGet();
+	}
+
+	/**
+	 * Learn the MAC address for an IP address from an ARP packet. Static 
+	 * entries are never replaced by learned ones.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @return the request that was waiting for the mapping, whose packets
+	 *         should now be sent; null if there was none
+	 */
+	public ArpRequest learn(MACAddress mac, int ip)
+	{ return this.learn(mac.toLong(), ip); }
+
+	/**
+	 * Learn the MAC address for an IP address from an ARP packet. Static 
+	 * entries are never replaced by learned ones.
+	 * @param mac MAC address corresponding to IP address, in the low 48 bits
+	 * @param ip IP address corresponding to MAC address
+	 * @return the request that was waiting for the mapping, whose packets
+	 *         should now be sent; null if there was none
+	 */
+	public ArpRequest learn(long mac, int ip)
+	{
+		mac &= MAC_MASK;
+		long now = System.currentTimeMillis();
+		synchronized(this.requests)
+		{
+			long value = this.entries.get(key(ip));
+			if (value != LongKeyTable.NONE && ((value & EXPIRES) == 0
+					|| (value & MAC_MASK) == mac))
+			{ this.entries.touch(key(ip), now); }
+			else
+			{
+				this.entries.put(key(ip), mac | EXPIRES, null, now);
+				this.generation.incrementAndGet();
+			}
+			return this.requests.remove(ip);
+		}
+	}
+
+	/**
+	 * Queue a packet until the MAC address for its next hop is known, 
+	 * sending an ARP request if none is outstanding for the next hop.
+	 * @param ip IP address of the next hop
+	 * @param outIface interface out which to send the packet
+	 * @param etherPacket the packet to send
+	 * @param inIface interface on which the packet was received
+	 * @return true if the packet was queued; false if the queue for the
+	 *         next hop is full, or the next hop has been resolved meanwhile
+	 */
+	public boolean enqueue(int ip, Iface outIface, Ethernet etherPacket, 
+			Iface inIface)
+	{
+		ArpRequest request;
+		synchronized(this.requests)
+		{
+			if (this.entries.get(key(ip)) != LongKeyTable.NONE)
+			{ return false; }
+			request = this.requests.get(ip);
+			if (request != null)
+			{ return request.enqueue(etherPacket, inIface); }
+			request = new ArpRequest(ip, outIface);
+			request.enqueue(etherPacket, inIface);
+			request.incrementAttempts();
+			this.requests.put(ip, request);
+		}
+		this.router.sendArpRequest(ip, outIface);
+		return true;
+	}
+
+	/**
+	 * @return number of times the cache has changed; results derived from
+	 *         the cache are stale once this changes
+	 */
+	public long getGeneration()
+	{ return this.generation.get(); }
 
 	/**
-	 * Checks if an IP->MAC mapping is the in the cache.
+	 * Checks if an IP->MAC mapping is the in the cache. The forwarding path
+	 * should use getMac or writeMac, which do not allocate.
 	 * @param ip IP address whose MAC address is desired
 	 * @return the IP->MAC mapping from the cache; null if none exists 
 	 */
 	public ArpEntry lookup(int ip)
-	{ return this.entries.get(ip); }
+	{
+		final ArpEntry[] result = new ArpEntry[1];
+		this.entries.visit(key(ip), new LongKeyTable.Visitor<Void>() {
+			public void visit(long key, long value, Void unused, long updated)
+			{ result[0] = toEntry((int)key, value, updated); }
+		});
+		return result[0];
+	}
+
+	/**
+	 * Find the MAC address for an IP address.
+	 * @param ip IP address whose MAC address is desired
+	 * @return the MAC address in the low 48 bits; NO_MAC if none exists
+	 */
+	public long getMac(int ip)
+	{
+		long value = this.entries.get(key(ip));
+		if (LongKeyTable.NONE == value)
+		{ return NO_MAC; }
+		return value & MAC_MASK;
+	}
+
+	/**
+	 * Write the MAC address for an IP address into a buffer.
+	 * @param ip IP address whose MAC address is desired
+	 * @param buf buffer in which to write the MAC address
+	 * @param offset offset in the buffer at which to write
+	 * @return true if the MAC address was written; false if none exists
+	 */
+	public boolean writeMac(int ip, byte[] buf, int offset)
+	{
+		long mac = this.getMac(ip);
+		if (NO_MAC == mac)
+		{ return false; }
+		MACAddress.toBytes(mac, buf, offset);
+		return true;
+	}
+
+	private static ArpEntry toEntry(int ip, long value, long updated)
+	{
+		return new ArpEntry(MACAddress.valueOf(value & MAC_MASK), ip,
+				(value & EXPIRES) != 0, updated);
+	}
+
+	/**
+	 * @return the key for an IP address, which is never LongKeyTable.NONE
+	 */
+	private static long key(int ip)
+	{ return ip & 0xffffffffL; }
 
 	/**
 	 * Populate the ARP cache from a file.
@@ -60,7 +245,7 @@ public class ArpCache {
 		}
 		catch (FileNotFoundException e) 
 		{
-			System.err.println(e.toString());
+			Log.error(e.toString());
 			return false;
 		}
 
@@ -72,7 +257,7 @@ public class ArpCache {
 			{ line = reader.readLine(); }
 			catch (IOException e) 
 			{
-				System.err.println(e.toString());
+				Log.error(e.toString());
 				try { reader.close(); } catch (IOException f) {};
 				return false;
 			}
@@ -90,7 +275,7 @@ public class ArpCache {
 			Matcher matcher = pattern.matcher(line);
 			if (!matcher.matches() || matcher.groupCount() != 2)
 			{
-				System.err.println("Invalid entry in ARP cache file");
+				Log.error("Invalid entry in ARP cache file");
 				try { reader.close(); } catch (IOException f) {};
 				return false;
 			}
@@ -98,7 +283,7 @@ public class ArpCache {
 			int ip = IPv4.toIPv4Address(matcher.group(1));
 			if (0 == ip)
 			{
-				System.err.println("Error loading ARP cache, cannot convert "
+				Log.error("Error loading ARP cache, cannot convert "
 						+ matcher.group(1) + " to valid IP");
 				try { reader.close(); } catch (IOException f) {};
 				return false;
@@ -109,7 +294,7 @@ public class ArpCache {
 			{ mac = MACAddress.valueOf(matcher.group(2)); }
 			catch(IllegalArgumentException iae)
 			{
-				System.err.println("Error loading ARP cache, cannot convert " 
+				Log.error("Error loading ARP cache, cannot convert " 
 						+ matcher.group(3) + " to valid MAC");
 				try { reader.close(); } catch (IOException f) {};
 				return false;
@@ -124,11 +309,66 @@ public class ArpCache {
 		return true;
 	}
 
+	/**
+	 * Every second: timeout learned entries, resend outstanding requests, 
+	 * and give up on requests that have gone unanswered.
+	 */
+	public void run()
+	{
+		while (true)
+		{
+			// Run every second
+			try 
+			{ Thread.sleep(1000); }
+			catch (InterruptedException e) 
+			{ break; }
+
+			// Timeout entries
+			long now = System.currentTimeMillis();
+			if (this.entries.removeStale(now - TIMEOUT, EXPIRES) > 0)
+			{ this.generation.incrementAndGet(); }
+
+			// Resend or give up on requests, without holding the lock
+			List<ArpRequest> resend = new ArrayList<ArpRequest>();
+			List<ArpRequest> failed = new ArrayList<ArpRequest>();
+			synchronized(this.requests)
+			{
+				for (ArpRequest request : this.requests.values())
+				{
+					if (request.getAttempts() >= MAX_ATTEMPTS)
+					{ failed.add(request); }
+					else
+					{
+						request.incrementAttempts();
+						resend.add(request);
+					}
+				}
+				for (ArpRequest request : failed)
+				{ this.requests.remove(request.getIp()); }
+			}
+			for (ArpRequest request : resend)
+			{
+				this.router.sendArpRequest(request.getIp(), 
+						request.getInterface());
+			}
+			for (ArpRequest request : failed)
+			{
+				for (ArpRequest.QueuedPacket packet : request.getPackets())
+				{
+					this.router.sendHostUnreachable(packet.getPacket(), 
+							packet.getInIface());
+				}
+			}
+		}
+	}
+
 	public String toString()
 	{
-		String result = "IP\t\tMAC\n";
-		for (ArpEntry entry : this.entries.values())
-		{ result += entry.toString()+"\n"; }
-		return result;
+		final StringBuilder result = new StringBuilder("IP\t\tMAC\n");
+		this.entries.forEach(new LongKeyTable.Visitor<Void>() {
+			public void visit(long key, long value, Void unused, long updated)
+			{ result.append(toEntry((int)key, value, updated)).append("\n"); }
+		});
+		return result.toString();
 	}
 }
@@ -15,8 +15,11 @@ public class ArpEntry
 	/** IP address corresponding to MAC address */
 	private int ip;
 
-	/** Time (in milliseconds since the epoch) the mapping was created */
-	private long timeAdded;
+	/** Time (in milliseconds since the epoch) the mapping was last confirmed */
+	private long timeUpdated;
+
+	/** Whether the mapping was learned, and so times out */
+	private boolean expires;
 
 	/**
 	 * Create an ARP table entry that maps an IP address to a MAC address.
@@ -24,10 +27,22 @@ public class ArpEntry
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public ArpEntry(MACAddress mac, int ip)
+	{ this(mac, ip, false, System.currentTimeMillis()); }
+
+	/**
+	 * Create an ARP table entry that maps an IP address to a MAC address.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @param expires whether the mapping was learned, and so times out
+	 * @param timeUpdated time (in milliseconds since the epoch) the mapping 
+	 *        was last confirmed
+	 */
+	public ArpEntry(MACAddress mac, int ip, boolean expires, long timeUpdated)
 	{
 		this.mac = mac;
 		this.ip = ip;
-		this.timeAdded = System.currentTimeMillis();
+		this.expires = expires;
+		this.timeUpdated = timeUpdated;
 	}
 
 	/**
@@ -43,10 +58,17 @@ public class ArpEntry
 	{ return this.ip; }
 
 	/**
-	 * @return time (in milliseconds since the epoch) the mapping was created
+	 * @return time (in milliseconds since the epoch) the mapping was last
+	 *         confirmed
+	 */
+	public long getTimeUpdated()
+	{ return this.timeUpdated; }
+
+	/**
+	 * @return true if the mapping was learned, and so times out
 	 */
-	public long getTimeAdded()
-	{ return this.timeAdded; }
+	public boolean expires()
+	{ return this.expires; }
 
 	public String toString()
 	{
@@ -0,0 +1,111 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * An outstanding ARP request for a next hop, along with the packets waiting
+ * for the request to be answered.
+ */
+public class ArpRequest
+{
+	/** Maximum number of packets waiting on a single request */
+	public static final int MAX_QUEUED = 64;
+
+	/**
+	 * A packet waiting for its next hop's MAC address.
+	 */
+	public static class QueuedPacket
+	{
+		/** The packet to send once the next hop is resolved */
+		private Ethernet etherPacket;
+
+		/** Interface on which the packet was received */
+		private Iface inIface;
+
+		public QueuedPacket(Ethernet etherPacket, Iface inIface)
+		{
+			this.etherPacket = etherPacket;
+			this.inIface = inIface;
+		}
+
+		public Ethernet getPacket()
+		{ return this.etherPacket; }
+
+		public Iface getInIface()
+		{ return this.inIface; }
+	}
+
+	/** IP address of the next hop being resolved */
+	private int ip;
+
+	/** Interface out which requests are sent and the queued packets go */
+	private Iface outIface;
+
+	/** Packets waiting for the request to be answered */
+	private List<QueuedPacket> packets;
+
+	/** Number of requests sent so far */
+	private int attempts;
+
+	/**
+	 * Create an outstanding ARP request.
+	 * @param ip IP address of the next hop being resolved
+	 * @param outIface interface out which to send the request
+	 */
+	public ArpRequest(int ip, Iface outIface)
+	{
+		this.ip = ip;
+		this.outIface = outIface;
+		this.packets = new LinkedList<QueuedPacket>();
+		this.attempts = 0;
+	}
+
+	/**
+	 * @return IP address of the next hop being resolved
+	 */
+	public int getIp()
+	{ return this.ip; }
+
+	/**
+	 * @return interface out which requests are sent and the queued packets go
+	 */
+	public Iface getInterface()
+	{ return this.outIface; }
+
+	/**
+	 * @return packets waiting for the request to be answered
+	 */
+	public List<QueuedPacket> getPackets()
+	{ return this.packets; }
+
+	/**
+	 * Queue a packet until the request is answered.
+	 * @param etherPacket the packet to send once the next hop is resolved
+	 * @param inIface interface on which the packet was received
+	 * @return true if the packet was queued, false if the queue is full
+	 */
+	public boolean enqueue(Ethernet etherPacket, Iface inIface)
+	{
+		if (this.packets.size() >= MAX_QUEUED)
+		{ return false; }
+		this.packets.add(new QueuedPacket(etherPacket, inIface));
+		return true;
+	}
+
+	/**
+	 * @return number of requests sent so far
+	 */
+	public int getAttempts()
+	{ return this.attempts; }
+
+	/**
+	 * Record that another request has been sent.
+	 */
+	public void incrementAttempts()
+	{ this.attempts++; }
+}
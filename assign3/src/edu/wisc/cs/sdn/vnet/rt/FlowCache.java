@@ -0,0 +1,192 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A bounded cache of fully resolved forwarding decisions, keyed by
+ * destination IP address. Each flow records the route table and ARP cache
+ * generations it was resolved against, and is ignored once either changes.
+ * The cache is 4-way set associative, with CLOCK eviction within each set.
+ * It may be shared by several threads without locking: flows are immutable,
+ * so a racing insert at worst loses a flow or evicts the wrong one.
+ */
+public class FlowCache
+{
+	/** Number of flows in each set */
+	private static final int WAYS = 4;
+
+	/**
+	 * A resolved forwarding decision for a destination IP address.
+	 */
+	public static class Flow
+	{
+		private final int dstIp;
+		private final Iface outIface;
+		private final long dstMac;
+		private final long srcMac;
+		private final long routeGeneration;
+		private final long arpGeneration;
+
+		/**
+		 * Create a resolved flow.
+		 * @param dstIp destination IP address
+		 * @param outIface interface out which packets should be sent
+		 * @param dstMac MAC address of the next hop, in the low 48 bits
+		 * @param srcMac MAC address of the outgoing interface, likewise
+		 * @param routeGeneration route table generation used to resolve it
+		 * @param arpGeneration ARP cache generation used to resolve it
+		 */
+		public Flow(int dstIp, Iface outIface, long dstMac, long srcMac,
+				long routeGeneration, long arpGeneration)
+		{
+			this.dstIp = dstIp;
+			this.outIface = outIface;
+			this.dstMac = dstMac;
+			this.srcMac = srcMac;
+			this.routeGeneration = routeGeneration;
+			this.arpGeneration = arpGeneration;
+		}
+
+		/**
+		 * @return destination IP address
+		 */
+		public int getDestinationAddress()
+		{ return this.dstIp; }
+
+		/**
+		 * @return the interface out which packets should be sent
+		 */
+		public Iface getInterface()
+		{ return this.outIface; }
+
+		/**
+		 * @return MAC address of the next hop, in the low 48 bits
+		 */
+		public long getDestinationMac()
+		{ return this.dstMac; }
+
+		/**
+		 * @return MAC address of the outgoing interface, in the low 48 bits
+		 */
+		public long getSourceMac()
+		{ return this.srcMac; }
+	}
+
+	/** Flows, grouped into consecutive sets of WAYS flows */
+	private final Flow[] flows;
+
+	/** CLOCK reference bit for each flow */
+	private final boolean[] referenced;
+
+	/** CLOCK hand for each set */
+	private final int[] hands;
+
+	/** Mask selecting a set from a hashed IP address */
+	private final int setMask;
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+
+	/**
+	 * Initializes an empty flow cache.
+	 * @param capacity maximum number of flows; rounded up to a power of two
+	 */
+	public FlowCache(int capacity)
+	{
+		int sets = 1;
+		while (sets * WAYS < capacity)
+		{ sets <<= 1; }
+		this.flows = new Flow[sets * WAYS];
+		this.referenced = new boolean[sets * WAYS];
+		this.hands = new int[sets];
+		this.setMask = sets - 1;
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+
+	/**
+	 * Find the flow for a destination IP address.
+	 * @param dstIp destination IP address
+	 * @param routeGeneration current route table generation
+	 * @param arpGeneration current ARP cache generation
+	 * @return the flow, null if none is cached for the current generations
+	 */
+	public Flow lookup(int dstIp, long routeGeneration, long arpGeneration)
+	{
+		int base = this.set(dstIp) * WAYS;
+		for (int i = base; i < base + WAYS; i++)
+		{
+			Flow flow = this.flows[i];
+			if (flow != null && flow.dstIp == dstIp
+					&& flow.routeGeneration == routeGeneration
+					&& flow.arpGeneration == arpGeneration)
+			{
+				this.referenced[i] = true;
+				this.hits.increment();
+				return flow;
+			}
+		}
+		this.misses.increment();
+		return null;
+	}
+
+	/**
+	 * Add a flow, replacing any flow for the same destination, an empty or
+	 * stale slot, or else the first unreferenced flow in CLOCK order.
+	 * @param flow the flow to add
+	 */
+	public void insert(Flow flow)
+	{
+		int set = this.set(flow.dstIp);
+		int base = set * WAYS;
+		for (int i = base; i < base + WAYS; i++)
+		{
+			Flow other = this.flows[i];
+			if (null == other || other.dstIp == flow.dstIp
+					|| other.routeGeneration != flow.routeGeneration
+					|| other.arpGeneration != flow.arpGeneration)
+			{
+				this.replace(i, flow);
+				return;
+			}
+		}
+
+		int hand = this.hands[set];
+		while (this.referenced[base + hand])
+		{
+			this.referenced[base + hand] = false;
+			hand = (hand + 1) % WAYS;
+		}
+		this.hands[set] = (hand + 1) % WAYS;
+		this.replace(base + hand, flow);
+	}
+
+	/**
+	 * @return number of lookups that found a flow
+	 */
+	public long getHits()
+	{ return this.hits.sum(); }
+
+	/**
+	 * @return number of lookups that did not find a flow
+	 */
+	public long getMisses()
+	{ return this.misses.sum(); }
+
+	private void replace(int index, Flow flow)
+	{
+		this.referenced[index] = false;
+		this.flows[index] = flow;
+	}
+
+	private int set(int ip)
+	{ return (ip * 0x9E3779B9 >>> 16) & this.setMask; }
+
+	public String toString()
+	{
+		return String.format("Flow cache: %d hits, %d misses",
+				this.getHits(), this.getMisses());
+	}
+}
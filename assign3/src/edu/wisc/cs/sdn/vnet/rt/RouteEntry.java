@@ -3,9 +3,6 @@ package edu.wisc.cs.sdn.vnet.rt;
 import net.floodlightcontroller.packet.IPv4;
 import edu.wisc.cs.sdn.vnet.Iface;
 
-import java.util.TimerTask;
-import java.util.Timer;
-
 /**
  * An entry in a route table.
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
@@ -28,8 +25,12 @@ public class RouteEntry
 	/** Cost between router to destination */
 	private int cost;
 
-	private Timer timer;
-	private RouteTable parent;
+	/** Whether the entry times out unless it is refreshed */
+	private boolean expires;
+
+	/** Time (in milliseconds since the epoch) the entry was updated; 
+	 * refreshed in place, without publishing a new route table */
+	private volatile long timeUpdated;
 
 	/**
 	 * Create a new route table entry.
@@ -46,6 +47,8 @@ public class RouteEntry
 		this.gatewayAddress = gatewayAddress;
 		this.maskAddress = maskAddress;
 		this.iface = iface;
+		this.expires = false;
+		this.timeUpdated = System.currentTimeMillis();
 	}
 	
 	/**
@@ -87,35 +90,27 @@ public class RouteEntry
 		this.cost = cost;
 	}
 
-	public void setParent(RouteTable parent) {
-		this.parent = parent;
-	}
-
-	public RouteTable getParent() {
-		return this.parent;
-	}
-
-	public void start(){
-		this.timer = new Timer();
-		this.timer.schedule(new removeCheck(), 30000);
-	}
+	/**
+	 * @return true if the entry times out unless it is refreshed
+	 */
+	public boolean expires()
+	{ return this.expires; }
 
-	public void reset(){
-		this.timer.cancel();
-		this.timer.purge();
-		this.timer = new Timer();
-		this.timer.schedule(new removeCheck(), 30000);
-	}
+	public void setExpires(boolean expires)
+	{ this.expires = expires; }
 
-	public void timeToRemove(){
-		parent.remove(this.getDestinationAddress(), this.getMaskAddress());
-	}
+	/**
+	 * @return time (in milliseconds since the epoch) the entry was updated
+	 */
+	public long getTimeUpdated()
+	{ return this.timeUpdated; }
 
-	class removeCheck extends TimerTask{
-		public void run(){
-			timeToRemove();
-		}
-	}
+	/**
+	 * Record that the entry was confirmed, so it does not time out.
+	 * @param time time (in milliseconds since the epoch) of the update
+	 */
+	public void touch(long time)
+	{ this.timeUpdated = time; }
 
 	public String toString()
 	{
@@ -4,7 +4,6 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -12,21 +11,37 @@ import java.util.regex.Pattern;
 import net.floodlightcontroller.packet.IPv4;
 
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 
 /**
  * Route table for a router.
  * @author Aaron Gember-Jacobson
  */
-public class RouteTable 
+public class RouteTable implements Runnable
 {
-	/** Entries in the route table */
-	private List<RouteEntry> entries; 
+	/** Timeout (in milliseconds) for entries learned from RIP */
+	public static final int TIMEOUT = 30 * 1000;
+
+	/** Entries in the route table, indexed by prefix; replaced as a whole 
+	 * on every change, so readers never need to lock */
+	private volatile RouteTrie trie;
+
+	/** Number of times the route table has changed */
+	private volatile long generation;
+
+	/** Thread for timing out entries; started when the first entry that 
+	 * expires is added */
+	private Thread timeoutThread;
 
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{
+		this.trie = RouteTrie.EMPTY;
+		this.generation = 0;
+		this.timeoutThread = null;
+	}
 
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -35,28 +50,23 @@ public class RouteTable
 	 */
 	public RouteEntry lookup(int ip)
 	{
-		synchronized(this.entries)
-		{
-			/*****************************************************************/
-			/* TODO: Find the route entry with the longest prefix match      */
+		/*********************************************************************/
+		/* TODO: Find the route entry with the longest prefix match          */
 
-			RouteEntry bestMatch = null;
-			for (RouteEntry entry : this.entries)
-			{
-				int maskedDst = ip & entry.getMaskAddress();
-				int entrySubnet = entry.getDestinationAddress() & entry.getMaskAddress();
-				if (maskedDst == entrySubnet) {
-					if ((null == bestMatch) || (entry.getMaskAddress() > bestMatch.getMaskAddress()))
-					{ bestMatch = entry; }
-				}
-			}
-
-			return bestMatch;
+		return this.trie.lookup(ip);
 
-			/*****************************************************************/
-		}
+		/*********************************************************************/
 	}
 
+	/**
+	 * Find the route entry for an exact prefix.
+	 * @param dstIp destination IP of the entry to find
+	 * @param maskIp subnet mask of the entry to find
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry find(int dstIp, int maskIp)
+	{ return this.trie.find(dstIp, maskIp); }
+
 	/**
 	 * Populate the route table from a file.
 	 * @param filename name of the file containing the static route table
@@ -74,7 +84,7 @@ public class RouteTable
 		}
 		catch (FileNotFoundException e) 
 		{
-			System.err.println(e.toString());
+			Log.error(e.toString());
 			return false;
 		}
 
@@ -86,7 +96,7 @@ public class RouteTable
 			{ line = reader.readLine(); }
 			catch (IOException e) 
 			{
-				System.err.println(e.toString());
+				Log.error(e.toString());
 				try { reader.close(); } catch (IOException f) {};
 				return false;
 			}
@@ -104,7 +114,7 @@ public class RouteTable
 			Matcher matcher = pattern.matcher(line);
 			if (!matcher.matches() || matcher.groupCount() != 4)
 			{
-				System.err.println("Invalid entry in routing table file");
+				Log.error("Invalid entry in routing table file");
 				try { reader.close(); } catch (IOException f) {};
 				return false;
 			}
@@ -112,7 +122,7 @@ public class RouteTable
 			int dstIp = IPv4.toIPv4Address(matcher.group(1));
 			if (0 == dstIp)
 			{
-				System.err.println("Error loading route table, cannot convert "
+				Log.error("Error loading route table, cannot convert "
 						+ matcher.group(1) + " to valid IP");
 				try { reader.close(); } catch (IOException f) {};
 				return false;
@@ -123,7 +133,7 @@ public class RouteTable
 			int maskIp = IPv4.toIPv4Address(matcher.group(3));
 			if (0 == maskIp)
 			{
-				System.err.println("Error loading route table, cannot convert "
+				Log.error("Error loading route table, cannot convert "
 						+ matcher.group(3) + " to valid IP");
 				try { reader.close(); } catch (IOException f) {};
 				return false;
@@ -133,7 +143,7 @@ public class RouteTable
 			Iface iface = router.getInterface(ifaceName);
 			if (null == iface)
 			{
-				System.err.println("Error loading route table, invalid interface "
+				Log.error("Error loading route table, invalid interface "
 						+ matcher.group(4));
 				try { reader.close(); } catch (IOException f) {};
 				return false;
@@ -159,22 +169,18 @@ public class RouteTable
 	public void insert(int dstIp, int gwIp, int maskIp, Iface iface)
 	{
 		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
-		synchronized(this.entries)
-		{ 
-			this.entries.add(entry);
-		}
+		synchronized(this)
+		{ this.publish(entry); }
 	}
 
 	public void insert(int dstIp, int gwIp, int maskIp, Iface iface, int cost) {
 		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
+		entry.setCost(cost);
+		// not directly reachble via router's interface
+		entry.setExpires(gwIp != 0);
 
-		synchronized (this.entries){
-			entry.setCost(cost);
-			entry.setParent(this);
-			this.entries.add(entry);
-			if (gwIp != 0){ // not directly reachble via router's interface
-				entry.start();
-			}
+		synchronized (this){
+			this.publish(entry);
 		}
 	}
 
@@ -186,11 +192,31 @@ public class RouteTable
 	 */
 	public boolean remove(int dstIp, int maskIp)
 	{ 
-		synchronized(this.entries)
+		synchronized(this)
 		{
-			RouteEntry entry = this.find(dstIp, maskIp);
+			RouteEntry entry = this.trie.find(dstIp, maskIp);
 			if (null == entry) { return false; }
-			this.entries.remove(entry);
+			this.trie = this.trie.remove(dstIp, maskIp);
+			this.generation++;
+		}
+		return true;
+	}
+
+	/**
+	 * Remove a specific entry from the route table, unless it has already 
+	 * been replaced by a newer entry for the same prefix.
+	 * @param entry the entry to remove
+	 * @return true if the entry was found and removed, otherwise false
+	 */
+	private boolean remove(RouteEntry entry)
+	{
+		synchronized(this)
+		{
+			int dstIp = entry.getDestinationAddress();
+			int maskIp = entry.getMaskAddress();
+			if (this.trie.find(dstIp, maskIp) != entry) { return false; }
+			this.trie = this.trie.remove(dstIp, maskIp);
+			this.generation++;
 		}
 		return true;
 	}
@@ -205,67 +231,109 @@ public class RouteTable
 	 */
 	public boolean update(int dstIp, int maskIp, int gwIp, Iface iface)
 	{
-		synchronized(this.entries)
+		synchronized(this)
 		{
-			RouteEntry entry = this.find(dstIp, maskIp);
+			RouteEntry entry = this.trie.find(dstIp, maskIp);
 			if (null == entry) { return false; }
-			entry.setGatewayAddress(gwIp);
-			entry.setInterface(iface);
+			this.update(entry, gwIp, iface, entry.getCost(), entry.expires());
 		}
 		return true;
 	}
 
 	public boolean update(int dstIp, int maskIp, int gwIp, Iface iface, int cost){
-		synchronized (this.entries){
-			RouteEntry entry = this.find(dstIp, maskIp);
+		synchronized (this){
+			RouteEntry entry = this.trie.find(dstIp, maskIp);
 			if (entry == null) {
 				return false;
 			}
-			if (gwIp != 0){
-				entry.reset();
-			}
-			entry.setGatewayAddress(gwIp);
-			entry.setInterface(iface);
-			entry.setCost(cost);
+			this.update(entry, gwIp, iface, cost, gwIp != 0);
 		}
 		return true;
 	}
 
+	/**
+	 * @return number of times the route table has changed; results derived
+	 *         from the table are stale once this changes
+	 */
+	public long getGeneration()
+	{ return this.generation; }
+
+	/**
+	 * @return an unmodifiable snapshot of the entries in the route table
+	 */
 	public List<RouteEntry> getEntries() {
-		return entries;
+		return this.trie.entries();
 	}
 
 	/**
-	 * Find an entry in the route table.
-	 * @param dstIP destination IP of the entry to find
-	 * @param maskIp subnet mask of the entry to find
-	 * @return a matching entry if one was found, otherwise null
+	 * Replace an entry with an updated copy, so readers holding the old entry 
+	 * never see a partially updated one; the caller must hold the lock.
+	 * @param entry the entry to replace
+	 * @param gwIp new gateway IP address
+	 * @param iface new router interface
+	 * @param cost new cost
+	 * @param expires whether the updated entry times out, starting now
 	 */
-	private RouteEntry find(int dstIp, int maskIp)
+	private void update(RouteEntry entry, int gwIp, Iface iface, int cost,
+			boolean expires)
 	{
-		synchronized(this.entries)
+		RouteEntry replacement = new RouteEntry(entry.getDestinationAddress(),
+				gwIp, entry.getMaskAddress(), iface);
+		replacement.setCost(cost);
+		replacement.setExpires(expires);
+		this.publish(replacement);
+	}
+
+	/**
+	 * Publish a new version of the route table containing an entry, replacing
+	 * any entry for the same prefix; the caller must hold the lock.
+	 * @param entry the entry to add
+	 */
+	private void publish(RouteEntry entry)
+	{
+		this.trie = this.trie.insert(entry);
+		this.generation++;
+		if (entry.expires() && null == this.timeoutThread)
 		{
-			for (RouteEntry entry : this.entries)
+			this.timeoutThread = new Thread(this, "RouteTable timeout");
+			this.timeoutThread.setDaemon(true);
+			this.timeoutThread.start();
+		}
+	}
+
+	/**
+	 * Every second: timeout route table entries learned from RIP.
+	 */
+	public void run()
+	{
+		while (true)
+		{
+			// Run every second
+			try 
+			{ Thread.sleep(1000); }
+			catch (InterruptedException e) 
+			{ break; }
+
+			// Timeout entries
+			long now = System.currentTimeMillis();
+			for (RouteEntry entry : this.getEntries())
 			{
-				if ((entry.getDestinationAddress() == dstIp)
-					&& (entry.getMaskAddress() == maskIp)) 
-				{ return entry; }
+				if (entry.expires() 
+						&& (now - entry.getTimeUpdated()) > TIMEOUT)
+				{ this.remove(entry); }
 			}
 		}
-		return null;
 	}
 
 	public String toString()
 	{
-		synchronized(this.entries)
-		{ 
-			if (0 == this.entries.size())
-			{ return " WARNING: route table empty"; }
-
-			String result = "Destination\tGateway\t\tMask\t\tIface\t\tCost\n";
-			for (RouteEntry entry : entries)
-			{ result += entry.toString()+"\n"; }
-			return result;
-		}
+		List<RouteEntry> entries = this.getEntries();
+		if (0 == entries.size())
+		{ return " WARNING: route table empty"; }
+
+		String result = "Destination\tGateway\t\tMask\t\tIface\t\tCost\n";
+		for (RouteEntry entry : entries)
+		{ result += entry.toString()+"\n"; }
+		return result;
 	}
 }
@@ -0,0 +1,277 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable path-compressed binary (Patricia) trie of route entries, keyed
+ * by destination prefix. Lookups visit at most one node per prefix length,
+ * so their cost is bounded by 32 regardless of the number of routes.
+ * Updates copy only the nodes on the path to the changed prefix and return
+ * a new trie, leaving this one untouched for concurrent readers.
+ */
+class RouteTrie
+{
+	/** A node in the trie; holds a route entry if the prefix is a route */
+	private static class Node
+	{
+		/** Prefix bits covered by this node; bits past length are zero */
+		final int prefix;
+
+		/** Number of significant bits in prefix */
+		final int length;
+
+		/** Route entry for this exact prefix; null for branch-only nodes */
+		final RouteEntry entry;
+
+		/** Children for the next bit being 0 or 1, respectively */
+		final Node zero, one;
+
+		Node(int prefix, int length, RouteEntry entry, Node zero, Node one)
+		{
+			this.prefix = prefix;
+			this.length = length;
+			this.entry = entry;
+			this.zero = zero;
+			this.one = one;
+		}
+
+		Node child(int bit)
+		{ return (0 == bit) ? this.zero : this.one; }
+
+		Node withChild(int bit, Node child)
+		{
+			if (0 == bit)
+			{ return new Node(prefix, length, entry, child, one); }
+			return new Node(prefix, length, entry, zero, child);
+		}
+
+		Node withEntry(RouteEntry entry)
+		{ return new Node(prefix, length, entry, zero, one); }
+	}
+
+	/** An empty trie */
+	static final RouteTrie EMPTY = new RouteTrie(new Node(0, 0, null, null,
+			null), 0);
+
+	/** Root of the trie, which always covers the zero-length prefix */
+	private final Node root;
+
+	/** Number of route entries in the trie */
+	private final int size;
+
+	/** Entries in the trie, in prefix order; built on first use */
+	private volatile List<RouteEntry> entries;
+
+	private RouteTrie(Node root, int size)
+	{
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * @return number of route entries in the trie
+	 */
+	int size()
+	{ return this.size; }
+
+	/**
+	 * @return an unmodifiable list of the entries in the trie, in prefix order
+	 */
+	List<RouteEntry> entries()
+	{
+		List<RouteEntry> result = this.entries;
+		if (null == result)
+		{
+			List<RouteEntry> list = new ArrayList<RouteEntry>(this.size);
+			collect(this.root, list);
+			result = Collections.unmodifiableList(list);
+			this.entries = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Convert a subnet mask to a prefix length.
+	 * @param maskIp subnet mask
+	 * @return number of leading one bits in the mask
+	 */
+	static int prefixLength(int maskIp)
+	{ return Integer.numberOfLeadingZeros(~maskIp); }
+
+	/**
+	 * Find the route entry with the longest prefix matching an IP address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	RouteEntry lookup(int ip)
+	{
+		RouteEntry bestMatch = null;
+		Node node = this.root;
+		while (node != null && matches(ip, node.prefix, node.length))
+		{
+			if (node.entry != null)
+			{ bestMatch = node.entry; }
+			if (32 == node.length)
+			{ break; }
+			node = node.child(bit(ip, node.length));
+		}
+		return bestMatch;
+	}
+
+	/**
+	 * Find the route entry for an exact prefix.
+	 * @param dstIp destination IP of the entry to find
+	 * @param maskIp subnet mask of the entry to find
+	 * @return a matching entry if one was found, otherwise null
+	 */
+	RouteEntry find(int dstIp, int maskIp)
+	{
+		int length = prefixLength(maskIp);
+		int prefix = dstIp & maskIp;
+		Node node = this.root;
+		while (node != null && node.length < length
+				&& matches(prefix, node.prefix, node.length))
+		{ node = node.child(bit(prefix, node.length)); }
+
+		if (node != null && node.length == length && node.prefix == prefix)
+		{ return node.entry; }
+		return null;
+	}
+
+	/**
+	 * Add or replace the route entry for the entry's prefix.
+	 * @param entry the route entry to add
+	 * @return a trie containing the entry
+	 */
+	RouteTrie insert(RouteEntry entry)
+	{
+		int length = prefixLength(entry.getMaskAddress());
+		int prefix = entry.getDestinationAddress() & entry.getMaskAddress();
+		int size = this.size;
+		if (null == this.find(prefix, entry.getMaskAddress()))
+		{ size++; }
+		return new RouteTrie(insert(this.root, prefix, length, entry), size);
+	}
+
+	/**
+	 * Remove the route entry for an exact prefix.
+	 * @param dstIp destination IP of the entry to remove
+	 * @param maskIp subnet mask of the entry to remove
+	 * @return a trie without the entry; this trie if there was no such entry
+	 */
+	RouteTrie remove(int dstIp, int maskIp)
+	{
+		if (null == this.find(dstIp, maskIp))
+		{ return this; }
+		int length = prefixLength(maskIp);
+		int prefix = dstIp & maskIp;
+		return new RouteTrie(remove(this.root, prefix, length), this.size - 1);
+	}
+
+	/**
+	 * Copy the path from a node to a prefix, setting the prefix's entry.
+	 * @param node a node whose prefix covers the prefix being inserted
+	 * @return the copy of node
+	 */
+	private static Node insert(Node node, int prefix, int length,
+			RouteEntry entry)
+	{
+		if (node.length == length)
+		{ return node.withEntry(entry); }
+
+		int branch = bit(prefix, node.length);
+		Node child = node.child(branch);
+		if (null == child)
+		{
+			return node.withChild(branch,
+					new Node(prefix, length, entry, null, null));
+		}
+
+		int common = Math.min(Math.min(length, child.length),
+				commonLength(prefix, child.prefix));
+		if (common == child.length)
+		{ return node.withChild(branch, insert(child, prefix, length, entry)); }
+
+		// The new prefix diverges from the child part way along its path,
+		// so split the path at the last bit they have in common
+		Node split;
+		if (common == length)
+		{ split = new Node(prefix, length, entry, null, null); }
+		else
+		{
+			split = new Node(prefix & mask(common), common, null, null, null);
+			split = split.withChild(bit(prefix, common),
+					new Node(prefix, length, entry, null, null));
+		}
+		split = split.withChild(bit(child.prefix, common), child);
+		return node.withChild(branch, split);
+	}
+
+	/**
+	 * Copy the path from a node to a prefix, clearing the prefix's entry and
+	 * collapsing nodes that no longer hold an entry or separate two paths.
+	 * @param node a node whose prefix covers the prefix being removed
+	 * @return the copy of node; null if it is no longer needed
+	 */
+	private static Node remove(Node node, int prefix, int length)
+	{
+		Node copy;
+		if (node.length == length)
+		{ copy = node.withEntry(null); }
+		else
+		{
+			int branch = bit(prefix, node.length);
+			copy = node.withChild(branch,
+					remove(node.child(branch), prefix, length));
+		}
+
+		// The root always stays, even when empty
+		if (copy.entry != null || 0 == copy.length)
+		{ return copy; }
+		if (null == copy.zero)
+		{ return copy.one; }
+		if (null == copy.one)
+		{ return copy.zero; }
+		return copy;
+	}
+
+	/**
+	 * Append the entries below a node to a list, in prefix order.
+	 */
+	private static void collect(Node node, List<RouteEntry> list)
+	{
+		if (null == node)
+		{ return; }
+		if (node.entry != null)
+		{ list.add(node.entry); }
+		collect(node.zero, list);
+		collect(node.one, list);
+	}
+
+	/**
+	 * @return true if the first length bits of ip equal those of prefix
+	 */
+	private static boolean matches(int ip, int prefix, int length)
+	{ return ((ip ^ prefix) & mask(length)) == 0; }
+
+	/**
+	 * @return the subnet mask with the given prefix length
+	 */
+	private static int mask(int length)
+	{ return (0 == length) ? 0 : (-1 << (32 - length)); }
+
+	/**
+	 * @return the bit of ip at the given index, counting from the most
+	 *         significant bit
+	 */
+	private static int bit(int ip, int index)
+	{ return (ip >>> (31 - index)) & 1; }
+
+	/**
+	 * @return the number of leading bits a and b have in common
+	 */
+	private static int commonLength(int a, int b)
+	{ return Integer.numberOfLeadingZeros(a ^ b); }
+}
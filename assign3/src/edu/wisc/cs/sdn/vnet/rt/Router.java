@@ -3,6 +3,8 @@ package edu.wisc.cs.sdn.vnet.rt;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.IfaceStats;
+import edu.wisc.cs.sdn.vnet.Log;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
@@ -16,15 +18,39 @@ import java.util.TimerTask;
  */
 public class Router extends Device
 {	
+	/** Multicast address to which RIP requests and responses are sent */
+	private static final int RIP_MULTICAST_ADDRESS = 
+			IPv4.toIPv4Address("224.0.0.9");
+
+	/** Maximum number of destinations in the flow cache */
+	private static final int FLOW_CACHE_SIZE = 1024;
+
+	/** Line logged above and below tables */
+	private static final String RULE =
+			"--------------------------------------------";
+
 	/** Routing table for the router */
 	private RouteTable routeTable;
 
 	/** ARP cache for the router */
 	private ArpCache arpCache;
 
+	/** Resolved forwarding decisions for recently seen destinations */
+	private FlowCache flowCache;
+
 	/** Timer for RIP response */
 	private Timer timer;
 
+	/** Whether to forward frames directly from their raw bytes when possible */
+	private boolean fastPath;
+
+	/** View of the frame being forwarded, one per thread handling frames */
+	private final ThreadLocal<EthernetView> frameViews =
+			new ThreadLocal<EthernetView>() {
+				protected EthernetView initialValue()
+				{ return new EthernetView(); }
+			};
+
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -33,7 +59,32 @@ public class Router extends Device
 	{
 		super(host,logfile);
 		this.routeTable = new RouteTable();
-		this.arpCache = new ArpCache();
+		this.arpCache = new ArpCache(this);
+		this.flowCache = new FlowCache(FLOW_CACHE_SIZE);
+		this.fastPath = false;
+	}
+
+	/**
+	 * @return cache of resolved forwarding decisions for the router
+	 */
+	public FlowCache getFlowCache()
+	{ return this.flowCache; }
+
+	/**
+	 * @param fastPath whether to forward frames directly from their raw bytes
+	 *        when possible, instead of decoding every frame
+	 */
+	public void setFastPath(boolean fastPath)
+	{ this.fastPath = fastPath; }
+
+	/**
+	 * Stop sending RIP responses, and close the PCAP dump file.
+	 */
+	public void destroy()
+	{
+		if (this.timer != null)
+		{ this.timer.cancel(); }
+		super.destroy();
 	}
 
 	/**
@@ -50,15 +101,13 @@ public class Router extends Device
 	{
 		if (!routeTable.load(routeTableFile, this))
 		{
-			System.err.println("Error setting up routing table from file "
-					+ routeTableFile);
+			Log.error("Error setting up routing table from file %s",
+					routeTableFile);
 			System.exit(1);
 		}
 
-		System.out.println("Loaded static route table");
-		System.out.println("-------------------------------------------------");
-		System.out.print(this.routeTable.toString());
-		System.out.println("-------------------------------------------------");
+		Log.info("Loaded static route table\n%s\n%s%s", RULE,
+				this.routeTable.toString(), RULE);
 	}
 
 	/**
@@ -69,15 +118,13 @@ public class Router extends Device
 	{
 		if (!arpCache.load(arpCacheFile))
 		{
-			System.err.println("Error setting up ARP cache from file "
-					+ arpCacheFile);
+			Log.error("Error setting up ARP cache from file %s",
+					arpCacheFile);
 			System.exit(1);
 		}
 
-		System.out.println("Loaded static ARP cache");
-		System.out.println("----------------------------------");
-		System.out.print(this.arpCache.toString());
-		System.out.println("----------------------------------");
+		Log.info("Loaded static ARP cache\n%s\n%s%s", RULE,
+				this.arpCache.toString(), RULE);
 	}
 
 	/**
@@ -98,12 +145,186 @@ public class Router extends Device
 		case Ethernet.TYPE_IPv4:
 			this.handleIpPacket(etherPacket, inIface);
 			break;
+		case Ethernet.TYPE_ARP:
+			this.handleArpPacket(etherPacket, inIface);
+			break;
 		// Ignore all other packet types, for now
 		}
 
 		/********************************************************************/
 	}
 
+	/**
+	 * Forward an IPv4 frame by rewriting its raw bytes in place. Frames that
+	 * need an ICMP message, carry RIP, or are addressed to the router are 
+	 * left to the decoding path.
+	 * @param frame buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was forwarded or dropped, false if it must
+	 *         be decoded and passed to handlePacket
+	 */
+	public boolean handleRawPacket(byte[] frame, int offset, int length,
+			Iface inIface)
+	{
+		if (!this.fastPath || null == inIface)
+		{ return false; }
+
+		// Only untagged IPv4 frames with a complete header
+		EthernetView eth = this.frameViews.get();
+		if (null == eth.wrap(frame, offset, length) || eth.isTagged())
+		{ return false; }
+		IPv4View ip = eth.getIPv4();
+		if (null == ip)
+		{ return false; }
+
+		// Drop packets with a bad checksum, as the decoding path does
+		if (!ip.isChecksumValid())
+		{
+			inIface.getStats().dropped(IfaceStats.Drop.CHECKSUM);
+			return true;
+		}
+
+		// Expiring packets need an ICMP time exceeded message
+		if ((ip.getTtl() & 0xff) <= 1)
+		{ return false; }
+
+		// RIP and packets destined for one of router's interfaces
+		int dstAddr = ip.getDestinationAddress();
+		if (RIP_MULTICAST_ADDRESS == dstAddr)
+		{ return false; }
+		for (int i = 0, n = this.getInterfaceCount(); i < n; i++)
+		{
+			if (dstAddr == this.getInterface(i).getIpAddress())
+			{ return false; }
+		}
+
+		// Unreachable destinations need an ICMP message
+		FlowCache.Flow flow = this.lookupFlow(dstAddr);
+		if (null == flow)
+		{ return false; }
+
+		// Make sure we don't sent a packet back out the interface it came in
+		Iface outIface = flow.getInterface();
+		if (outIface == inIface)
+		{ return true; }
+
+		// Rewrite MAC addresses, then TTL and checksum
+		eth.setDestinationMAC(flow.getDestinationMac());
+		eth.setSourceMAC(flow.getSourceMac());
+		ip.decrementTtl();
+
+		this.sendPacket(frame, offset, length, outIface);
+		return true;
+	}
+
+	private void handleArpPacket(Ethernet etherPacket, Iface inIface)
+	{
+		// Make sure it's an ARP packet for IPv4
+		if (etherPacket.getEtherType() != Ethernet.TYPE_ARP)
+		{ return; }
+		ARP arpPacket = (ARP)etherPacket.getPayload();
+		if (arpPacket.getProtocolType() != ARP.PROTO_TYPE_IP)
+		{ return; }
+
+		int senderIp = IPv4.toIPv4Address(arpPacket.getSenderProtocolAddress());
+		int targetIp = IPv4.toIPv4Address(arpPacket.getTargetProtocolAddress());
+		if (targetIp != inIface.getIpAddress())
+		{ return; }
+
+		// Learn the sender's MAC address, and send any packets waiting for it;
+		// probes from hosts without an address yet have sender IP 0
+		long senderMac = MACAddress.toLong(
+				arpPacket.getSenderHardwareAddress(), 0);
+		ArpRequest request = null;
+		if (senderIp != 0)
+		{ request = this.arpCache.learn(senderMac, senderIp); }
+		if (request != null)
+		{
+			Log.debug("Resolved %s, sending %d queued packets", 
+					IPv4.fromIPv4Address(senderIp), 
+					request.getPackets().size());
+			Iface outIface = request.getInterface();
+			for (ArpRequest.QueuedPacket packet : request.getPackets())
+			{
+				Ethernet queued = packet.getPacket();
+				queued.setSourceMAC(outIface.getMacAddress().toLong());
+				queued.setDestinationMAC(senderMac);
+				this.sendPacket(queued, outIface);
+			}
+		}
+
+		if (ARP.OP_REQUEST == arpPacket.getOpCode())
+		{ this.sendArpReply(etherPacket, arpPacket, inIface); }
+	}
+
+	/**
+	 * Broadcast an ARP request for an IP address.
+	 * @param ip IP address whose MAC address is desired
+	 * @param iface interface out which to send the request
+	 */
+	void sendArpRequest(int ip, Iface iface)
+	{
+		Ethernet ether = new Ethernet();
+		ARP arp = new ARP();
+		ether.setPayload(arp);
+
+		ether.setEtherType(Ethernet.TYPE_ARP);
+		ether.setSourceMACAddress(iface.getMacAddress().toBytes());
+		ether.setDestinationMACAddress("FF:FF:FF:FF:FF:FF");
+
+		arp.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		arp.setProtocolType(ARP.PROTO_TYPE_IP);
+		arp.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+		arp.setProtocolAddressLength((byte)4);
+		arp.setOpCode(ARP.OP_REQUEST);
+		arp.setSenderHardwareAddress(iface.getMacAddress().toBytes());
+		arp.setSenderProtocolAddress(iface.getIpAddress());
+		arp.setTargetHardwareAddress(
+				new byte[Ethernet.DATALAYER_ADDRESS_LENGTH]);
+		arp.setTargetProtocolAddress(ip);
+
+		this.sendPacket(ether, iface);
+	}
+
+	private void sendArpReply(Ethernet etherPacket, ARP arpPacket, 
+			Iface inIface)
+	{
+		Ethernet ether = new Ethernet();
+		ARP arp = new ARP();
+		ether.setPayload(arp);
+
+		ether.setEtherType(Ethernet.TYPE_ARP);
+		ether.setSourceMACAddress(inIface.getMacAddress().toBytes());
+		ether.setDestinationMACAddress(etherPacket.getSourceMACAddress());
+
+		arp.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		arp.setProtocolType(ARP.PROTO_TYPE_IP);
+		arp.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+		arp.setProtocolAddressLength((byte)4);
+		arp.setOpCode(ARP.OP_REPLY);
+		arp.setSenderHardwareAddress(inIface.getMacAddress().toBytes());
+		arp.setSenderProtocolAddress(inIface.getIpAddress());
+		arp.setTargetHardwareAddress(arpPacket.getSenderHardwareAddress());
+		arp.setTargetProtocolAddress(arpPacket.getSenderProtocolAddress());
+
+		this.sendPacket(ether, inIface);
+	}
+
+	/**
+	 * Send an ICMP destination host unreachable message for a packet whose
+	 * next hop could not be resolved.
+	 * @param etherPacket the packet that could not be forwarded
+	 * @param inIface the interface on which the packet was received
+	 */
+	void sendHostUnreachable(Ethernet etherPacket, Iface inIface)
+	{
+		inIface.getStats().dropped(IfaceStats.Drop.NO_ARP);
+		sendICMPmsg((byte)3, (byte)1, etherPacket, inIface, 
+				(IPv4)etherPacket.getPayload());
+	}
+
 	private void handleIpPacket(Ethernet etherPacket, Iface inIface)
 	{
 		// Make sure it's an IP packet
@@ -112,41 +333,37 @@ public class Router extends Device
 
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
-		System.out.println("Handle IP packet");
+		Log.debug("Handle IP packet");
 
 		// Verify checksum
-		short origCksum = ipPacket.getChecksum();
-		ipPacket.resetChecksum();
-		byte[] serialized = ipPacket.serialize();
-		ipPacket.deserialize(serialized, 0, serialized.length);
-		short calcCksum = ipPacket.getChecksum();
-		if (origCksum != calcCksum)
-		{ return; }
+		if (!ipPacket.isChecksumValid())
+		{
+			inIface.getStats().dropped(IfaceStats.Drop.CHECKSUM);
+			return;
+		}
 
-		// Check TTL
-		ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
+		// Check TTL; the checksum is patched for the new TTL
+		ipPacket.decrementTtl();
 		if (0 == ipPacket.getTtl())
 		{
+			inIface.getStats().dropped(IfaceStats.Drop.TTL);
 			// generate an ICMP time exceed message here
 			sendICMPmsg((byte)11, (byte)0, etherPacket, inIface, ipPacket);
 			return;
 		}
 
 		// check if the ip packet contains rip
-		if (ipPacket.getDestinationAddress() == IPv4.toIPv4Address("224.0.0.9")) {
+		if (ipPacket.getDestinationAddress() == RIP_MULTICAST_ADDRESS) {
 			if (ipPacket.getProtocol() == IPv4.PROTOCOL_UDP) {
-				System.out.println("This one contains RIP!");
+				Log.debug("This one contains RIP!");
 				UDP udpPacket = (UDP) ipPacket.getPayload();
 				if (udpPacket.getDestinationPort() == UDP.RIP_PORT) {
 					// this packet is RIP requests or responses
-					System.out.println("Handle RIP packet.");
+					Log.debug("Handle RIP packet.");
 					handleRIPpacket(etherPacket, inIface);
 				}
 			}
 		}
-		// Reset checksum now that TTL is decremented
-		ipPacket.resetChecksum();
-
 		// Check if packet is destined for one of router's interfaces
 		for (Iface iface : this.interfaces.values())
 		{
@@ -161,7 +378,7 @@ public class Router extends Device
 					UDP udpPacket = (UDP)ipPacket.getPayload();
 					if (udpPacket.getDestinationPort() == UDP.RIP_PORT){
 						// this packet is RIP requests or responses
-						System.out.println("Handle RIP packet.");
+						Log.debug("Handle RIP packet.");
 						handleRIPpacket(etherPacket, inIface);
 					} else{
 						sendICMPmsg((byte)3, (byte)3, etherPacket, inIface, ipPacket);
@@ -172,7 +389,7 @@ public class Router extends Device
 					ICMP icmpPacket = (ICMP)ipPacket.getPayload();
 					if (icmpPacket.getIcmpType() == (byte)8){
 						// construct and send an echo reply message
-						System.out.println("Send an echo reply message here");
+						Log.debug("Send an echo reply message here");
 						// check if the destination ip of the echo request match any ip of router's interfaces
 						// no need to check, already in the outer if statement
 						sendICMPmsg((byte)0, (byte)0, etherPacket, inIface, ipPacket);
@@ -193,19 +410,40 @@ public class Router extends Device
 		// Make sure it's an IP packet
 		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4)
 		{ return; }
-		System.out.println("Forward IP packet");
+		Log.debug("Forward IP packet");
 
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
 		int dstAddr = ipPacket.getDestinationAddress();
 
-		// Find matching route table entry 
-		RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
+		// Use the cached forwarding decision for the destination, if any;
+		// otherwise keep the route, so a miss below does not look it up again
+		long routeGeneration = this.routeTable.getGeneration();
+		long arpGeneration = this.arpCache.getGeneration();
+		FlowCache.Flow flow = this.flowCache.lookup(dstAddr, routeGeneration,
+				arpGeneration);
+		RouteEntry bestMatch = null;
+		if (null == flow)
+		{
+			bestMatch = this.routeTable.lookup(dstAddr);
+			flow = this.resolveFlow(dstAddr, bestMatch, routeGeneration,
+					arpGeneration);
+		}
+		if (flow != null)
+		{
+			if (flow.getInterface() == inIface)
+			{ return; }
+			etherPacket.setSourceMAC(flow.getSourceMac());
+			etherPacket.setDestinationMAC(flow.getDestinationMac());
+			this.sendPacket(etherPacket, flow.getInterface());
+			return;
+		}
 
 		// If no entry matched, do nothing
 		if (null == bestMatch)
 		{
 			// Destination network unreachable ICMP
+			inIface.getStats().dropped(IfaceStats.Drop.NO_ROUTE);
 			sendICMPmsg((byte)3, (byte)0, etherPacket, inIface, ipPacket);
 			return;
 		}
@@ -218,26 +456,80 @@ public class Router extends Device
 		}
 
 		// Set source MAC address in Ethernet header
-		etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
+		etherPacket.setSourceMAC(outIface.getMacAddress().toLong());
 
 		// If no gateway, then nextHop is IP destination
 		int nextHop = bestMatch.getGatewayAddress();
 		if (0 == nextHop)
 		{ nextHop = dstAddr; }
 
-		// Set destination MAC address in Ethernet header
-		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
-		if (null == arpEntry)
+		// The next hop had no ARP entry when the flow was resolved, so wait
+		// for it to be resolved; the cache sends a destination host
+		// unreachable icmp if it never is
+		if (this.arpCache.enqueue(nextHop, outIface, etherPacket, inIface))
+		{ return; }
+
+		// Either the queue is full, or the next hop was just resolved
+		long dstMac = this.arpCache.getMac(nextHop);
+		if (ArpCache.NO_MAC == dstMac)
 		{
-			// destination host unreachable icmp
-			sendICMPmsg((byte)3, (byte)1, etherPacket, inIface, ipPacket);
+			inIface.getStats().dropped(IfaceStats.Drop.QUEUE_FULL);
 			return;
 		}
-		etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
+		etherPacket.setDestinationMAC(dstMac);
 
 		this.sendPacket(etherPacket, outIface);
 	}
 
+	/**
+	 * Resolve the output interface and MAC addresses for a destination, 
+	 * using the flow cache when it is current.
+	 * @param dstAddr destination IP address
+	 * @return the resolved flow; null if there is no route or ARP entry
+	 */
+	private FlowCache.Flow lookupFlow(int dstAddr)
+	{
+		// Read generations first, so a flow resolved against a table that
+		// changes meanwhile is cached under the older generation
+		long routeGeneration = this.routeTable.getGeneration();
+		long arpGeneration = this.arpCache.getGeneration();
+		FlowCache.Flow flow = this.flowCache.lookup(dstAddr, routeGeneration, 
+				arpGeneration);
+		if (flow != null)
+		{ return flow; }
+		return this.resolveFlow(dstAddr, this.routeTable.lookup(dstAddr),
+				routeGeneration, arpGeneration);
+	}
+
+	/**
+	 * Resolve the forwarding decision for a destination from its route, and
+	 * cache it.
+	 * @param dstAddr destination IP address
+	 * @param bestMatch route for the destination; null if there is none
+	 * @param routeGeneration route table generation read before the lookup
+	 * @param arpGeneration ARP cache generation read before the lookup
+	 * @return the resolved flow; null if there is no route or ARP entry
+	 */
+	private FlowCache.Flow resolveFlow(int dstAddr, RouteEntry bestMatch,
+			long routeGeneration, long arpGeneration)
+	{
+		if (null == bestMatch)
+		{ return null; }
+		int nextHop = bestMatch.getGatewayAddress();
+		if (0 == nextHop)
+		{ nextHop = dstAddr; }
+		long dstMac = this.arpCache.getMac(nextHop);
+		if (ArpCache.NO_MAC == dstMac)
+		{ return null; }
+
+		Iface outIface = bestMatch.getInterface();
+		FlowCache.Flow flow = new FlowCache.Flow(dstAddr, outIface, dstMac,
+				outIface.getMacAddress().toLong(), routeGeneration, 
+				arpGeneration);
+		this.flowCache.insert(flow);
+		return flow;
+	}
+
 	private void sendICMPmsg(byte type, byte code, Ethernet etherPacket, Iface inIface, IPv4 ipPacket)
 	{
 		Ethernet ether = new Ethernet();
@@ -263,11 +555,11 @@ public class Router extends Device
 			{ nextHop = sourceAddress; }
 
 			// Set destination MAC address in Ethernet header
-			ArpEntry arpEntry = this.arpCache.lookup(nextHop);
-			if (null == arpEntry){
-				ether.setDestinationMACAddress(etherPacket.getSourceMAC().toBytes());
+			long dstMac = this.arpCache.getMac(nextHop);
+			if (ArpCache.NO_MAC == dstMac){
+				ether.setDestinationMAC(etherPacket.getSourceMACLong());
 			} else{
-				ether.setDestinationMACAddress(arpEntry.getMac().toBytes());
+				ether.setDestinationMAC(dstMac);
 			}
 		}
 
@@ -308,9 +600,9 @@ public class Router extends Device
 			data.setData(icmpPayload);
 		}
 
-		System.out.println("ICMP packet type: " + type + " code: " + code + " ready!" );
+		Log.debug("ICMP packet type: %d code: %d ready!", type, code);
 		sendPacket(ether, inIface);
-		System.out.println("ICMP packet sent");
+		Log.debug("ICMP packet sent");
 	}
 
 	public void initializeRouteTable() {
@@ -321,10 +613,8 @@ public class Router extends Device
 			// int destinationAddr, int gatewayAddr, int maskAddr, Iface iface, int cost
 			this.routeTable.insert(destination, 0, subnetMask, iface, 1);
 		}
-		System.out.println("Create static route table");
-		System.out.println("--------------------------------------------");
-		System.out.println(this.routeTable.toString());
-		System.out.println("--------------------------------------------");
+		Log.info("Create static route table\n%s\n%s%s", RULE,
+				this.routeTable.toString(), RULE);
 
 		// send initial RIP out all of router's interfaces
 		for (Iface iface: this.interfaces.values()){
@@ -344,7 +634,7 @@ public class Router extends Device
 
 		// set ethernet header
 		ether.setEtherType(Ethernet.TYPE_IPv4);
-        ether.setSourceMACAddress("FF:FF:FF:FF:FF:FF");
+		ether.setSourceMACAddress(iface.getMacAddress().toBytes());
 		if (broadcast == true){
 			ether.setDestinationMACAddress("FF:FF:FF:FF:FF:FF");
 		} else{
@@ -385,7 +675,6 @@ public class Router extends Device
 		udpPacket.setPayload(rip);
 		ipPacket.setPayload(udpPacket);
 		ether.setPayload(ipPacket);
-		ether.serialize();
 		sendPacket(ether, iface);
 		return;
 
@@ -417,51 +706,57 @@ public class Router extends Device
 
 		RIPv2 rip = (RIPv2)udpPacket.getPayload();
 		if (rip.getCommand() == RIPv2.COMMAND_RESPONSE){
-			System.out.println("Get a RIP Response Command");
-			// send a solicited RIP response
+			Log.debug("Get a RIP Response Command");
+			boolean changed = false;
 			for (RIPv2Entry riPv2Entry: rip.getEntries()) {
 				int cost = riPv2Entry.getMetric() + 1;
 				if (cost >= 16) {
-					System.out.println("Metric larger than 15, DROP!");
+					Log.debug("Metric larger than 15, DROP!");
 					return;
 				}
 				riPv2Entry.setMetric(cost);
 
-				RouteEntry found = this.routeTable.lookup(riPv2Entry.getAddress());
-				if (found == null || found.getCost() > cost){
-					if (found != null) {
-						System.out.println("Updating this entry into route table: " + riPv2Entry);
-						System.out.println("Find a better metric from: " + found.getCost() + " to: " + cost);
-						this.routeTable.update(riPv2Entry.getAddress(), riPv2Entry.getSubnetMask(),
-								riPv2Entry.getNextHopAddress(), inIface, cost);
-
-						System.out.println("Updated static route table");
-						System.out.println("--------------------------------------------");
-						System.out.println(this.routeTable.toString());
-						System.out.println("--------------------------------------------");
-
+				RouteEntry found = this.routeTable.find(riPv2Entry.getAddress(),
+						riPv2Entry.getSubnetMask());
+				if (found != null && found.getCost() == cost
+						&& found.getGatewayAddress() == riPv2Entry.getNextHopAddress()
+						&& found.getInterface() == inIface) {
+					// the same neighbor still offers this route, so keep it from
+					// timing out without publishing a new table
+					found.touch(System.currentTimeMillis());
+				}
+				else if (found == null || found.getCost() > cost){
+					changed = true;
+					if (found != null && this.routeTable.update(riPv2Entry.getAddress(),
+							riPv2Entry.getSubnetMask(), riPv2Entry.getNextHopAddress(),
+							inIface, cost)) {
+						Log.debug("Updating this entry into route table: %s", riPv2Entry);
+						Log.debug("Find a better metric from: %d to: %d", found.getCost(), cost);
 					} else {
-						System.out.println("Insert a new entry into route table: " + riPv2Entry);
+						Log.debug("Insert a new entry into route table: %s", riPv2Entry);
 						this.routeTable.insert(riPv2Entry.getAddress(), riPv2Entry.getNextHopAddress(),
 								riPv2Entry.getSubnetMask(), inIface, cost);
-
-						System.out.println("Inserted static route table");
-						System.out.println("--------------------------------------------");
-						System.out.println(this.routeTable.toString());
-						System.out.println("--------------------------------------------");
 					}
+				}
+			}
 
-					for (Iface iface: this.interfaces.values()){
-						// solicited RIP response
-						System.out.println("Send solicited RIP response");
-						this.sendRIP(iface, false, false);
-					}
+			if (changed) {
+				// print the table once per update, only if it will be shown
+				if (Log.isEnabled(Log.Level.DEBUG)) {
+					Log.debug("Updated static route table\n%s\n%s%s", RULE,
+							this.routeTable.toString(), RULE);
+				}
+
+				// triggered RIP response, to the RIP address so neighbors handle it
+				for (Iface iface: this.interfaces.values()){
+					Log.debug("Send solicited RIP response");
+					this.sendRIP(iface, true, false);
 				}
 			}
 		} else if(rip.getCommand() == RIPv2.COMMAND_REQUEST){
-			System.out.println("Get a RIP request Command");
+			Log.debug("Get a RIP request Command");
 			// send a unsolicited RIP response
-			System.out.println("Send unsolicited RIP response");
+			Log.debug("Send unsolicited RIP response");
 			this.sendRIP(inIface, true, false);
 			return;
 		}
@@ -471,13 +766,13 @@ public class Router extends Device
 	public void timeToResponse(){
 		for (Iface iface: this.interfaces.values()){
 			// unsolicited RIP response
-			System.out.println("Send unsolicited RIP response");
+			Log.debug("Send unsolicited RIP response");
 			this.sendRIP(iface, true, false);
 		}
-		System.out.println("Static route table after response");
-		System.out.println("--------------------------------------------");
-		System.out.println(this.routeTable.toString());
-		System.out.println("--------------------------------------------");
+		if (Log.isEnabled(Log.Level.DEBUG)) {
+			Log.debug("Static route table after response\n%s\n%s%s", RULE,
+					this.routeTable.toString(), RULE);
+		}
 	}
 
 	class updateRIP extends TimerTask{
@@ -0,0 +1,303 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.UDP;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A synthetic host with one interface. It answers ARP requests and pings,
+ * resolves next hops with ARP, and injects UDP datagrams and pings into the
+ * network, counting what it receives.
+ */
+public class SimHost extends Device
+{
+	private static final byte ICMP_ECHO_REPLY = 0;
+	private static final byte ICMP_ECHO_REQUEST = 8;
+
+	/** Length of a ping's payload: an 8-byte send time */
+	private static final int PING_LENGTH = 8;
+
+	private final Iface iface;
+
+	/** Default gateway; 0 if there is none */
+	private final int gateway;
+
+	/** MAC addresses learned from ARP replies, by IP address */
+	private final Map<Integer,MACAddress> arpTable;
+
+	/** Packets waiting for a next hop's MAC address, by IP address */
+	private final Map<Integer,List<Ethernet>> pending;
+
+	private long udpReceived;
+	private long udpBytesReceived;
+	private long pingsReceived;
+	private long pingNanos;
+	private long lastReceived;
+
+	/**
+	 * Create a host.
+	 * @param host hostname for the host
+	 * @param iface the host's only interface, with addresses set
+	 * @param gateway IP address of the default gateway; 0 if there is none
+	 */
+	public SimHost(String host, Iface iface, int gateway)
+	{
+		super(host, null);
+		this.iface = this.addInterface(iface);
+		this.gateway = gateway;
+		this.arpTable = new HashMap<Integer,MACAddress>();
+		this.pending = new HashMap<Integer,List<Ethernet>>();
+	}
+
+	public Iface getIface()
+	{ return this.iface; }
+
+	/**
+	 * Send a UDP datagram.
+	 * @param dstIp destination IP address
+	 * @param srcPort source port
+	 * @param dstPort destination port
+	 * @param payload payload of the datagram
+	 */
+	public synchronized void sendUdp(int dstIp, short srcPort, short dstPort,
+			byte[] payload)
+	{
+		UDP udp = new UDP();
+		udp.setSourcePort(srcPort);
+		udp.setDestinationPort(dstPort);
+		udp.setPayload(new Data(payload));
+		this.sendIp(dstIp, IPv4.PROTOCOL_UDP, udp);
+	}
+
+	/**
+	 * Send an ICMP echo request.
+	 * @param dstIp destination IP address
+	 */
+	public synchronized void ping(int dstIp)
+	{
+		this.sendIp(dstIp, IPv4.PROTOCOL_ICMP, echo(ICMP_ECHO_REQUEST,
+				ByteBuffer.allocate(PING_LENGTH).putLong(System.nanoTime())
+				.array()));
+	}
+
+	/**
+	 * @return number of UDP datagrams received
+	 */
+	public synchronized long getUdpReceived()
+	{ return this.udpReceived; }
+
+	/**
+	 * @return number of echo replies received
+	 */
+	public synchronized long getPingsReceived()
+	{ return this.pingsReceived; }
+
+	/**
+	 * @return mean round trip time (in nanoseconds) of the echo replies
+	 *         received; 0 if there are none
+	 */
+	public synchronized long getMeanPingNanos()
+	{
+		if (0 == this.pingsReceived)
+		{ return 0; }
+		return this.pingNanos / this.pingsReceived;
+	}
+
+	/**
+	 * @return time (from System.nanoTime) the last UDP datagram or echo
+	 *         reply was received
+	 */
+	public synchronized long getLastReceived()
+	{ return this.lastReceived; }
+
+	/**
+	 * Reset the counts of what has been received.
+	 */
+	public synchronized void resetCounts()
+	{
+		this.udpReceived = 0;
+		this.udpBytesReceived = 0;
+		this.pingsReceived = 0;
+		this.pingNanos = 0;
+	}
+
+	public synchronized void handlePacket(Ethernet etherPacket, Iface inIface)
+	{
+		if (!etherPacket.isBroadcast() && !etherPacket.getDestinationMAC()
+				.equals(this.iface.getMacAddress()))
+		{ return; }
+
+		switch (etherPacket.getEtherType())
+		{
+		case Ethernet.TYPE_ARP:
+			this.handleArpPacket(etherPacket, (ARP)etherPacket.getPayload());
+			break;
+		case Ethernet.TYPE_IPv4:
+			this.handleIpPacket((IPv4)etherPacket.getPayload());
+			break;
+		}
+	}
+
+	private void handleArpPacket(Ethernet etherPacket, ARP arpPacket)
+	{
+		int senderIp = ByteBuffer.wrap(arpPacket.getSenderProtocolAddress())
+				.getInt();
+		int targetIp = ByteBuffer.wrap(arpPacket.getTargetProtocolAddress())
+				.getInt();
+		if (targetIp != this.iface.getIpAddress())
+		{ return; }
+
+		// Learn the sender, and send anything waiting for it
+		MACAddress mac = new MACAddress(arpPacket.getSenderHardwareAddress());
+		this.arpTable.put(senderIp, mac);
+		List<Ethernet> queued = this.pending.remove(senderIp);
+		if (queued != null)
+		{
+			for (Ethernet ether : queued)
+			{
+				ether.setDestinationMACAddress(mac.toBytes());
+				this.sendPacket(ether, this.iface);
+			}
+		}
+
+		if (ARP.OP_REQUEST == arpPacket.getOpCode())
+		{
+			Ethernet ether = new Ethernet();
+			ether.setEtherType(Ethernet.TYPE_ARP);
+			ether.setSourceMACAddress(this.iface.getMacAddress().toBytes());
+			ether.setDestinationMACAddress(etherPacket.getSourceMACAddress());
+			ether.setPayload(arp(ARP.OP_REPLY, arpPacket
+					.getSenderHardwareAddress(), senderIp));
+			this.sendPacket(ether, this.iface);
+		}
+	}
+
+	private void handleIpPacket(IPv4 ipPacket)
+	{
+		if (ipPacket.getDestinationAddress() != this.iface.getIpAddress())
+		{ return; }
+
+		if (IPv4.PROTOCOL_UDP == ipPacket.getProtocol())
+		{
+			this.udpReceived++;
+			this.udpBytesReceived += ipPacket.getTotalLength();
+			this.lastReceived = System.nanoTime();
+		}
+		else if (IPv4.PROTOCOL_ICMP == ipPacket.getProtocol())
+		{
+			ICMP icmp = (ICMP)ipPacket.getPayload();
+			byte[] payload = ((Data)icmp.getPayload()).getData();
+			if (ICMP_ECHO_REQUEST == icmp.getIcmpType())
+			{
+				this.sendIp(ipPacket.getSourceAddress(), IPv4.PROTOCOL_ICMP,
+						echo(ICMP_ECHO_REPLY, payload));
+			}
+			else if (ICMP_ECHO_REPLY == icmp.getIcmpType()
+					&& PING_LENGTH == payload.length)
+			{
+				this.lastReceived = System.nanoTime();
+				this.pingsReceived++;
+				this.pingNanos += this.lastReceived
+						- ByteBuffer.wrap(payload).getLong();
+			}
+		}
+	}
+
+	/**
+	 * Send an IP packet, resolving the next hop's MAC address first if
+	 * needed.
+	 */
+	private void sendIp(int dstIp, byte protocol, IPacket payload)
+	{
+		IPv4 ip = new IPv4();
+		ip.setTtl((byte)64);
+		ip.setProtocol(protocol);
+		ip.setSourceAddress(this.iface.getIpAddress());
+		ip.setDestinationAddress(dstIp);
+		ip.setPayload(payload);
+
+		Ethernet ether = new Ethernet();
+		ether.setEtherType(Ethernet.TYPE_IPv4);
+		ether.setSourceMACAddress(this.iface.getMacAddress().toBytes());
+		ether.setPayload(ip);
+
+		int mask = this.iface.getSubnetMask();
+		int nextHop = dstIp;
+		if ((dstIp & mask) != (this.iface.getIpAddress() & mask))
+		{
+			if (0 == this.gateway)
+			{ return; }
+			nextHop = this.gateway;
+		}
+
+		MACAddress mac = this.arpTable.get(nextHop);
+		if (mac != null)
+		{
+			ether.setDestinationMACAddress(mac.toBytes());
+			this.sendPacket(ether, this.iface);
+			return;
+		}
+
+		// Queue the packet, asking for the next hop's address only once
+		List<Ethernet> queued = this.pending.get(nextHop);
+		if (null == queued)
+		{
+			queued = new ArrayList<Ethernet>();
+			this.pending.put(nextHop, queued);
+
+			Ethernet request = new Ethernet();
+			request.setEtherType(Ethernet.TYPE_ARP);
+			request.setSourceMACAddress(this.iface.getMacAddress().toBytes());
+			request.setDestinationMACAddress("FF:FF:FF:FF:FF:FF");
+			request.setPayload(arp(ARP.OP_REQUEST,
+					new byte[Ethernet.DATALAYER_ADDRESS_LENGTH], nextHop));
+			this.sendPacket(request, this.iface);
+		}
+		queued.add(ether);
+	}
+
+	private ARP arp(short opCode, byte[] targetMac, int targetIp)
+	{
+		ARP arp = new ARP();
+		arp.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		arp.setProtocolType(ARP.PROTO_TYPE_IP);
+		arp.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+		arp.setProtocolAddressLength((byte)4);
+		arp.setOpCode(opCode);
+		arp.setSenderHardwareAddress(this.iface.getMacAddress().toBytes());
+		arp.setSenderProtocolAddress(this.iface.getIpAddress());
+		arp.setTargetHardwareAddress(targetMac);
+		arp.setTargetProtocolAddress(targetIp);
+		return arp;
+	}
+
+	private static ICMP echo(byte type, byte[] payload)
+	{
+		ICMP icmp = new ICMP();
+		icmp.setIcmpType(type);
+		icmp.setIcmpCode((byte)0);
+		icmp.setPayload(new Data(payload));
+		return icmp;
+	}
+
+	public synchronized String toString()
+	{
+		return String.format("%s: udp %d (%d bytes), pings %d (mean %.3f ms)",
+				this.getHost(), this.udpReceived, this.udpBytesReceived,
+				this.pingsReceived, this.getMeanPingNanos() / 1e6);
+	}
+}
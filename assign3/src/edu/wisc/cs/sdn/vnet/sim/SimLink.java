@@ -0,0 +1,108 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.util.Random;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * An in-memory link between two interfaces. Each direction delays frames
+ * by a fixed latency plus the time to transmit them at the link's
+ * bandwidth, queueing frames behind those still being transmitted, and
+ * drops frames at random at the link's loss rate.
+ */
+class SimLink
+{
+	/** One end of the link */
+	static class End
+	{
+		final Device device;
+		final Iface iface;
+		final SimLink link;
+
+		/** Time (from System.nanoTime) until which this end is transmitting */
+		long busyUntil;
+
+		End(Device device, Iface iface, SimLink link)
+		{
+			this.device = device;
+			this.iface = iface;
+			this.link = link;
+		}
+
+		/**
+		 * @return the other end of the link
+		 */
+		End getPeer()
+		{ return (this == this.link.a) ? this.link.b : this.link.a; }
+
+		public String toString()
+		{ return this.device.getHost() + "-" + this.iface.getName(); }
+	}
+
+	final End a, b;
+
+	/** Delay (in nanoseconds) of every frame */
+	private final long latency;
+
+	/** Fraction of frames dropped */
+	private final double loss;
+
+	/** Bandwidth (in bits per second); 0 for unlimited */
+	private final long bandwidth;
+
+	private final Random random;
+
+	private long frames;
+	private long lost;
+
+	/**
+	 * Create a link between two interfaces.
+	 * @param latency delay (in nanoseconds) of every frame
+	 * @param loss fraction of frames dropped, between 0 and 1
+	 * @param bandwidth bandwidth (in bits per second); 0 for unlimited
+	 * @param seed seed for choosing which frames are dropped
+	 */
+	SimLink(Device deviceA, Iface ifaceA, Device deviceB, Iface ifaceB,
+			long latency, double loss, long bandwidth, long seed)
+	{
+		this.a = new End(deviceA, ifaceA, this);
+		this.b = new End(deviceB, ifaceB, this);
+		this.latency = latency;
+		this.loss = loss;
+		this.bandwidth = bandwidth;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Decide when a frame sent from one end arrives at the other.
+	 * @param from the end sending the frame
+	 * @param length length (in bytes) of the frame
+	 * @param now current time (from System.nanoTime)
+	 * @return arrival time (from System.nanoTime), or -1 if the frame is lost
+	 */
+	synchronized long transmit(End from, int length, long now)
+	{
+		this.frames++;
+		if (this.loss > 0 && this.random.nextDouble() < this.loss)
+		{
+			this.lost++;
+			return -1;
+		}
+
+		long sent = now;
+		if (this.bandwidth > 0)
+		{
+			long start = Math.max(now, from.busyUntil);
+			sent = start + length * 8L * 1000000000L / this.bandwidth;
+			from.busyUntil = sent;
+		}
+		return sent + this.latency;
+	}
+
+	public synchronized String toString()
+	{
+		return String.format("%s <-> %s: frames %d, lost %d", this.a, this.b,
+				this.frames, this.lost);
+	}
+}
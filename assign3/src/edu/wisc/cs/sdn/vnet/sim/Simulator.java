@@ -0,0 +1,429 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
+import edu.wisc.cs.sdn.vnet.PacketSink;
+import edu.wisc.cs.sdn.vnet.rt.RouteEntry;
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.sw.Switch;
+
+/**
+ * Runs every device of a topology in one process. Routers and switches are
+ * the real {@link Router} and {@link Switch}; hosts are {@link SimHost}s.
+ * Interfaces are joined by {@link SimLink}s, and frames in flight wait in
+ * a delay queue until they arrive, when a single thread hands them to the
+ * receiving device. Time is real time, so the routers' timers run as they
+ * would against the VNS server.
+ */
+public class Simulator implements Runnable
+{
+	/** A frame in flight to an interface */
+	private static class Delivery implements Delayed
+	{
+		/** Arrival time (from System.nanoTime) */
+		final long due;
+
+		/** Order in which frames were sent; breaks ties in arrival time */
+		final long sequence;
+
+		final SimLink.End to;
+		final byte[] frame;
+
+		Delivery(long due, long sequence, SimLink.End to, byte[] frame)
+		{
+			this.due = due;
+			this.sequence = sequence;
+			this.to = to;
+			this.frame = frame;
+		}
+
+		public long getDelay(TimeUnit unit)
+		{
+			return unit.convert(this.due - System.nanoTime(),
+					TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed other)
+		{
+			Delivery o = (Delivery)other;
+			if (this.due != o.due)
+			{ return (this.due < o.due) ? -1 : 1; }
+			return Long.compare(this.sequence, o.sequence);
+		}
+	}
+
+	/** Puts the frames a device sends on the links of its interfaces */
+	private class DeviceSink implements PacketSink
+	{
+		private final Map<Iface,SimLink.End> ends;
+
+		DeviceSink()
+		{ this.ends = new HashMap<Iface,SimLink.End>(); }
+
+		public boolean sendPacket(Ethernet etherPacket, Iface iface)
+		{
+			byte[] frame = etherPacket.serialize();
+			return this.sendPacket(frame, 0, frame.length, iface);
+		}
+
+		public boolean sendPacket(byte[] frame, int offset, int length,
+				Iface iface)
+		{
+			SimLink.End end = this.ends.get(iface);
+			if (null == end)
+			{ return false; }
+			long due = end.link.transmit(end, length, System.nanoTime());
+			if (due < 0)
+			{ return true; }
+
+			// The sender may reuse its buffer, and the receiver may modify
+			// the frame in place
+			byte[] copy = Arrays.copyOfRange(frame, offset, offset + length);
+			queue.add(new Delivery(due, sequence.getAndIncrement(),
+					end.getPeer(), copy));
+			return true;
+		}
+	}
+
+	private final Topology topology;
+
+	/** Devices by name, in the order they were declared */
+	private final Map<String,Device> devices;
+
+	private final Map<String,SimHost> hosts;
+	private final List<Router> routers;
+	private final List<SimLink> links;
+
+	/** For each router, the cost of the shortest route to each subnet */
+	private final Map<Router,Map<Long,Integer>> expectedCosts;
+
+	private final DelayQueue<Delivery> queue;
+	private final AtomicLong sequence;
+	private final LongAdder delivered;
+	private final Thread thread;
+	private volatile boolean running;
+
+	/** Time (from System.nanoTime) the simulation started */
+	private long startTime;
+
+	/**
+	 * Create the devices and links of a topology.
+	 * @param topology the topology
+	 * @param latency delay (in nanoseconds) of every link
+	 * @param loss fraction of frames each link drops, between 0 and 1
+	 * @param bandwidth bandwidth (in bits per second) of every link; 0 for
+	 *        unlimited
+	 * @param fastPath whether routers forward raw frames when possible
+	 */
+	public Simulator(Topology topology, long latency, double loss,
+			long bandwidth, boolean fastPath)
+	{
+		this.topology = topology;
+		this.devices = new LinkedHashMap<String,Device>();
+		this.hosts = new LinkedHashMap<String,SimHost>();
+		this.routers = new ArrayList<Router>();
+		this.links = new ArrayList<SimLink>();
+		this.expectedCosts = new HashMap<Router,Map<Long,Integer>>();
+		this.queue = new DelayQueue<Delivery>();
+		this.sequence = new AtomicLong();
+		this.delivered = new LongAdder();
+		this.thread = new Thread(this, "Simulator");
+		this.thread.setDaemon(true);
+
+		Map<String,DeviceSink> sinks = new HashMap<String,DeviceSink>();
+		int index = 0;
+		for (Topology.Node node : topology.getNodes().values())
+		{
+			index++;
+			Device device = this.createDevice(node, index, fastPath);
+			DeviceSink sink = new DeviceSink();
+			device.setPacketSink(sink);
+			this.devices.put(node.getName(), device);
+			sinks.put(node.getName(), sink);
+		}
+
+		long seed = 0;
+		for (Topology.Link link : topology.getLinks())
+		{
+			Device a = this.devices.get(link.getNameA());
+			Device b = this.devices.get(link.getNameB());
+			SimLink simLink = new SimLink(a, a.getInterface(link.getIfaceA()),
+					b, b.getInterface(link.getIfaceB()), latency, loss,
+					bandwidth, seed++);
+			sinks.get(link.getNameA()).ends.put(simLink.a.iface, simLink.a);
+			sinks.get(link.getNameB()).ends.put(simLink.b.iface, simLink.b);
+			this.links.add(simLink);
+		}
+
+		this.computeExpectedCosts();
+	}
+
+	private Device createDevice(Topology.Node node, int index,
+			boolean fastPath)
+	{
+		List<String> neighbors = node.getNeighbors();
+		switch (node.getType())
+		{
+		case HOST:
+			Iface iface = new Iface(node.getIfaceName(0));
+			setAddress(iface, node.getAddresses().get(0), index, 0);
+			int gateway = (null == node.getGateway()) ? 0
+					: IPv4.toIPv4Address(node.getGateway());
+			SimHost host = new SimHost(node.getName(), iface, gateway);
+			this.hosts.put(node.getName(), host);
+			return host;
+		case ROUTER:
+			if (neighbors.size() > node.getAddresses().size())
+			{
+				throw new IllegalArgumentException("Router " + node.getName()
+						+ " has more links than addresses");
+			}
+			Router router = new Router(node.getName(), null);
+			router.setFastPath(fastPath);
+			for (int i = 0; i < neighbors.size(); i++)
+			{
+				setAddress(router.addInterface(node.getIfaceName(i)),
+						node.getAddresses().get(i), index, i + 1);
+			}
+			this.routers.add(router);
+			return router;
+		default:
+			Switch sw = new Switch(node.getName(), null);
+			for (int i = 0; i < neighbors.size(); i++)
+			{
+				setAddress(sw.addInterface(node.getIfaceName(i)), null, index,
+						i + 1);
+			}
+			return sw;
+		}
+	}
+
+	/**
+	 * Give an interface a MAC address unique to the node and interface, and
+	 * an IP address and subnet mask.
+	 * @param address address as ip/prefix; null for no IP address
+	 * @param node index of the node, counting from 1 in declaration order
+	 * @param ifaceIndex index of the interface on the node
+	 */
+	public static void setAddress(Iface iface, String address, int node,
+			int ifaceIndex)
+	{
+		iface.setMacAddress(new MACAddress(new byte[] { 0x02, 0, 0,
+				(byte)(node >> 8), (byte)node, (byte)ifaceIndex }));
+		if (null == address)
+		{ return; }
+		String[] parts = address.split("/");
+		int prefix = Integer.parseInt(parts[1]);
+		iface.setIpAddress(IPv4.toIPv4Address(parts[0]));
+		iface.setSubnetMask((0 == prefix) ? 0 : -1 << (32 - prefix));
+	}
+
+	/**
+	 * Find, for each router, the cost RIP should settle on for each subnet:
+	 * 1 for subnets on the router's interfaces, plus 1 for every router
+	 * passed through on the way, where routers with interfaces on the same
+	 * subnet are neighbors.
+	 */
+	private void computeExpectedCosts()
+	{
+		// Routers on each subnet, keyed by address and mask
+		Map<Long,List<Router>> subnets = new HashMap<Long,List<Router>>();
+		for (Router router : this.routers)
+		{
+			for (Iface iface : router.getInterfaces().values())
+			{
+				long subnet = subnetKey(iface.getIpAddress()
+						& iface.getSubnetMask(), iface.getSubnetMask());
+				List<Router> onSubnet = subnets.get(subnet);
+				if (null == onSubnet)
+				{
+					onSubnet = new ArrayList<Router>();
+					subnets.put(subnet, onSubnet);
+				}
+				onSubnet.add(router);
+			}
+		}
+
+		// Breadth-first search from each router
+		for (Router source : this.routers)
+		{
+			Map<Router,Integer> hops = new HashMap<Router,Integer>();
+			List<Router> frontier = new ArrayList<Router>();
+			hops.put(source, 0);
+			frontier.add(source);
+			Map<Long,Integer> costs = new HashMap<Long,Integer>();
+			while (!frontier.isEmpty())
+			{
+				List<Router> next = new ArrayList<Router>();
+				for (Router router : frontier)
+				{
+					int distance = hops.get(router);
+					for (Iface iface : router.getInterfaces().values())
+					{
+						long subnet = subnetKey(iface.getIpAddress()
+								& iface.getSubnetMask(), iface.getSubnetMask());
+						if (!costs.containsKey(subnet))
+						{ costs.put(subnet, distance + 1); }
+						for (Router neighbor : subnets.get(subnet))
+						{
+							if (!hops.containsKey(neighbor))
+							{
+								hops.put(neighbor, distance + 1);
+								next.add(neighbor);
+							}
+						}
+					}
+				}
+				frontier = next;
+			}
+			this.expectedCosts.put(source, costs);
+		}
+	}
+
+	private static long subnetKey(int address, int mask)
+	{ return ((long)address << 32) | (mask & 0xffffffffL); }
+
+	/**
+	 * Start the routers running RIP, and start delivering frames. Every
+	 * router's table is set up before any frame is delivered, so no RIP
+	 * request is answered by a router that has not started.
+	 */
+	public void start()
+	{
+		this.running = true;
+		this.startTime = System.nanoTime();
+		for (Router router : this.routers)
+		{ router.initializeRouteTable(); }
+		this.thread.start();
+	}
+
+	/**
+	 * Stop delivering frames, and shut down every device.
+	 */
+	public void stop()
+	{
+		this.running = false;
+		this.thread.interrupt();
+		try
+		{ this.thread.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+		for (Device device : this.devices.values())
+		{ device.destroy(); }
+	}
+
+	public void run()
+	{
+		while (this.running)
+		{
+			Delivery delivery;
+			try
+			{ delivery = this.queue.take(); }
+			catch (InterruptedException e)
+			{ break; }
+
+			Device device = delivery.to.device;
+			Iface iface = delivery.to.iface;
+			byte[] frame = delivery.frame;
+			this.delivered.increment();
+			try
+			{
+				device.receivePacket(frame, 0, frame.length, iface);
+			}
+			catch (RuntimeException e)
+			{
+				Log.error("Error handling packet on "
+						+ delivery.to + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * @return true if every router has a route to every subnet on a router
+	 *         interface, with the cost of the shortest path
+	 */
+	public boolean isConverged()
+	{
+		for (Router router : this.routers)
+		{
+			for (Map.Entry<Long,Integer> entry
+					: this.expectedCosts.get(router).entrySet())
+			{
+				int address = (int)(entry.getKey() >>> 32);
+				int mask = (int)(long)entry.getKey();
+				RouteEntry route = router.getRouteTable().lookup(address);
+				if (null == route || route.getMaskAddress() != mask
+						|| route.getCost() != entry.getValue())
+				{ return false; }
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Wait for every router's routes to converge.
+	 * @param timeoutMillis how long (in milliseconds) to wait
+	 * @return time (in milliseconds) from the start of the simulation until
+	 *         the routes converged; -1 if they had not converged in time
+	 */
+	public long awaitConvergence(long timeoutMillis)
+	{
+		long deadline = this.startTime + timeoutMillis * 1000 * 1000;
+		while (!this.isConverged())
+		{
+			if (System.nanoTime() > deadline)
+			{ return -1; }
+			try
+			{ Thread.sleep(1); }
+			catch (InterruptedException e)
+			{ return -1; }
+		}
+		return (System.nanoTime() - this.startTime) / (1000 * 1000);
+	}
+
+	public Topology getTopology()
+	{ return this.topology; }
+
+	public Device getDevice(String name)
+	{ return this.devices.get(name); }
+
+	public SimHost getHost(String name)
+	{ return this.hosts.get(name); }
+
+	public Collection<SimHost> getHosts()
+	{ return this.hosts.values(); }
+
+	/**
+	 * @return number of frames in flight
+	 */
+	public int getInFlight()
+	{ return this.queue.size(); }
+
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder(String.format(
+				"Simulator: delivered %d, in flight %d\n",
+				this.delivered.sum(), this.queue.size()));
+		for (SimLink link : this.links)
+		{ result.append("  ").append(link).append("\n"); }
+		return result.toString();
+	}
+}
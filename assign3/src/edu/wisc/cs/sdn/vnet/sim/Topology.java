@@ -0,0 +1,227 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.wisc.cs.sdn.vnet.Log;
+
+/**
+ * A virtual network topology, read from a .topo file. Each line of the file
+ * declares a node or a link:
+ * <pre>
+ *   host name ip/prefix gateway      (gateway may be -)
+ *   router name ip/prefix ...        (one address per interface)
+ *   switch name
+ *   link name name
+ * </pre>
+ * Interfaces are numbered in the order their links appear: a host's only
+ * interface is eth0, and a router's or switch's are eth1, eth2, and so on.
+ * A router's ethN takes the Nth address on its line.
+ */
+public class Topology
+{
+	/** Kinds of nodes */
+	public enum Type { HOST, ROUTER, SWITCH }
+
+	/** A node declared in the file */
+	public static class Node
+	{
+		private final String name;
+		private final Type type;
+
+		/** Addresses, as ip/prefix, one per interface */
+		private final List<String> addresses;
+
+		/** For hosts, the default gateway; null if there is none */
+		private final String gateway;
+
+		/** Names of the nodes this node links to, in interface order */
+		private final List<String> neighbors;
+
+		Node(String name, Type type, List<String> addresses, String gateway)
+		{
+			this.name = name;
+			this.type = type;
+			this.addresses = addresses;
+			this.gateway = gateway;
+			this.neighbors = new ArrayList<String>();
+		}
+
+		public String getName()
+		{ return this.name; }
+
+		public Type getType()
+		{ return this.type; }
+
+		public List<String> getAddresses()
+		{ return this.addresses; }
+
+		public String getGateway()
+		{ return this.gateway; }
+
+		public List<String> getNeighbors()
+		{ return this.neighbors; }
+
+		/**
+		 * @param index index of a link in the order the node's links appear
+		 * @return name of the interface for the link
+		 */
+		public String getIfaceName(int index)
+		{
+			if (Type.HOST == this.type)
+			{ return "eth" + index; }
+			return "eth" + (index + 1);
+		}
+	}
+
+	/** A link declared in the file */
+	public static class Link
+	{
+		private final String nameA, nameB;
+
+		/** Interface names at either end */
+		private final String ifaceA, ifaceB;
+
+		Link(String nameA, String ifaceA, String nameB, String ifaceB)
+		{
+			this.nameA = nameA;
+			this.ifaceA = ifaceA;
+			this.nameB = nameB;
+			this.ifaceB = ifaceB;
+		}
+
+		public String getNameA()
+		{ return this.nameA; }
+
+		public String getIfaceA()
+		{ return this.ifaceA; }
+
+		public String getNameB()
+		{ return this.nameB; }
+
+		public String getIfaceB()
+		{ return this.ifaceB; }
+
+		public String toString()
+		{
+			return this.nameA + "-" + this.ifaceA + " <-> " + this.nameB
+					+ "-" + this.ifaceB;
+		}
+	}
+
+	/** Nodes by name, in the order they were declared */
+	private final Map<String,Node> nodes;
+
+	private final List<Link> links;
+
+	public Topology()
+	{
+		this.nodes = new LinkedHashMap<String,Node>();
+		this.links = new ArrayList<Link>();
+	}
+
+	public Map<String,Node> getNodes()
+	{ return this.nodes; }
+
+	public List<Link> getLinks()
+	{ return this.links; }
+
+	/**
+	 * Read a topology from a file.
+	 * @param filename the name of the .topo file
+	 * @return true if the topology was read successfully, otherwise false
+	 */
+	public boolean load(String filename)
+	{
+		// Open the file
+		BufferedReader reader;
+		try
+		{
+			FileReader fileReader = new FileReader(filename);
+			reader = new BufferedReader(fileReader);
+		}
+		catch (FileNotFoundException e)
+		{
+			Log.error(e.toString());
+			return false;
+		}
+
+		boolean ok = true;
+		try
+		{
+			String line;
+			while (ok && (line = reader.readLine()) != null)
+			{ ok = this.parse(line); }
+		}
+		catch (IOException e)
+		{
+			Log.error(e.toString());
+			ok = false;
+		}
+
+		// Close the file
+		try { reader.close(); } catch (IOException f) {};
+		return ok;
+	}
+
+	private boolean parse(String line)
+	{
+		String[] parts = line.trim().split("\\s+");
+		if (0 == parts[0].length())
+		{ return true; }
+
+		List<String> addresses = new ArrayList<String>();
+		if (parts[0].equals("host") && 4 == parts.length
+				&& parts[2].indexOf('/') >= 0)
+		{
+			addresses.add(parts[2]);
+			String gateway = parts[3].equals("-") ? null : parts[3];
+			return this.add(new Node(parts[1], Type.HOST, addresses,
+					gateway));
+		}
+		else if (parts[0].equals("router") && parts.length >= 3)
+		{
+			for (int i = 2; i < parts.length; i++)
+			{ addresses.add(parts[i]); }
+			return this.add(new Node(parts[1], Type.ROUTER, addresses, null));
+		}
+		else if (parts[0].equals("switch") && 2 == parts.length)
+		{ return this.add(new Node(parts[1], Type.SWITCH, addresses, null)); }
+		else if (parts[0].equals("link") && 3 == parts.length)
+		{
+			Node a = this.nodes.get(parts[1]);
+			Node b = this.nodes.get(parts[2]);
+			if (null == a || null == b)
+			{
+				Log.error("Link to unknown node: %s", line);
+				return false;
+			}
+			String ifaceA = a.getIfaceName(a.neighbors.size());
+			String ifaceB = b.getIfaceName(b.neighbors.size());
+			a.neighbors.add(b.name);
+			b.neighbors.add(a.name);
+			this.links.add(new Link(a.name, ifaceA, b.name, ifaceB));
+			return true;
+		}
+
+		Log.error("Error in topology configuration line: %s", line);
+		return false;
+	}
+
+	private boolean add(Node node)
+	{
+		if (this.nodes.containsKey(node.name))
+		{
+			Log.error("Duplicate node in topology: %s", node.name);
+			return false;
+		}
+		this.nodes.put(node.name, node);
+		return true;
+	}
+}
@@ -1,24 +1,30 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.LongKeyTable;
 
 import net.floodlightcontroller.packet.MACAddress;
 
 /**
- * A MAC learning table.
+ * A MAC learning table. MAC addresses are kept as primitive keys in a
+ * {@link LongKeyTable}, so learning and looking up addresses does not
+ * allocate.
  * @author Aaron Gember-Jacobson
  */
 public class MACTable implements Runnable
 {
 	/** Timeout (in milliseconds) for entries in the MAC table */
 	public static final int TIMEOUT = 15 * 1000;
-	
-	/** Entries in the MAC table */
-	private Map<MACAddress,MACTableEntry> entries;
-	
+
+	/**
+	 * Age (in milliseconds) below which an entry that is learned again on
+	 * the same interface is not refreshed, so most inserts need no lock
+	 */
+	private static final int REFRESH_INTERVAL = 1000;
+
+	/** Maps a MAC address to the interface out which to reach it */
+	private final LongKeyTable<Iface> entries;
+
 	/** Thread for timing out requests and entries in the cache */
 	private Thread timeoutThread;
 
@@ -28,30 +34,51 @@ public class MACTable implements Runnable
 	 */
 	public MACTable()
 	{
-		this.entries = new ConcurrentHashMap<MACAddress, MACTableEntry>();
+		this.entries = new LongKeyTable<Iface>();
 		timeoutThread = new Thread(this);
+		timeoutThread.setDaemon(true);
 		timeoutThread.start();
 	}
-	
+
 	public void insert(MACAddress macAddress, Iface iface)
+	{ this.insert(macAddress.toLong(), iface); }
+
+	/**
+	 * Learn the interface out which to reach a MAC address.
+	 * @param macAddress the MAC address, in the low 48 bits
+	 * @param iface interface on which the MAC address was seen
+	 */
+	public void insert(long macAddress, Iface iface)
 	{
-		MACTableEntry entry = this.lookup(macAddress);
-		if(entry != null)
-		{ entry.update(iface); }
-		else
-		{ 
-			entry = new MACTableEntry(macAddress, iface);
-			this.entries.put(macAddress, entry); 
-		}
+		// Addresses seen again on the same interface are usually current
+		long now = System.currentTimeMillis();
+		if (!this.entries.isCurrent(macAddress, 0, iface, 
+				now - REFRESH_INTERVAL))
+		{ this.entries.put(macAddress, 0, iface, now); }
 	}
-	
-	public MACTableEntry lookup(MACAddress macAddress) 
+
+	/**
+	 * @return a snapshot of the entry for a MAC address; null if none exists
+	 */
+	public MACTableEntry lookup(final MACAddress macAddress)
 	{
-		if (this.entries.containsKey(macAddress))
-		{ return this.entries.get(macAddress); }
-		return null;
+		final MACTableEntry[] result = new MACTableEntry[1];
+		this.entries.visit(macAddress.toLong(), 
+				new LongKeyTable.Visitor<Iface>() {
+			public void visit(long key, long value, Iface iface, long updated)
+			{ result[0] = new MACTableEntry(macAddress, iface, updated); }
+		});
+		return result[0];
 	}
-	
+
+	/**
+	 * Find the interface out which to reach a MAC address.
+	 * @param macAddress the MAC address, in the low 48 bits
+	 * @return the interface; null if the MAC address has not been learned
+	 */
+	public Iface lookupInterface(long macAddress)
+	{ return this.entries.getObject(macAddress); }
+
 	/**
 	 * Every second: timeout MAC table entries.
 	 */
@@ -60,18 +87,13 @@ public class MACTable implements Runnable
 		while (true)
 		{
 			// Run every second
-			try 
+			try
 			{ Thread.sleep(1000); }
-			catch (InterruptedException e) 
+			catch (InterruptedException e)
 			{ break; }
-			
+
 			// Timeout entries
-			for (MACTableEntry entry : this.entries.values())
-			{
-				if ((System.currentTimeMillis() - entry.getTimeUpdated()) 
-						> TIMEOUT)
-				{ this.entries.remove(entry.getMACAddress()); }
-			}
+			this.entries.removeStale(System.currentTimeMillis() - TIMEOUT, 0);
 		}
 	}
 }
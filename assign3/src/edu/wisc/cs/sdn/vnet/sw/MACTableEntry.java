@@ -31,6 +31,21 @@ public class MACTableEntry
 		this.timeUpdated = System.currentTimeMillis();
 	}
 	
+	/**
+	 * Create a MAC table entry updated at a given time.
+	 * @param macAddress MAC addresses
+	 * @param iface switch interface out which packets should be sent to 
+	 *        reach the MAC address
+	 * @param timeUpdated time (in milliseconds since the epoch) the entry 
+	 *        was updated
+	 */
+	public MACTableEntry(MACAddress macAddress, Iface iface, long timeUpdated)
+	{
+		this.macAddress = macAddress;
+		this.iface = iface;
+		this.timeUpdated = timeUpdated;
+	}
+	
 	public void update(Iface iface)
 	{
 		this.iface = iface;
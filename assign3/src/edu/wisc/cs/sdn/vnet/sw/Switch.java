@@ -4,6 +4,7 @@ import net.floodlightcontroller.packet.Ethernet;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 
 /**
  * @author Aaron Gember-Jacobson
@@ -29,17 +30,21 @@ public class Switch extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
-				etherPacket.toString().replace("\n", "\n\t"));
+		if (Log.isEnabled(Log.Level.DEBUG))
+		{
+			Log.debug("*** -> Received packet: %s",
+					etherPacket.toString().replace("\n", "\n\t"));
+		}
 		
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
 		
-		this.macTable.insert(etherPacket.getSourceMAC(), inIface);
+		this.macTable.insert(etherPacket.getSourceMACLong(), inIface);
 		
-		MACTableEntry entry = this.macTable.lookup(etherPacket.getDestinationMAC());
-		if (entry != null)
-		{ this.sendPacket(etherPacket, entry.getInterface()); }
+		Iface outIface = this.macTable.lookupInterface(
+				etherPacket.getDestinationMACLong());
+		if (outIface != null)
+		{ this.sendPacket(etherPacket, outIface); }
 		else
 		{
 			for (Iface iface : this.interfaces.values()) 
@@ -47,7 +52,7 @@ public class Switch extends Device
 				if (iface != inIface)
 				{
 					this.sendPacket(etherPacket, iface);
-					System.out.println("Send packet out interface "+iface);
+					Log.debug("Send packet out interface %s", iface.getName());
 				}
 			}
 		}
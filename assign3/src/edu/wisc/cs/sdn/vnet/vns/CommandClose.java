@@ -19,4 +19,19 @@ public class CommandClose extends Command
 		
 		return this;
 	}
+	
+	protected byte[] serialize()
+	{
+		byte[] data = new byte[this.getSize()];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		
+		bb.put(super.serialize());
+		byte[] tmp = this.mErrorMessage.getBytes();
+		bb.put(tmp, 0, Math.min(tmp.length, 255));
+		
+		return data;
+	}
+	
+	protected int getSize()
+	{ return super.getSize() + 256; }
 }
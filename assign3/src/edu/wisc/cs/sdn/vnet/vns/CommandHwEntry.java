@@ -21,4 +21,18 @@ public class CommandHwEntry
 		
 		return this;
 	}
+	
+	protected byte[] serialize()
+	{
+		byte[] data = new byte[this.getSize()];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		
+		bb.putInt(this.mKey);
+		bb.put(this.value, 0, Math.min(this.value.length, 32));
+		
+		return data;
+	}
+	
+	protected int getSize()
+	{ return 4 + 32; }
 }
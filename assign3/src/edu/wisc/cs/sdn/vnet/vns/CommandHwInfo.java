@@ -27,4 +27,21 @@ public class CommandHwInfo extends Command
 						
 		return this;
 	}
+	
+	protected byte[] serialize()
+	{
+		int size = this.getSize();
+		for (CommandHwEntry hwEntry : this.mHwInfo)
+		{ size += hwEntry.getSize(); }
+		this.mLen = size;
+		
+		byte[] data = new byte[size];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		
+		bb.put(super.serialize());
+		for (CommandHwEntry hwEntry : this.mHwInfo)
+		{ bb.put(hwEntry.serialize()); }
+		
+		return data;
+	}
 }
@@ -6,6 +6,9 @@ import net.floodlightcontroller.packet.Ethernet;
 
 public class CommandPacket extends Command
 {
+	/** Length of the interface name field */
+	public static final int IFACE_NAME_LENGTH = 16;
+	
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
 	
@@ -13,27 +16,59 @@ public class CommandPacket extends Command
 	{ super(Command.VNS_PACKET); }
 	
 	protected CommandPacket deserialize(ByteBuffer buf)
+	{
+		this.deserializeHeader(buf);
+		this.deserializeFrame(buf);
+		return this;
+	}
+	
+	protected CommandPacket deserializeHeader(ByteBuffer buf)
 	{
 		super.deserialize(buf);
 				
-		byte[] tmpBytes = new byte[16];
+		byte[] tmpBytes = new byte[IFACE_NAME_LENGTH];
 		buf.get(tmpBytes);
 		this.mInterfaceName = new String(tmpBytes).trim();
 		
+		return this;
+	}
+	
+	protected CommandPacket deserializeFrame(ByteBuffer buf)
+	{
         this.etherPacket = new Ethernet();
-		this.etherPacket.deserialize(buf.array(), buf.position(),
-				buf.capacity() - buf.position());
+		this.etherPacket.deserialize(buf.array(), 
+				buf.arrayOffset() + buf.position(), buf.remaining());
 		
 		return this;
 	}
 	
 	protected int getSize()
-	{ return super.getSize() + 16; }
+	{ return super.getSize() + IFACE_NAME_LENGTH; }
 	
 	protected byte[] serialize()
 	{
-		byte[] packet = this.etherPacket.serialize();
-		int size = this.getSize() + packet.length;
+		// Write the frame straight into the command
+		ByteBuffer bb = this.serializeHeader(
+				this.etherPacket.getSerializedLength());
+		this.etherPacket.serializeInto(bb);
+		return bb.array();
+	}
+	
+	protected byte[] serialize(byte[] packet, int offset, int length)
+	{
+		ByteBuffer bb = this.serializeHeader(length);
+		bb.put(packet, offset, length);
+		return bb.array();
+	}
+	
+	/**
+	 * Allocate a command for a frame, and write all but the frame.
+	 * @param length length of the frame
+	 * @return the command, positioned where the frame goes
+	 */
+	private ByteBuffer serializeHeader(int length)
+	{
+		int size = this.getSize() + length;
 		this.mLen = size;
 		
 		byte[] data = new byte[size];
@@ -42,12 +77,23 @@ public class CommandPacket extends Command
         byte[] parentData = super.serialize();
         
         bb.put(parentData);
-        byte[] tmp = new byte[16];
-        System.arraycopy(this.mInterfaceName.getBytes(), 0, tmp, 0, 
-                this.mInterfaceName.length());
-        bb.put(tmp);
-        bb.put(packet);
+        bb.put(encodeInterfaceName(this.mInterfaceName));
         
-        return data;
+        return bb;
+	}
+	
+	/**
+	 * Encode an interface name as it appears in a packet command.
+	 * @param ifaceName the name
+	 * @return the name's bytes, truncated or padded with zeros to the length
+	 *         of the interface name field
+	 */
+	public static byte[] encodeInterfaceName(String ifaceName)
+	{
+		byte[] name = ifaceName.getBytes();
+		byte[] encoded = new byte[IFACE_NAME_LENGTH];
+		System.arraycopy(name, 0, encoded, 0, 
+				Math.min(name.length, IFACE_NAME_LENGTH));
+		return encoded;
 	}
 }
@@ -0,0 +1,238 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.floodlightcontroller.packet.EthernetView;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.IPv4View;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Runs a device's packet handling on several threads. The thread reading
+ * from the VNS server dispatches each received frame to one of several
+ * worker threads, chosen by a hash of the frame's flow so that frames in
+ * the same flow are handled in order. Commands sent by the workers are
+ * written by the connection's {@link VNSWriter}.
+ */
+public class Pipeline
+{
+	/** Maximum number of frames waiting for each worker */
+	public static final int QUEUE_CAPACITY = 1024;
+
+	/** A received frame waiting to be handled; null buf stops a worker */
+	private static class Job
+	{
+		final byte[] buf;
+		final int offset;
+		final int length;
+		final Iface inIface;
+
+		Job(byte[] buf, int offset, int length, Iface inIface)
+		{
+			this.buf = buf;
+			this.offset = offset;
+			this.length = length;
+			this.inIface = inIface;
+		}
+	}
+
+	/** A stage of the pipeline: a thread draining a queue */
+	private abstract static class Stage<T> implements Runnable
+	{
+		final BlockingQueue<T> queue;
+		final LongAdder handled;
+		final AtomicInteger maxDepth;
+		final Thread thread;
+
+		Stage(String name)
+		{
+			this.queue = new ArrayBlockingQueue<T>(QUEUE_CAPACITY);
+			this.handled = new LongAdder();
+			this.maxDepth = new AtomicInteger();
+			this.thread = new Thread(this, name);
+			this.thread.setDaemon(true);
+		}
+
+		void put(T item)
+		{
+			try
+			{ this.queue.put(item); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			int depth = this.queue.size();
+			int max = this.maxDepth.get();
+			while (depth > max && !this.maxDepth.compareAndSet(max, depth))
+			{ max = this.maxDepth.get(); }
+		}
+
+		T take()
+		{
+			try
+			{ return this.queue.take(); }
+			catch (InterruptedException e)
+			{ return null; }
+		}
+
+		public String toString()
+		{
+			return String.format("%s: depth %d, max %d, handled %d",
+					this.thread.getName(), this.queue.size(),
+					this.maxDepth.get(), this.handled.sum());
+		}
+	}
+
+	private class Worker extends Stage<Job>
+	{
+		Worker(int index)
+		{ super("Worker " + index); }
+
+		public void run()
+		{
+			while (true)
+			{
+				Job job = this.take();
+				if (null == job || null == job.buf)
+				{ break; }
+				handle(job);
+				this.handled.increment();
+			}
+		}
+	}
+
+	private final Device device;
+	private final Worker[] workers;
+
+	/** View of the frame being dispatched; used only by the reader thread */
+	private final EthernetView dispatchView;
+
+	/**
+	 * Create a pipeline for a device.
+	 * @param device device whose packets are handled
+	 * @param workers number of worker threads; at least 1
+	 */
+	Pipeline(Device device, int workers)
+	{
+		this.device = device;
+		this.dispatchView = new EthernetView();
+		this.workers = new Worker[workers];
+		for (int i = 0; i < workers; i++)
+		{ this.workers[i] = new Worker(i); }
+	}
+
+	/**
+	 * Start the worker threads.
+	 */
+	void start()
+	{
+		for (Worker worker : this.workers)
+		{ worker.thread.start(); }
+	}
+
+	/**
+	 * Handle every frame already dispatched, then stop the worker threads.
+	 */
+	void stop()
+	{
+		for (Worker worker : this.workers)
+		{ worker.put(new Job(null, 0, 0, null)); }
+		for (Worker worker : this.workers)
+		{ join(worker.thread); }
+	}
+
+	/**
+	 * Queue a copy of a frame for the worker responsible for its flow, so
+	 * the caller may reuse the buffer. Called only by the reader thread.
+	 * @param buf buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 */
+	void dispatch(byte[] buf, int offset, int length, Iface inIface)
+	{
+		// Hash before copying, so the view stays on the receive buffer
+		int hash = flowHash(this.dispatchView, buf, offset, length)
+				& 0x7fffffff;
+		Worker worker = this.workers[hash % this.workers.length];
+		worker.put(new Job(Arrays.copyOfRange(buf, offset, offset + length),
+				0, length, inIface));
+	}
+
+	private void handle(Job job)
+	{
+		this.device.receivePacket(job.buf, job.offset, job.length,
+				job.inIface);
+	}
+
+	/**
+	 * Hash the flow a frame belongs to. IPv4 frames hash on addresses and
+	 * protocol, plus ports for TCP and UDP unless the packet is a fragment;
+	 * other frames hash on their MAC addresses.
+	 * @param eth view to wrap around the frame
+	 * @param frame buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @return hash of the frame's flow
+	 */
+	static int flowHash(EthernetView eth, byte[] frame, int offset,
+			int length)
+	{
+		IPv4View ip = null;
+		if (eth.wrap(frame, offset, length) != null && !eth.isTagged())
+		{ ip = eth.getIPv4(); }
+		ByteBuffer bb = eth.getBuffer();
+
+		int hash;
+		if (ip != null)
+		{
+			byte protocol = ip.getProtocol();
+			hash = mix(ip.getSourceAddress()) + protocol;
+			hash = mix(hash ^ ip.getDestinationAddress());
+
+			int ports = ip.getPayloadOffset();
+			if (!ip.isFragment() && (IPv4.PROTOCOL_TCP == protocol
+					|| IPv4.PROTOCOL_UDP == protocol)
+					&& ports + 4 <= offset + length)
+			{ hash = mix(hash ^ bb.getInt(ports)); }
+		}
+		else
+		{
+			hash = 0;
+			for (int i = 0; i + 4 <= 12 && i + 4 <= length; i += 4)
+			{ hash = mix(hash ^ bb.getInt(offset + i)); }
+		}
+		return hash;
+	}
+
+	private static int mix(int h)
+	{
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static void join(Thread thread)
+	{
+		try
+		{ thread.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder("Pipeline:\n");
+		for (Worker worker : this.workers)
+		{ result.append("  ").append(worker).append("\n"); }
+		return result.toString();
+	}
+}
@@ -1,27 +1,46 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
 
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
+import edu.wisc.cs.sdn.vnet.PacketSink;
 
-public class VNSComm 
+public class VNSComm implements PacketSink
 {
+	/** Size (in bytes) of the buffer commands are received into */
+	private static final int READ_BUFFER_SIZE = 256 * 1024;
+	
+	/** Maximum length of a command from the server */
+	private static final int MAX_COMMAND_LENGTH = 10000;
+	
 	private Socket socket;
+	private SocketChannel channel;
+	private ByteBuffer readBuffer;
 	private Device device;
+	private Pipeline pipeline;
+	private VNSWriter writer;
+	
+	/** Each interface's name as it appears in packet commands, by index */
+	private byte[][] ifaceNames;
 	
 	public VNSComm(Device device)
 	{ 
 		this.device = device;
+		this.ifaceNames = new byte[0][];
+		this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		this.readBuffer.flip();
 		this.device.setVNSComm(this);
 	}
 	
@@ -37,33 +56,27 @@ public class VNSComm
 			return false;
 		}
 		
-		// Create socket and attempt to connect to the server
+		// Create socket and attempt to connect to the server; the writer
+		// batches commands itself, so don't let TCP delay them as well
 		try 
-		{ socket = new Socket(addr, port); }
+		{
+			channel = SocketChannel.open(new InetSocketAddress(addr, port));
+			socket = channel.socket();
+			socket.setTcpNoDelay(true);
+		}
 		catch (IOException e) 
 		{
 			e.printStackTrace();
 			return false;
 		}
+		this.writer = new VNSWriter(channel);
 		
 		// Send VNS_OPEN message to server
 		CommandOpen cmdOpen = new CommandOpen();
 		cmdOpen.mVirtualHostId = this.device.getHost();
 		byte[] buf = cmdOpen.serialize();
 		
-		try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
-		{
-			e.printStackTrace();
-			return false;
-		}
-		
-		return true; 
+		return this.writer.write(buf); 
 	}
 	
 	private boolean handleHwInfo(CommandHwInfo cmdHwInfo)
@@ -87,126 +100,182 @@ public class VNSComm
 				lastIface.setMacAddress(new MACAddress(hwEntry.value));
 				break;
 			default:
-				System.out.println(String.format(" %d", hwEntry.mKey));
+				Log.info(" %d", hwEntry.mKey);
 			}
 		}
 		
-		System.out.println("Device interfaces:");
+		// Encode names once, so packets never need converting to strings
+		this.ifaceNames = new byte[this.device.getInterfaceCount()][];
+		for (int i = 0; i < this.ifaceNames.length; i++)
+		{
+			this.ifaceNames[i] = CommandPacket.encodeInterfaceName(
+					this.device.getInterface(i).getName());
+		}
+		
+		StringBuilder ifaces = new StringBuilder("Device interfaces:");
 		if (0 == this.device.getInterfaces().size())
-		{ System.out.println(" Interface list empty"); }
+		{ ifaces.append("\n Interface list empty"); }
 		else
 		{
 			for (Iface iface : this.device.getInterfaces().values())
-			{ System.out.println(iface.toString()); }
+			{ ifaces.append("\n").append(iface.toString()); }
 		}
+		Log.info(ifaces.toString());
 		
 		return true;
 	}
 	
-	public boolean readFromServer()
-	{ return this.readFromServerExpect(0); }
+	/**
+	 * Handle received packets on worker threads from now on.
+	 * @param workers number of worker threads
+	 */
+	public void startPipeline(int workers)
+	{
+		this.pipeline = new Pipeline(this.device, workers);
+		this.pipeline.start();
+	}
 	
-	public boolean readFromServerExpect(int expectedCmd)
+	/**
+	 * Finish handling received packets, then go back to handling packets on
+	 * the thread reading from the server.
+	 */
+	public void stopPipeline()
 	{
-		int bytesRead = 0;
-		InputStream inStream = null;
-		
-		// Get input stream
-		try 
-		{ inStream = this.socket.getInputStream(); } 
-		catch (IOException e) 
+		if (null == this.pipeline)
+		{ return; }
+		this.pipeline.stop();
+		Log.info(this.pipeline.toString().trim());
+		this.pipeline = null;
+	}
+	
+	/**
+	 * Finish handling received packets and writing queued commands, then
+	 * close the connection to the server.
+	 */
+	public void close()
+	{
+		this.stopPipeline();
+		if (this.writer != null)
 		{
-			e.printStackTrace();
-			return false;
+			this.writer.close();
+			Log.info(this.writer.toString());
 		}
-		
-		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
-		while (bytesRead < 4)
+		try { socket.close(); } catch (IOException e) { }
+	}
+	
+	/**
+	 * @return the pipeline handling packets; null if packets are handled on 
+	 *         the thread reading from the server
+	 */
+	public Pipeline getPipeline()
+	{ return this.pipeline; }
+	
+	public boolean readFromServer()
+	{ return this.readFromServerExpect(0); }
+	
+	/**
+	 * Read the next command from the server. Commands are framed out of a
+	 * single receive buffer, which is refilled only once every complete
+	 * command in it has been handed out, so one read from the socket 
+	 * usually yields many commands.
+	 * @return the command, starting at position 0; its contents are only
+	 *         valid until the next call; null if the connection failed
+	 */
+	private ByteBuffer nextCommand()
+	{
+		ByteBuffer in = this.readBuffer;
+		while (true)
 		{
-			try 
+			if (in.remaining() >= 4)
 			{
-				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				return false;
+				int len = in.getInt(in.position());
+				if (len > MAX_COMMAND_LENGTH || len < 8)
+				{
+					Log.error("Error: comamnd length too large %d", len);
+					try { socket.close(); } catch (IOException e) { }
+					return null;
+				}
+				if (in.remaining() >= len)
+				{
+					ByteBuffer buf = in.slice();
+					buf.limit(len);
+					in.position(in.position() + len);
+					return buf;
+				}
 			}
-		}
-		
-		int len = ByteBuffer.wrap(lenBytes).getInt();
-		
-		if (len > 10000 || len < 0)
-		{
-			System.err.println(String.format(
-					"Error: comamnd length too large %d", len));
-			try { socket.close(); } catch (IOException e) { }
-			return false;
-		}
-		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
-		
-		// Read the rest of the command
-		while (bytesRead < len)
-		{
+			
+			// Move the partial command to the front, and read some more
+			in.compact();
 			try 
 			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
+				int ret = this.channel.read(in);
 				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
+				{ throw new IOException("Connection closed by server"); }
 			} 
-			catch (Exception e) 
+			catch (IOException e) 
 			{
-				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
+				Log.error("Error: failed reading command: %s", e.toString());
 				try { socket.close(); } catch (IOException e2) { }
-				return false;
+				return null;
 			}
+			finally
+			{ in.flip(); }
 		}
+	}
+	
+	public boolean readFromServerExpect(int expectedCmd)
+	{
+		ByteBuffer buf = this.nextCommand();
+		if (null == buf)
+		{ return false; }
 		
 		// Make sure the command is what we expected if we were expecting something
-		int command = buf.getInt();
+		int command = buf.getInt(4);
 		if (expectedCmd != 0 && command != expectedCmd)
 		{
 			if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
 			{
-				System.err.println(String.format(
-						"Error: expected command %d but got %d", expectedCmd,
-						command));
+				Log.error("Error: expected command %d but got %d", 
+						expectedCmd, command);
 				return false;
 			}
 		}
 		
-		buf.position(0);
 		switch(command)
 		{
 		case Command.VNS_PACKET:
-			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
+			Iface inIface = this.findInterface(buf);
+			buf.position(8 + CommandPacket.IFACE_NAME_LENGTH);
+			byte[] frame = buf.array();
+			int frameOffset = buf.arrayOffset() + buf.position();
+			int frameLength = buf.remaining();
 			
 			// Log packet
             if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
+            { 
+            	this.device.getLogFile().dump(frame, frameOffset, 
+            			frameLength); 
+            }
+			
+			// Hand off to a worker, which gets its own copy since the receive 
+			// buffer is about to be reused
+			if (this.pipeline != null)
+			{
+				this.pipeline.dispatch(frame, frameOffset, frameLength, 
+						inIface);
+				break;
+			}
 			
 			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
+			this.device.receivePacket(frame, frameOffset, frameLength, 
+					inIface);
 			break;
 			
 		case Command.VNS_CLOSE:
-			System.err.println("VNS server closed session.");
+			Log.warn("VNS server closed session.");
 			CommandClose cmdClose = new CommandClose();
 			cmdClose.deserialize(buf);
-			System.err.println("Reason: " + new String(cmdClose.mErrorMessage));
+			Log.warn("Reason: %s", cmdClose.mErrorMessage.trim());
 			return true;
 			
 		case Command.VNS_HW_INFO:
@@ -216,7 +285,7 @@ public class VNSComm
 			break;
 		
 		default:
-			System.err.println(String.format("unknown command: %d", command));
+			Log.error("unknown command: %d", command);
 			break;
 		}
 
@@ -229,26 +298,60 @@ public class VNSComm
 		Iface iface = this.device.getInterface(ifaceName);
 		if (null == iface)
 		{
-			System.err.println("** Error, interface " + ifaceName 
-					+ ", does not exist");
+			Log.error("** Error, interface %s, does not exist", ifaceName);
 			return false;
 		}
 		if (!iface.getMacAddress().equals(etherPacket.getSourceMAC()))
 		{
-			System.err.println("** Error, source address does not match interface"); 
+			Log.error("** Error, source address does not match interface");
 			return false;
 		}
 		return true;
 	}
 	
+	public boolean sendPacket(Ethernet etherPacket, Iface iface)
+	{ return this.sendPacket(etherPacket, iface.getName()); }
+	
+	public boolean sendPacket(byte[] frame, int offset, int length, 
+			Iface iface)
+	{
+		int index = iface.getIndex();
+		if (index < this.ifaceNames.length 
+				&& this.device.getInterface(index) == iface)
+		{ return this.send(frame, offset, length, this.ifaceNames[index]); }
+		return this.sendPacket(frame, offset, length, iface.getName());
+	}
+	
+	/**
+	 * Find the interface named in a packet command by comparing the raw 
+	 * name field with each interface's encoded name.
+	 * @param buf the command, starting at position 0
+	 * @return the interface; null if the device has no such interface
+	 */
+	private Iface findInterface(ByteBuffer buf)
+	{
+		byte[] data = buf.array();
+		int base = buf.arrayOffset() + 8;
+		for (int i = 0; i < this.ifaceNames.length; i++)
+		{
+			byte[] name = this.ifaceNames[i];
+			int j = 0;
+			while (j < name.length && data[base + j] == name[j])
+			{ j++; }
+			if (j == name.length)
+			{ return this.device.getInterface(i); }
+		}
+		
+		// Names padded some other way are still matched, more slowly
+		CommandPacket cmdPkt = new CommandPacket();
+		cmdPkt.deserializeHeader(buf);
+		return this.device.getInterface(cmdPkt.mInterfaceName);
+	}
+	
 	// sr_send_packet
 	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
 	{
-		CommandPacket cmdPacket = new CommandPacket();
-		cmdPacket.mInterfaceName = ifaceName;
-		cmdPacket.etherPacket = etherPacket;
-		
-		byte[] buf = cmdPacket.serialize();
+		byte[] frame = etherPacket.serialize();
 		
 		/*if (!etherAddrsMatchInterface(etherPacket, ifaceName))
 		{
@@ -256,21 +359,38 @@ public class VNSComm
 			return false;
 		}*/
 		
+		return this.sendPacket(frame, 0, frame.length, ifaceName);
+	}
+	
+	/**
+	 * Send a serialized frame. The frame is written by the writer thread, 
+	 * so it must not be modified after this call.
+	 */
+	public boolean sendPacket(byte[] frame, int offset, int length, 
+			String ifaceName)
+	{
+		return this.send(frame, offset, length, 
+				CommandPacket.encodeInterfaceName(ifaceName));
+	}
+	
+	/**
+	 * Send a serialized frame out an interface, given its encoded name.
+	 */
+	private boolean send(byte[] frame, int offset, int length, 
+			byte[] ifaceName)
+	{
 		// Log packet
         if (this.device.getLogFile() != null)
-        { this.device.getLogFile().dump(etherPacket); }
+        { this.device.getLogFile().dump(frame, offset, length); }
 		
-	    try
+		// Frames forwarded straight out of the receive buffer must be copied,
+		// since the buffer is reused before the writer gets to them
+		if (frame == this.readBuffer.array())
 		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
+			frame = Arrays.copyOfRange(frame, offset, offset + length);
+			offset = 0;
 		}
-		catch(IOException e)
-		{
-			System.err.println("Error writing packet");
-			return false;
-		}
-		return true;
+		
+		return this.writer.writePacket(ifaceName, frame, offset, length);
 	}
 }
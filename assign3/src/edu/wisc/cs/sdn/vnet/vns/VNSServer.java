@@ -0,0 +1,511 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
+import edu.wisc.cs.sdn.vnet.PacketSink;
+import edu.wisc.cs.sdn.vnet.sim.SimHost;
+import edu.wisc.cs.sdn.vnet.sim.Simulator;
+import edu.wisc.cs.sdn.vnet.sim.Topology;
+
+/**
+ * A stand-in for the VNS server, speaking the same protocol over TCP on the
+ * local machine. Routers and switches of a topology connect as they would
+ * to the real server: each sends VNS_OPEN with its name, and is sent
+ * VNS_HW_INFO describing its interfaces. Packets a device sends out an
+ * interface are passed to the device at the other end of the link; hosts
+ * are {@link SimHost}s inside the server, which can generate traffic.
+ * Addresses are assigned as by the {@link Simulator}.
+ */
+public class VNSServer implements Runnable
+{
+	/** Maximum length of a command from a device */
+	private static final int MAX_COMMAND_LENGTH = 10000;
+
+	/** An interface of a node in the topology */
+	private static class Port
+	{
+		final String node;
+		final Iface iface;
+
+		/** Name of the interface as it appears in packet commands */
+		final byte[] encodedName;
+
+		/** Interface at the other end of the interface's link */
+		Port peer;
+
+		/** Host owning the interface; null for routers and switches */
+		SimHost host;
+
+		Port(String node, Iface iface)
+		{
+			this.node = node;
+			this.iface = iface;
+			this.encodedName = CommandPacket.encodeInterfaceName(
+					iface.getName());
+		}
+	}
+
+	/** Passes the packets a host sends to the other end of its link */
+	private class HostSink implements PacketSink
+	{
+		private final Port port;
+
+		HostSink(Port port)
+		{ this.port = port; }
+
+		public boolean sendPacket(Ethernet etherPacket, Iface iface)
+		{
+			byte[] frame = etherPacket.serialize();
+			return this.sendPacket(frame, 0, frame.length, iface);
+		}
+
+		public boolean sendPacket(byte[] frame, int offset, int length,
+				Iface iface)
+		{
+			if (null == this.port.peer)
+			{ return false; }
+			return deliver(this.port.peer,
+					Arrays.copyOfRange(frame, offset, offset + length));
+		}
+	}
+
+	/** A connection from a router or switch */
+	private class Connection implements Runnable
+	{
+		private final SocketChannel channel;
+		private final VNSWriter writer;
+		private final ByteBuffer readBuffer;
+
+		/** Name of the node, once it has sent VNS_OPEN */
+		private String node;
+
+		/** The node's interfaces by name, once it has sent VNS_OPEN */
+		private Map<String,Port> ports;
+
+		private long packetsIn, bytesIn;
+		private final LongAdder packetsOut, bytesOut, dropped;
+
+		Connection(SocketChannel channel)
+		{
+			this.channel = channel;
+			this.writer = new VNSWriter(channel);
+			this.readBuffer = ByteBuffer.allocate(256 * 1024);
+			this.readBuffer.flip();
+			this.packetsOut = new LongAdder();
+			this.bytesOut = new LongAdder();
+			this.dropped = new LongAdder();
+		}
+
+		/**
+		 * Queue a packet for the device.
+		 * @param frame the frame, which must not be modified once queued
+		 */
+		boolean send(byte[] ifaceName, byte[] frame)
+		{
+			if (!this.writer.writePacket(ifaceName, frame, 0, frame.length))
+			{
+				this.dropped.increment();
+				return false;
+			}
+			this.packetsOut.increment();
+			this.bytesOut.add(frame.length);
+			return true;
+		}
+
+		public void run()
+		{
+			// Whatever ends the loop, the device must be able to reconnect
+			try
+			{
+				ByteBuffer buf;
+				while ((buf = this.nextCommand()) != null
+						&& this.handleCommand(buf));
+			}
+			finally
+			{ this.close(null); }
+		}
+
+		private boolean handleCommand(ByteBuffer buf)
+		{
+			switch (buf.getInt(4))
+			{
+			case Command.VNS_OPEN:
+				CommandOpen cmdOpen = new CommandOpen();
+				if (buf.remaining() < cmdOpen.getSize())
+				{
+					this.close("VNS_OPEN command too short");
+					return false;
+				}
+				cmdOpen.deserialize(buf);
+				return this.open(cmdOpen.mVirtualHostId.trim());
+
+			case Command.VNS_PACKET:
+				if (null == this.ports)
+				{ return true; }
+				CommandPacket cmdPkt = new CommandPacket();
+				if (buf.remaining() < cmdPkt.getSize())
+				{
+					this.close("VNS_PACKET command too short");
+					return false;
+				}
+				cmdPkt.deserializeHeader(buf);
+				Port port = this.ports.get(cmdPkt.mInterfaceName);
+				this.packetsIn++;
+				this.bytesIn += buf.remaining();
+				if (null == port || null == port.peer)
+				{ return true; }
+
+				// The receive buffer is about to be reused
+				int offset = buf.arrayOffset() + buf.position();
+				deliver(port.peer, Arrays.copyOfRange(buf.array(), offset,
+						offset + buf.remaining()));
+				return true;
+
+			case Command.VNS_CLOSE:
+				return false;
+
+			default:
+				Log.error("unknown command: %d", buf.getInt(4));
+				return true;
+			}
+		}
+
+		/**
+		 * Accept a device's VNS_OPEN, and send it its interfaces.
+		 * @return false if the device is not a router or switch in the
+		 *         topology, or is already connected
+		 */
+		private boolean open(String name)
+		{
+			Map<String,Port> ports = nodePorts.get(name);
+			if (null == ports || hosts.containsKey(name)
+					|| connections.putIfAbsent(name, this) != null)
+			{
+				this.close("No such device, or device already connected: "
+						+ name);
+				return false;
+			}
+
+			this.node = name;
+			this.ports = ports;
+			boolean isSwitch = (Topology.Type.SWITCH
+					== topology.getNodes().get(name).getType());
+			CommandHwInfo cmdHwInfo = new CommandHwInfo();
+			cmdHwInfo.mHwInfo = new ArrayList<CommandHwEntry>();
+			for (Port port : ports.values())
+			{
+				Iface iface = port.iface;
+				cmdHwInfo.mHwInfo.add(hwEntry(CommandHwEntry.HW_INTERFACE,
+						iface.getName().getBytes()));
+				if (isSwitch)
+				{ continue; }
+				cmdHwInfo.mHwInfo.add(hwEntry(CommandHwEntry.HW_ETHER,
+						iface.getMacAddress().toBytes()));
+				cmdHwInfo.mHwInfo.add(hwEntry(CommandHwEntry.HW_ETH_IP,
+						IPv4.toIPv4AddressBytes(iface.getIpAddress())));
+				cmdHwInfo.mHwInfo.add(hwEntry(CommandHwEntry.HW_MASK,
+						IPv4.toIPv4AddressBytes(iface.getSubnetMask())));
+			}
+			this.writer.write(cmdHwInfo.serialize());
+			Log.info("Device connected: %s", name);
+			return true;
+		}
+
+		/**
+		 * Read the next command from the device.
+		 * @return the command, starting at position 0; its contents are only
+		 *         valid until the next call; null if the connection failed
+		 */
+		private ByteBuffer nextCommand()
+		{
+			ByteBuffer in = this.readBuffer;
+			while (true)
+			{
+				if (in.remaining() >= 4)
+				{
+					int len = in.getInt(in.position());
+					if (len > MAX_COMMAND_LENGTH || len < 8)
+					{ return null; }
+					if (in.remaining() >= len)
+					{
+						ByteBuffer buf = in.slice();
+						buf.limit(len);
+						in.position(in.position() + len);
+						return buf;
+					}
+				}
+
+				in.compact();
+				try
+				{
+					if (this.channel.read(in) < 0)
+					{ return null; }
+				}
+				catch (IOException e)
+				{ return null; }
+				finally
+				{ in.flip(); }
+			}
+		}
+
+		/**
+		 * Close the connection, first sending VNS_CLOSE if there is a reason.
+		 * @param reason reason for closing; null to not send VNS_CLOSE
+		 */
+		synchronized void close(String reason)
+		{
+			if (!this.channel.isOpen())
+			{ return; }
+			if (this.node != null)
+			{ connections.remove(this.node, this); }
+			if (reason != null)
+			{
+				CommandClose cmdClose = new CommandClose();
+				cmdClose.mErrorMessage = reason;
+				this.writer.write(cmdClose.serialize());
+			}
+			this.writer.close();
+			try { this.channel.close(); } catch (IOException e) { }
+		}
+
+		public String toString()
+		{
+			return String.format("%s: in %d (%d bytes), out %d (%d bytes), "
+					+ "dropped %d", this.node, this.packetsIn, this.bytesIn,
+					this.packetsOut.sum(), this.bytesOut.sum(),
+					this.dropped.sum());
+		}
+	}
+
+	private final Topology topology;
+	private final short port;
+
+	/** Interfaces of each node by name, by node name */
+	private final Map<String,Map<String,Port>> nodePorts;
+
+	private final Map<String,SimHost> hosts;
+
+	/** Connected routers and switches, by name */
+	private final Map<String,Connection> connections;
+
+	/** Every connection accepted, for reporting */
+	private final List<Connection> accepted;
+
+	/** Packets dropped because the receiving device was not connected */
+	private final LongAdder unconnected;
+
+	private ServerSocketChannel serverChannel;
+	private Thread thread;
+
+	/** Time (from System.nanoTime) the server started */
+	private long startTime;
+
+	/**
+	 * Create the hosts and interfaces of a topology.
+	 * @param topology the topology
+	 * @param port port on which to listen for devices
+	 */
+	public VNSServer(Topology topology, short port)
+	{
+		this.topology = topology;
+		this.port = port;
+		this.nodePorts = new HashMap<String,Map<String,Port>>();
+		this.hosts = new LinkedHashMap<String,SimHost>();
+		this.connections = new ConcurrentHashMap<String,Connection>();
+		this.accepted = new ArrayList<Connection>();
+		this.unconnected = new LongAdder();
+
+		int index = 0;
+		for (Topology.Node node : topology.getNodes().values())
+		{
+			index++;
+			Map<String,Port> ports = new LinkedHashMap<String,Port>();
+			for (int i = 0; i < node.getNeighbors().size(); i++)
+			{
+				Iface iface = new Iface(node.getIfaceName(i));
+				String address = null;
+				if (node.getType() != Topology.Type.SWITCH)
+				{
+					if (i >= node.getAddresses().size())
+					{
+						throw new IllegalArgumentException("Node "
+								+ node.getName()
+								+ " has more links than addresses");
+					}
+					address = node.getAddresses().get(i);
+				}
+				Simulator.setAddress(iface, address, index,
+						(Topology.Type.HOST == node.getType()) ? i : i + 1);
+				ports.put(iface.getName(), new Port(node.getName(), iface));
+			}
+			this.nodePorts.put(node.getName(), ports);
+
+			if (Topology.Type.HOST == node.getType() && !ports.isEmpty())
+			{
+				Port hostPort = ports.values().iterator().next();
+				int gateway = (null == node.getGateway()) ? 0
+						: IPv4.toIPv4Address(node.getGateway());
+				SimHost host = new SimHost(node.getName(), hostPort.iface,
+						gateway);
+				host.setPacketSink(new HostSink(hostPort));
+				hostPort.host = host;
+				this.hosts.put(node.getName(), host);
+			}
+		}
+
+		for (Topology.Link link : topology.getLinks())
+		{
+			Port a = this.nodePorts.get(link.getNameA()).get(link.getIfaceA());
+			Port b = this.nodePorts.get(link.getNameB()).get(link.getIfaceB());
+			a.peer = b;
+			b.peer = a;
+		}
+	}
+
+	private static CommandHwEntry hwEntry(int key, byte[] value)
+	{
+		CommandHwEntry hwEntry = new CommandHwEntry();
+		hwEntry.mKey = key;
+		hwEntry.value = value;
+		return hwEntry;
+	}
+
+	/**
+	 * Pass a frame to the interface it was sent to.
+	 * @param to the receiving interface
+	 * @param frame the frame, not shared with anything else
+	 * @return true if the frame was handed to the receiving device
+	 */
+	private boolean deliver(Port to, byte[] frame)
+	{
+		if (to.host != null)
+		{
+			Ethernet etherPacket = new Ethernet();
+			etherPacket.deserialize(frame, 0, frame.length);
+			to.host.handlePacket(etherPacket, to.iface);
+			return true;
+		}
+
+		Connection connection = this.connections.get(to.node);
+		if (null == connection)
+		{
+			this.unconnected.increment();
+			return false;
+		}
+		return connection.send(to.encodedName, frame);
+	}
+
+	/**
+	 * Start listening for devices on the loopback interface.
+	 * @throws IOException if the port cannot be bound
+	 */
+	public void start() throws IOException
+	{
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.socket().setReuseAddress(true);
+		this.serverChannel.bind(new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), this.port));
+		this.startTime = System.nanoTime();
+		this.thread = new Thread(this, "VNSServer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+		Log.info("Listening on port %d", this.port);
+	}
+
+	public void run()
+	{
+		while (this.serverChannel.isOpen())
+		{
+			SocketChannel channel;
+			try
+			{
+				channel = this.serverChannel.accept();
+				channel.socket().setTcpNoDelay(true);
+			}
+			catch (IOException e)
+			{ break; }
+
+			Connection connection = new Connection(channel);
+			synchronized (this.accepted)
+			{ this.accepted.add(connection); }
+			Thread reader = new Thread(connection, "VNSServer-"
+					+ channel.socket().getPort());
+			reader.setDaemon(true);
+			reader.start();
+		}
+	}
+
+	/**
+	 * Wait for every router and switch in the topology to connect.
+	 * @param timeoutMillis how long (in milliseconds) to wait
+	 * @return time (in milliseconds) from the start of the server until the
+	 *         last device connected; -1 if they had not all connected in time
+	 */
+	public long awaitConnections(long timeoutMillis)
+	{
+		int devices = this.topology.getNodes().size() - this.hosts.size();
+		long deadline = this.startTime + timeoutMillis * 1000 * 1000;
+		while (this.connections.size() < devices)
+		{
+			if (System.nanoTime() > deadline)
+			{ return -1; }
+			try
+			{ Thread.sleep(1); }
+			catch (InterruptedException e)
+			{ return -1; }
+		}
+		return (System.nanoTime() - this.startTime) / (1000 * 1000);
+	}
+
+	/**
+	 * Stop accepting devices, and close every connection, telling each
+	 * device the server is shutting down.
+	 */
+	public void stop()
+	{
+		try { this.serverChannel.close(); } catch (IOException e) { }
+		synchronized (this.accepted)
+		{
+			for (Connection connection : this.accepted)
+			{ connection.close("Server shutting down"); }
+		}
+	}
+
+	public SimHost getHost(String name)
+	{ return this.hosts.get(name); }
+
+	public Collection<SimHost> getHosts()
+	{ return this.hosts.values(); }
+
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder(String.format(
+				"VNSServer: dropped %d for unconnected devices\n",
+				this.unconnected.sum()));
+		synchronized (this.accepted)
+		{
+			for (Connection connection : this.accepted)
+			{ result.append("  ").append(connection).append("\n"); }
+		}
+		return result.toString();
+	}
+}
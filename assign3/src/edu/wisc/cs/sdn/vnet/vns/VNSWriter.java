@@ -0,0 +1,263 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.wisc.cs.sdn.vnet.Log;
+
+/**
+ * Writes commands to the VNS server from a single thread. Any thread may
+ * queue a command; the writer copies queued commands into one buffer and
+ * writes the buffer to the socket when the queue runs dry, the buffer is
+ * nearly full, or the oldest buffered command has waited too long. Packets
+ * are framed as they are copied, so they need not be serialized into a
+ * command first.
+ */
+public class VNSWriter implements Runnable
+{
+	/** Size (in bytes) of the buffer written to the socket */
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	/** Write the buffer once it holds at least this many bytes */
+	public static final int FLUSH_SIZE = BUFFER_SIZE - 2048;
+
+	/** Write the buffer once its oldest command has waited this long */
+	public static final long FLUSH_NANOS = 1000 * 1000;
+
+	/** Maximum number of queued commands; further commands are dropped */
+	public static final int QUEUE_CAPACITY = 8192;
+
+	/** A command waiting to be written */
+	private static class Pending
+	{
+		/** Encoded name of the interface out which to send a packet; null 
+		 *  for other commands */
+		final byte[] ifaceName;
+		final byte[] data;
+		final int offset;
+		final int length;
+
+		Pending(byte[] ifaceName, byte[] data, int offset, int length)
+		{
+			this.ifaceName = ifaceName;
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/** Pending command that stops the writer */
+	private static final Pending STOP = new Pending(null, null, 0, 0);
+
+	private final SocketChannel channel;
+	private final Queue<Pending> queue;
+	private final AtomicInteger depth;
+	private final ByteBuffer buffer;
+	private final Thread thread;
+
+	/** Whether the writer is parked, waiting for a command */
+	private volatile boolean waiting;
+
+	/** Whether the socket has failed; nothing more is written */
+	private volatile boolean failed;
+
+	/** Time (from System.nanoTime) the oldest buffered command was added */
+	private long bufferedSince;
+
+	private int maxDepth;
+	private final LongAdder commands;
+	private final LongAdder dropped;
+	private long writes;
+	private long bytes;
+
+	/**
+	 * Create a writer for a connection to the VNS server, and start its
+	 * thread.
+	 * @param channel connection to the server
+	 */
+	public VNSWriter(SocketChannel channel)
+	{
+		this.channel = channel;
+		this.queue = new ConcurrentLinkedQueue<Pending>();
+		this.depth = new AtomicInteger();
+		this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this.commands = new LongAdder();
+		this.dropped = new LongAdder();
+		this.thread = new Thread(this, "VNSWriter");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Queue a serialized command.
+	 * @param command the command
+	 * @return true if the command was queued, false if it was dropped
+	 */
+	public boolean write(byte[] command)
+	{ return this.offer(new Pending(null, command, 0, command.length)); }
+
+	/**
+	 * Queue a packet command for a frame. The frame must not be modified
+	 * once queued.
+	 * @param ifaceName name of the interface out which to send the frame
+	 * @param frame buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @return true if the packet was queued, false if it was dropped
+	 */
+	public boolean writePacket(String ifaceName, byte[] frame, int offset,
+			int length)
+	{
+		return this.writePacket(CommandPacket.encodeInterfaceName(ifaceName),
+				frame, offset, length);
+	}
+
+	/**
+	 * Queue a packet command for a frame. Neither the frame nor the name
+	 * may be modified once queued.
+	 * @param ifaceName name of the interface out which to send the frame, 
+	 *        encoded by {@link CommandPacket#encodeInterfaceName}
+	 * @param frame buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @return true if the packet was queued, false if it was dropped
+	 */
+	public boolean writePacket(byte[] ifaceName, byte[] frame, int offset,
+			int length)
+	{ return this.offer(new Pending(ifaceName, frame, offset, length)); }
+
+	/**
+	 * Write every queued command, then stop the writer thread.
+	 */
+	public void close()
+	{
+		this.queue.offer(STOP);
+		LockSupport.unpark(this.thread);
+		try
+		{ this.thread.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	private boolean offer(Pending pending)
+	{
+		if (this.failed || this.depth.incrementAndGet() > QUEUE_CAPACITY)
+		{
+			this.depth.decrementAndGet();
+			this.dropped.increment();
+			return false;
+		}
+		this.queue.offer(pending);
+		if (this.waiting)
+		{ LockSupport.unpark(this.thread); }
+		return true;
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			Pending pending = this.queue.poll();
+			if (null == pending)
+			{
+				// Nothing else is coming yet, so send what we have
+				if (this.buffer.position() > 0 && !this.flush())
+				{ break; }
+				this.waiting = true;
+				if (this.queue.isEmpty())
+				{ LockSupport.park(this); }
+				this.waiting = false;
+				continue;
+			}
+			if (STOP == pending)
+			{
+				this.flush();
+				break;
+			}
+
+			int queued = this.depth.getAndDecrement();
+			if (queued > this.maxDepth)
+			{ this.maxDepth = queued; }
+			this.commands.increment();
+
+			if (!this.append(pending))
+			{ break; }
+			if (this.buffer.position() >= FLUSH_SIZE || (System.nanoTime()
+					- this.bufferedSince) >= FLUSH_NANOS)
+			{
+				if (!this.flush())
+				{ break; }
+			}
+		}
+	}
+
+	/**
+	 * Copy a command into the buffer, writing the buffer first if the
+	 * command does not fit.
+	 * @return false if writing to the socket failed
+	 */
+	private boolean append(Pending pending)
+	{
+		int size = pending.length;
+		if (pending.ifaceName != null)
+		{ size += 8 + CommandPacket.IFACE_NAME_LENGTH; }
+		if (size > this.buffer.remaining() && !this.flush())
+		{ return false; }
+		if (size > this.buffer.remaining())
+		{
+			Log.error("Error: command too large to send " + size);
+			return true;
+		}
+
+		if (0 == this.buffer.position())
+		{ this.bufferedSince = System.nanoTime(); }
+		if (pending.ifaceName != null)
+		{
+			this.buffer.putInt(size);
+			this.buffer.putInt(Command.VNS_PACKET);
+			this.buffer.put(pending.ifaceName);
+		}
+		this.buffer.put(pending.data, pending.offset, pending.length);
+		return true;
+	}
+
+	/**
+	 * Write the buffer to the socket.
+	 * @return false if writing to the socket failed
+	 */
+	private boolean flush()
+	{
+		this.buffer.flip();
+		try
+		{
+			while (this.buffer.hasRemaining())
+			{
+				this.bytes += this.channel.write(this.buffer);
+				this.writes++;
+			}
+		}
+		catch (IOException e)
+		{
+			Log.error("Error writing packet");
+			this.failed = true;
+			return false;
+		}
+		finally
+		{ this.buffer.clear(); }
+		return true;
+	}
+
+	public String toString()
+	{
+		return String.format("VNSWriter: depth %d, max %d, commands %d, "
+				+ "dropped %d, writes %d, bytes %d", this.depth.get(),
+				this.maxDepth, this.commands.sum(), this.dropped.sum(),
+				this.writes, this.bytes);
+	}
+}
@@ -17,6 +17,7 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
 
 /**
 *
@@ -60,6 +61,17 @@ public abstract class BasePacket implements IPacket {
         return this;
     }
     
+    /**
+     * Serializes into an array sized by getSerializedLength(), so the whole
+     * packet is written once, without an array per layer.
+     */
+    @Override
+    public byte[] serialize() {
+        byte[] data = new byte[this.getSerializedLength()];
+        this.serializeInto(ByteBuffer.wrap(data));
+        return data;
+    }
+
     @Override
     public void resetChecksum() {
         if (this.parent != null)
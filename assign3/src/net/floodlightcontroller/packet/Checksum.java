@@ -0,0 +1,182 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The Internet checksum (RFC 1071), shared by every protocol that uses it.
+ * <p>
+ * Data is summed eight bytes at a time: each big-endian 64-bit word is
+ * split into two 32-bit halves that are added to a {@code long}, so carries
+ * collect in the high bits and are only folded back into 16 bits once, by
+ * {@link #fold(long)}. A running sum can be carried across calls, which
+ * allows a checksum to be built up from a pseudo-header and any number of
+ * pieces; every piece but the last must have an even length, since each
+ * piece is summed as if it started on a 16-bit boundary.
+ * <p>
+ * Typical use:
+ * <pre>
+ * long sum = Checksum.pseudoHeader(src, dst, protocol, length);
+ * sum = Checksum.add(sum, bb, start, length);
+ * short checksum = Checksum.finish(sum);
+ * </pre>
+ */
+public final class Checksum {
+    private Checksum() {
+    }
+
+    /**
+     * Adds bytes of an array to a running sum.
+     * @param sum the running sum; 0 to start a new one
+     * @param data the array
+     * @param offset offset of the bytes in the array
+     * @param length number of bytes to add
+     * @return the new running sum
+     */
+    public static long add(long sum, byte[] data, int offset, int length) {
+        return add(sum, ByteBuffer.wrap(data), offset, length);
+    }
+
+    /**
+     * Adds bytes of a buffer to a running sum, using absolute reads so the
+     * position of the buffer is not changed.
+     * @param sum the running sum; 0 to start a new one
+     * @param bb the buffer, which may be heap or direct
+     * @param offset index of the bytes in the buffer
+     * @param length number of bytes to add
+     * @return the new running sum
+     */
+    public static long add(long sum, ByteBuffer bb, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+
+        // Unrolled, so the loop is mostly loads and adds
+        for (; i + 32 <= end; i += 32) {
+            long w0 = bb.getLong(i);
+            long w1 = bb.getLong(i + 8);
+            long w2 = bb.getLong(i + 16);
+            long w3 = bb.getLong(i + 24);
+            sum += (w0 >>> 32) + (w0 & 0xffffffffL)
+                    + (w1 >>> 32) + (w1 & 0xffffffffL)
+                    + (w2 >>> 32) + (w2 & 0xffffffffL)
+                    + (w3 >>> 32) + (w3 & 0xffffffffL);
+        }
+        for (; i + 8 <= end; i += 8) {
+            long w = bb.getLong(i);
+            sum += (w >>> 32) + (w & 0xffffffffL);
+        }
+        if (i + 4 <= end) {
+            sum += bb.getInt(i) & 0xffffffffL;
+            i += 4;
+        }
+        if (i + 2 <= end) {
+            sum += bb.getShort(i) & 0xffff;
+            i += 2;
+        }
+        // pad to an even number of bytes
+        if (i < end)
+            sum += (bb.get(i) & 0xff) << 8;
+        return sum;
+    }
+
+    /**
+     * Adds a 16-bit word to a running sum.
+     * @param sum the running sum
+     * @param word the word
+     * @return the new running sum
+     */
+    public static long addShort(long sum, short word) {
+        return sum + (word & 0xffff);
+    }
+
+    /**
+     * Adds a 32-bit word, such as an IPv4 address, to a running sum.
+     * @param sum the running sum
+     * @param word the word
+     * @return the new running sum
+     */
+    public static long addInt(long sum, int word) {
+        return sum + (word & 0xffffffffL);
+    }
+
+    /**
+     * Starts a sum with the IPv4 pseudo-header used by TCP and UDP.
+     * @param sourceAddress the IPv4 source address
+     * @param destinationAddress the IPv4 destination address
+     * @param protocol the IPv4 protocol
+     * @param length length of the TCP or UDP header and payload
+     * @return the running sum
+     */
+    public static long pseudoHeader(int sourceAddress, int destinationAddress,
+            byte protocol, int length) {
+        return (sourceAddress & 0xffffffffL)
+                + (destinationAddress & 0xffffffffL)
+                + (protocol & 0xff) + (length & 0xffff);
+    }
+
+    /**
+     * Folds the carries of a running sum back into 16 bits.
+     * @param sum the running sum
+     * @return the one's complement sum
+     */
+    public static short fold(long sum) {
+        sum = (sum & 0xffffffffL) + (sum >>> 32);
+        sum = (sum & 0xffffffffL) + (sum >>> 32);
+        sum = (sum & 0xffff) + (sum >>> 16);
+        sum = (sum & 0xffff) + (sum >>> 16);
+        return (short) sum;
+    }
+
+    /**
+     * @param sum the running sum, including the checksum field as zero
+     * @return the checksum to store
+     */
+    public static short finish(long sum) {
+        return (short) ~fold(sum);
+    }
+
+    /**
+     * @param sum the running sum, including the checksum field as sent
+     * @return true if the data summed to all ones, so the checksum is valid
+     */
+    public static boolean isValid(long sum) {
+        return fold(sum) == (short) 0xffff;
+    }
+
+    /**
+     * Computes the checksum that results from changing one 16-bit word
+     * covered by an existing checksum, without summing the data again
+     * (RFC 1624, eqn. 3).
+     * @param checksum the existing checksum
+     * @param oldWord the old value of the changed word
+     * @param newWord the new value of the changed word
+     * @return the updated checksum
+     */
+    public static short update(short checksum, short oldWord,
+            short newWord) {
+        long sum = (~checksum & 0xffff) + (~oldWord & 0xffff)
+                + (newWord & 0xffff);
+        return finish(sum);
+    }
+
+    /**
+     * Computes the checksum of bytes of an array.
+     * @param data the array
+     * @param offset offset of the bytes in the array
+     * @param length number of bytes to sum
+     * @return the checksum
+     */
+    public static short compute(byte[] data, int offset, int length) {
+        return finish(add(0, data, offset, length));
+    }
+
+    /**
+     * Computes the checksum of bytes of a buffer.
+     * @param bb the buffer, which may be heap or direct
+     * @param offset index of the bytes in the buffer
+     * @param length number of bytes to sum
+     * @return the checksum
+     */
+    public static short compute(ByteBuffer bb, int offset, int length) {
+        return finish(add(0, bb, offset, length));
+    }
+}
@@ -18,9 +18,9 @@
 package net.floodlightcontroller.packet;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Supplier;
 
 import org.openflow.util.HexString;
 
@@ -37,17 +37,49 @@ public class Ethernet extends BasePacket {
     public static final short TYPE_BSN = (short) 0x8942;
     public static final short VLAN_UNTAGGED = (short)0xffff;
     public static final short DATALAYER_ADDRESS_LENGTH = 6; // bytes
+
+    /**
+     * Payload classes by etherType. Classes put here directly are still
+     * decoded, but reflectively; prefer {@link #registerEtherType}.
+     */
     public static Map<Short, Class<? extends IPacket>> etherTypeClassMap;
 
+    /** Payload factories, indexed by etherType */
+    @SuppressWarnings("unchecked")
+    private static final Supplier<? extends IPacket>[] etherTypeFactories =
+            (Supplier<? extends IPacket>[]) new Supplier<?>[1 << 16];
+
     static {
         etherTypeClassMap = new HashMap<Short, Class<? extends IPacket>>();
-        etherTypeClassMap.put(TYPE_ARP, ARP.class);
-        etherTypeClassMap.put(TYPE_RARP, ARP.class);
-        etherTypeClassMap.put(TYPE_IPv4, IPv4.class);
+        Supplier<ARP> arp = new Supplier<ARP>() {
+            public ARP get() {
+                return new ARP();
+            }
+        };
+        registerEtherType(TYPE_ARP, ARP.class, arp);
+        registerEtherType(TYPE_RARP, ARP.class, arp);
+        registerEtherType(TYPE_IPv4, IPv4.class, new Supplier<IPv4>() {
+            public IPv4 get() {
+                return new IPv4();
+            }
+        });
+    }
+
+    /**
+     * Decode the payload of frames with an etherType as a given class.
+     * @param etherType the etherType
+     * @param clazz the payload class
+     * @param factory creates an empty instance of the payload class
+     */
+    public static <T extends IPacket> void registerEtherType(short etherType,
+            Class<T> clazz, Supplier<T> factory) {
+        etherTypeClassMap.put(etherType, clazz);
+        etherTypeFactories[etherType & 0xffff] = factory;
     }
 
-    protected MACAddress destinationMACAddress;
-    protected MACAddress sourceMACAddress;
+    /** MAC addresses, in the low 48 bits */
+    protected long destinationMACAddress;
+    protected long sourceMACAddress;
     protected byte priorityCode;
     protected short vlanID;
     protected short etherType;
@@ -65,13 +97,20 @@ public class Ethernet extends BasePacket {
      * @return the destination MAC as a byte array
      */
     public byte[] getDestinationMACAddress() {
-        return destinationMACAddress.toBytes();
+        return MACAddress.valueOf(destinationMACAddress).toBytes();
     }
     
     /**
      * @return the destination MAC
      */
     public MACAddress getDestinationMAC() {
+        return MACAddress.valueOf(destinationMACAddress);
+    }
+
+    /**
+     * @return the destination MAC, in the low 48 bits
+     */
+    public long getDestinationMACLong() {
         return destinationMACAddress;
     }
 
@@ -79,7 +118,10 @@ public class Ethernet extends BasePacket {
      * @param destinationMACAddress the destination MAC to set
      */
     public Ethernet setDestinationMACAddress(byte[] destinationMACAddress) {
-        this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress);
+        if (destinationMACAddress.length != MACAddress.MAC_ADDRESS_LENGTH)
+            throw new IllegalArgumentException("the length is not "
+                    + MACAddress.MAC_ADDRESS_LENGTH);
+        this.destinationMACAddress = MACAddress.toLong(destinationMACAddress, 0);
         return this;
     }
 
@@ -87,7 +129,18 @@ public class Ethernet extends BasePacket {
      * @param destinationMACAddress the destination MAC to set
      */
     public Ethernet setDestinationMACAddress(String destinationMACAddress) {
-        this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress);
+        this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress)
+                .toLong();
+        return this;
+    }
+
+    /**
+     * @param destinationMACAddress the destination MAC to set, in the low
+     *        48 bits
+     */
+    public Ethernet setDestinationMAC(long destinationMACAddress) {
+        this.destinationMACAddress = destinationMACAddress
+                & MACAddress.MAC_ADDRESS_MASK;
         return this;
     }
 
@@ -95,13 +148,20 @@ public class Ethernet extends BasePacket {
      * @return the source MACAddress as a byte array
      */
     public byte[] getSourceMACAddress() {
-        return sourceMACAddress.toBytes();
+        return MACAddress.valueOf(sourceMACAddress).toBytes();
     }
     
     /**
      * @return the source MACAddress
      */
     public MACAddress getSourceMAC() {
+        return MACAddress.valueOf(sourceMACAddress);
+    }
+
+    /**
+     * @return the source MAC, in the low 48 bits
+     */
+    public long getSourceMACLong() {
         return sourceMACAddress;
     }
 
@@ -109,7 +169,10 @@ public class Ethernet extends BasePacket {
      * @param sourceMACAddress the source MAC to set
      */
     public Ethernet setSourceMACAddress(byte[] sourceMACAddress) {
-        this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress);
+        if (sourceMACAddress.length != MACAddress.MAC_ADDRESS_LENGTH)
+            throw new IllegalArgumentException("the length is not "
+                    + MACAddress.MAC_ADDRESS_LENGTH);
+        this.sourceMACAddress = MACAddress.toLong(sourceMACAddress, 0);
         return this;
     }
 
@@ -117,7 +180,17 @@ public class Ethernet extends BasePacket {
      * @param sourceMACAddress the source MAC to set
      */
     public Ethernet setSourceMACAddress(String sourceMACAddress) {
-        this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress);
+        this.sourceMACAddress = MACAddress.valueOf(sourceMACAddress)
+                .toLong();
+        return this;
+    }
+
+    /**
+     * @param sourceMACAddress the source MAC to set, in the low 48 bits
+     */
+    public Ethernet setSourceMAC(long sourceMACAddress) {
+        this.sourceMACAddress = sourceMACAddress
+                & MACAddress.MAC_ADDRESS_MASK;
         return this;
     }
 
@@ -170,15 +243,14 @@ public class Ethernet extends BasePacket {
      * @return True if the Ethernet frame is broadcast, false otherwise
      */
     public boolean isBroadcast() {
-        assert(destinationMACAddress.length() == 6);
-        return destinationMACAddress.isBroadcast();
+        return MACAddress.isBroadcast(destinationMACAddress);
     }
     
     /**
      * @return True is the Ethernet frame is multicast, False otherwise
      */
     public boolean isMulticast() {
-        return destinationMACAddress.isMulticast();
+        return MACAddress.isMulticast(destinationMACAddress);
     }
     /**
      * Pad this packet to 60 bytes minimum, filling with zeros?
@@ -197,32 +269,34 @@ public class Ethernet extends BasePacket {
         return this;
     }
 
-    public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+    @Override
+    public int getSerializedLength() {
         int length = 14 + ((vlanID == VLAN_UNTAGGED) ? 0 : 4) +
-                          ((payloadData == null) ? 0 : payloadData.length);
+                          ((payload == null) ? 0 : payload.getSerializedLength());
         if (pad && length < 60) {
             length = 60;
         }
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
-        bb.put(destinationMACAddress.toBytes());
-        bb.put(sourceMACAddress.toBytes());
+        return length;
+    }
+
+    @Override
+    public void serializeInto(ByteBuffer bb) {
+        int start = bb.position();
+        MACAddress.writeTo(destinationMACAddress, bb);
+        MACAddress.writeTo(sourceMACAddress, bb);
         if (vlanID != VLAN_UNTAGGED) {
             bb.putShort((short) 0x8100);
             bb.putShort((short) ((priorityCode << 13) | (vlanID & 0x0fff)));
         }
         bb.putShort(etherType);
-        if (payloadData != null)
-            bb.put(payloadData);
+        if (payload != null) {
+            payload.setParent(this);
+            payload.serializeInto(bb);
+        }
         if (pad) {
-            Arrays.fill(data, bb.position(), data.length, (byte)0x0);
+            while (bb.position() - start < 60)
+                bb.put((byte) 0x0);
         }
-        return data;
     }
 
     @Override
@@ -230,17 +304,10 @@ public class Ethernet extends BasePacket {
         if (length <= 0)
             return null;
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
-        if (this.destinationMACAddress == null)
-            this.destinationMACAddress = MACAddress.valueOf(new byte[6]);
-        byte[] dstAddr = new byte[MACAddress.MAC_ADDRESS_LENGTH];
-        bb.get(dstAddr);
-        this.destinationMACAddress = MACAddress.valueOf(dstAddr);
-
-        if (this.sourceMACAddress == null)
-            this.sourceMACAddress = MACAddress.valueOf(new byte[6]);
-        byte[] srcAddr = new byte[MACAddress.MAC_ADDRESS_LENGTH];
-        bb.get(srcAddr);
-        this.sourceMACAddress = MACAddress.valueOf(srcAddr);
+        this.destinationMACAddress = ((bb.getShort() & 0xffffL) << 32)
+                | (bb.getInt() & 0xffffffffL);
+        this.sourceMACAddress = ((bb.getShort() & 0xffffL) << 32)
+                | (bb.getInt() & 0xffffffffL);
 
         short etherType = bb.getShort();
         if (etherType == (short) 0x8100) {
@@ -254,7 +321,11 @@ public class Ethernet extends BasePacket {
         this.etherType = etherType;
         
         IPacket payload;
-        if (Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
+        Supplier<? extends IPacket> factory =
+                etherTypeFactories[this.etherType & 0xffff];
+        if (factory != null) {
+            payload = factory.get();
+        } else if (Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
             Class<? extends IPacket> clazz = Ethernet.etherTypeClassMap.get(this.etherType);
             try {
                 payload = clazz.newInstance();
@@ -305,7 +376,7 @@ public class Ethernet extends BasePacket {
      * @return a long containing the mac address bytes
      */
     public static long toLong(byte[] macAddress) {
-        return MACAddress.valueOf(macAddress).toLong();
+        return MACAddress.toLong(macAddress, 0);
     }
 
     /**
@@ -314,7 +385,9 @@ public class Ethernet extends BasePacket {
      * @return the bytes of the mac address
      */
     public static byte[] toByteArray(long macAddress) {
-        return MACAddress.valueOf(macAddress).toBytes();
+        byte[] bytes = new byte[MACAddress.MAC_ADDRESS_LENGTH];
+        MACAddress.toBytes(macAddress, bytes, 0);
+        return bytes;
     }
     
     /* (non-Javadoc)
@@ -324,12 +397,14 @@ public class Ethernet extends BasePacket {
     public int hashCode() {
         final int prime = 7867;
         int result = super.hashCode();
-        result = prime * result + destinationMACAddress.hashCode();
+        result = prime * result
+                + (int) (destinationMACAddress ^ (destinationMACAddress >>> 32));
         result = prime * result + etherType;
         result = prime * result + vlanID;
         result = prime * result + priorityCode;
         result = prime * result + (pad ? 1231 : 1237);
-        result = prime * result + sourceMACAddress.hashCode();
+        result = prime * result
+                + (int) (sourceMACAddress ^ (sourceMACAddress >>> 32));
         return result;
     }
 
@@ -345,7 +420,7 @@ public class Ethernet extends BasePacket {
         if (!(obj instanceof Ethernet))
             return false;
         Ethernet other = (Ethernet) obj;
-        if (!destinationMACAddress.equals(other.destinationMACAddress))
+        if (destinationMACAddress != other.destinationMACAddress)
             return false;
         if (priorityCode != other.priorityCode)
             return false;
@@ -355,7 +430,7 @@ public class Ethernet extends BasePacket {
             return false;
         if (pad != other.pad)
             return false;
-        if (!sourceMACAddress.equals(other.sourceMACAddress))
+        if (sourceMACAddress != other.sourceMACAddress)
             return false;
         return true;
     }
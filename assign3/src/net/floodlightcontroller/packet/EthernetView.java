@@ -0,0 +1,280 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A view of an Ethernet frame in place in a buffer. Unlike {@link Ethernet},
+ * nothing is decoded up front: each getter reads its field from the buffer
+ * when called, and each setter writes its field straight into the buffer.
+ * The payload is only looked at if {@link #getIPv4()} is called.
+ * <p>
+ * A view allocates nothing once created, and can be pointed at another
+ * frame with {@link #wrap(ByteBuffer, int, int)} or
+ * {@link #wrap(byte[], int, int)}, so one view can be reused
+ * for every frame a thread handles. Views are not thread safe. Use
+ * {@link #toPacket()} to decode the frame when the full packet classes are
+ * needed.
+ */
+public class EthernetView {
+    /** Length of an untagged Ethernet header */
+    public static final int HEADER_LENGTH = 14;
+
+    /** Length of an 802.1Q tag */
+    private static final int TAG_LENGTH = 4;
+
+    private static final short TYPE_VLAN = (short) 0x8100;
+
+    protected ByteBuffer bb;
+    protected int offset;
+    protected int length;
+
+    /** View of the IPv4 payload; created on first use, then re-wrapped */
+    private IPv4View ipv4;
+
+    /**
+     * Create a view that must be wrapped around a frame before use.
+     */
+    public EthernetView() {
+    }
+
+    /**
+     * @param bb the buffer containing the frame
+     * @param offset offset of the frame in the buffer
+     * @param length length of the frame
+     */
+    public EthernetView(ByteBuffer bb, int offset, int length) {
+        this.wrap(bb, offset, length);
+    }
+
+    /**
+     * Point this view at a frame.
+     * @param bb the buffer containing the frame
+     * @param offset offset of the frame in the buffer
+     * @param length length of the frame
+     * @return this view, or null if the frame is too short for a header
+     */
+    public EthernetView wrap(ByteBuffer bb, int offset, int length) {
+        this.bb = bb;
+        this.offset = offset;
+        this.length = length;
+        if (length < HEADER_LENGTH || (this.isTagged()
+                && length < HEADER_LENGTH + TAG_LENGTH))
+            return null;
+        return this;
+    }
+
+    /**
+     * Point this view at a frame in an array. The buffer already wrapped
+     * around the array is reused if there is one, so a thread that receives
+     * every frame into the same array allocates nothing.
+     * @param frame the array containing the frame
+     * @param offset offset of the frame in the array
+     * @param length length of the frame
+     * @return this view, or null if the frame is too short for a header
+     */
+    public EthernetView wrap(byte[] frame, int offset, int length) {
+        ByteBuffer bb = this.bb;
+        if (bb == null || !bb.hasArray() || bb.array() != frame
+                || bb.arrayOffset() != 0)
+            bb = ByteBuffer.wrap(frame);
+        return this.wrap(bb, offset, length);
+    }
+
+    /**
+     * @return the buffer containing the frame
+     */
+    public ByteBuffer getBuffer() {
+        return bb;
+    }
+
+    /**
+     * @return offset of the frame in the buffer
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return length of the frame
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the destination MAC
+     */
+    public MACAddress getDestinationMAC() {
+        return MACAddress.valueOf(this.getDestinationMACLong());
+    }
+
+    /**
+     * @return the destination MAC, in the low 48 bits
+     */
+    public long getDestinationMACLong() {
+        return this.getAddress(0);
+    }
+
+    /**
+     * @param destinationMACAddress the destination MAC to write
+     */
+    public EthernetView setDestinationMACAddress(byte[] destinationMACAddress) {
+        return this.setDestinationMAC(
+                MACAddress.toLong(destinationMACAddress, 0));
+    }
+
+    /**
+     * @param destinationMACAddress the destination MAC to write, in the low
+     *        48 bits
+     */
+    public EthernetView setDestinationMAC(long destinationMACAddress) {
+        this.putAddress(0, destinationMACAddress);
+        return this;
+    }
+
+    /**
+     * @return the source MAC
+     */
+    public MACAddress getSourceMAC() {
+        return MACAddress.valueOf(this.getSourceMACLong());
+    }
+
+    /**
+     * @return the source MAC, in the low 48 bits
+     */
+    public long getSourceMACLong() {
+        return this.getAddress(Ethernet.DATALAYER_ADDRESS_LENGTH);
+    }
+
+    /**
+     * @param sourceMACAddress the source MAC to write
+     */
+    public EthernetView setSourceMACAddress(byte[] sourceMACAddress) {
+        return this.setSourceMAC(MACAddress.toLong(sourceMACAddress, 0));
+    }
+
+    /**
+     * @param sourceMACAddress the source MAC to write, in the low 48 bits
+     */
+    public EthernetView setSourceMAC(long sourceMACAddress) {
+        this.putAddress(Ethernet.DATALAYER_ADDRESS_LENGTH, sourceMACAddress);
+        return this;
+    }
+
+    private long getAddress(int at) {
+        return ((bb.getShort(offset + at) & 0xffffL) << 32)
+                | (bb.getInt(offset + at + 2) & 0xffffffffL);
+    }
+
+    private void putAddress(int at, long address) {
+        bb.putShort(offset + at, (short) (address >>> 32));
+        bb.putInt(offset + at + 2, (int) address);
+    }
+
+    /**
+     * @return True if the frame is broadcast, false otherwise
+     */
+    public boolean isBroadcast() {
+        return bb.getInt(offset) == -1 && bb.getShort(offset + 4) == -1;
+    }
+
+    /**
+     * @return True if the frame is multicast, false otherwise
+     */
+    public boolean isMulticast() {
+        return !this.isBroadcast() && (bb.get(offset) & 0x01) != 0;
+    }
+
+    /**
+     * @return True if the frame carries an 802.1Q tag
+     */
+    public boolean isTagged() {
+        return bb.getShort(offset + 12) == TYPE_VLAN;
+    }
+
+    /**
+     * @return the vlanID, or VLAN_UNTAGGED
+     */
+    public short getVlanID() {
+        if (!this.isTagged())
+            return Ethernet.VLAN_UNTAGGED;
+        return (short) (bb.getShort(offset + 14) & 0x0fff);
+    }
+
+    /**
+     * @return the etherType of the payload, after any 802.1Q tag
+     */
+    public short getEtherType() {
+        return bb.getShort(offset + this.getHeaderLength() - 2);
+    }
+
+    /**
+     * @param etherType the etherType of the payload to write
+     */
+    public EthernetView setEtherType(short etherType) {
+        bb.putShort(offset + this.getHeaderLength() - 2, etherType);
+        return this;
+    }
+
+    /**
+     * @return length of the header, including any 802.1Q tag
+     */
+    public int getHeaderLength() {
+        return this.isTagged() ? HEADER_LENGTH + TAG_LENGTH : HEADER_LENGTH;
+    }
+
+    /**
+     * @return offset of the payload in the buffer
+     */
+    public int getPayloadOffset() {
+        return offset + this.getHeaderLength();
+    }
+
+    /**
+     * @return length of the payload
+     */
+    public int getPayloadLength() {
+        return length - this.getHeaderLength();
+    }
+
+    /**
+     * The returned view is reused by later calls, and by calls after the
+     * frame view is re-wrapped.
+     * @return view of the IPv4 payload, or null if the frame does not carry
+     *         IPv4 or the IPv4 header is incomplete
+     */
+    public IPv4View getIPv4() {
+        if (this.getEtherType() != Ethernet.TYPE_IPv4)
+            return null;
+        if (ipv4 == null)
+            ipv4 = new IPv4View();
+        return ipv4.wrap(bb, this.getPayloadOffset(),
+                this.getPayloadLength());
+    }
+
+    /**
+     * Decode the frame into the packet classes; later changes to either
+     * the frame or the packet are not reflected in the other.
+     * @return the decoded frame
+     */
+    public Ethernet toPacket() {
+        Ethernet packet = new Ethernet();
+        decode(packet, bb, offset, length);
+        return packet;
+    }
+
+    /**
+     * Decode part of a buffer, copying it only if it is not backed by an
+     * accessible array.
+     */
+    static IPacket decode(IPacket packet, ByteBuffer bb, int offset,
+            int length) {
+        if (bb.hasArray())
+            return packet.deserialize(bb.array(), bb.arrayOffset() + offset,
+                    length);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = bb.get(offset + i);
+        return packet.deserialize(data, 0, length);
+    }
+}
@@ -17,6 +17,8 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
+
 /**
 *
 * @author David Erickson (daviderickson@cs.stanford.edu)
@@ -60,6 +62,22 @@ public interface IPacket {
      */
     public byte[] serialize();
 
+    /**
+     * @return the number of bytes serialize() or serializeInto() would
+     *         produce for this packet and all payloads
+     */
+    public int getSerializedLength();
+
+    /**
+     * Sets all payloads parent packet if applicable, then serializes this
+     * packet and all payloads into a buffer, starting at its position and
+     * leaving its position after the last byte written. The buffer may be
+     * direct.
+     * @param bb the buffer, with at least getSerializedLength() bytes
+     *        remaining
+     */
+    public void serializeInto(ByteBuffer bb);
+
     /**
      * Deserializes this packet layer and all possible payloads
      * @param data
@@ -25,6 +25,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  * @author David Erickson (daviderickson@cs.stanford.edu)
@@ -34,13 +35,47 @@ public class IPv4 extends BasePacket {
     public static final byte PROTOCOL_ICMP = 0x1;
     public static final byte PROTOCOL_TCP = 0x6;
     public static final byte PROTOCOL_UDP = 0x11;
+
+    /**
+     * Payload classes by protocol. Classes put here directly are still
+     * decoded, but reflectively; prefer {@link #registerProtocol}.
+     */
     public static Map<Byte, Class<? extends IPacket>> protocolClassMap;
 
+    /** Payload factories, indexed by protocol */
+    @SuppressWarnings("unchecked")
+    private static final Supplier<? extends IPacket>[] protocolFactories =
+            (Supplier<? extends IPacket>[]) new Supplier<?>[1 << 8];
+
     static {
         protocolClassMap = new HashMap<Byte, Class<? extends IPacket>>();
-        protocolClassMap.put(PROTOCOL_ICMP, ICMP.class);
-        protocolClassMap.put(PROTOCOL_TCP, TCP.class);
-        protocolClassMap.put(PROTOCOL_UDP, UDP.class);
+        registerProtocol(PROTOCOL_ICMP, ICMP.class, new Supplier<ICMP>() {
+            public ICMP get() {
+                return new ICMP();
+            }
+        });
+        registerProtocol(PROTOCOL_TCP, TCP.class, new Supplier<TCP>() {
+            public TCP get() {
+                return new TCP();
+            }
+        });
+        registerProtocol(PROTOCOL_UDP, UDP.class, new Supplier<UDP>() {
+            public UDP get() {
+                return new UDP();
+            }
+        });
+    }
+
+    /**
+     * Decode the payload of packets with a protocol as a given class.
+     * @param protocol the protocol
+     * @param clazz the payload class
+     * @param factory creates an empty instance of the payload class
+     */
+    public static <T extends IPacket> void registerProtocol(byte protocol,
+            Class<T> clazz, Supplier<T> factory) {
+        protocolClassMap.put(protocol, clazz);
+        protocolFactories[protocol & 0xff] = factory;
     }
 
     protected byte version;
@@ -215,6 +250,68 @@ public class IPv4 extends BasePacket {
         super.resetChecksum();
     }
 
+    /**
+     * Verifies the header checksum against the header fields only, without
+     * serializing the packet or its payload.
+     * @return true if the checksum matches the header, false otherwise
+     */
+    public boolean isChecksumValid() {
+        long sum = Checksum.addShort(0, (short) ((((this.version & 0xf) << 4)
+                | (this.headerLength & 0xf)) << 8 | (this.diffServ & 0xff)));
+        sum = Checksum.addShort(sum, this.totalLength);
+        sum = Checksum.addShort(sum, this.identification);
+        sum = Checksum.addShort(sum, (short) (((this.flags & 0x7) << 13)
+                | (this.fragmentOffset & 0x1fff)));
+        sum = Checksum.addShort(sum,
+                (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff)));
+        sum = Checksum.addShort(sum, this.checksum);
+        sum = Checksum.addInt(sum, this.sourceAddress);
+        sum = Checksum.addInt(sum, this.destinationAddress);
+        if (this.options != null)
+            sum = Checksum.add(sum, this.options, 0, this.options.length & ~1);
+        return Checksum.isValid(sum);
+    }
+
+    /**
+     * Verifies the checksum of a serialized IPv4 header in place.
+     * @param data buffer containing the header
+     * @param offset offset of the header in the buffer
+     * @param headerLength length of the header in bytes
+     * @return true if the checksum matches the header, false otherwise
+     */
+    public static boolean isChecksumValid(byte[] data, int offset,
+            int headerLength) {
+        return Checksum.isValid(Checksum.add(0, data, offset,
+                headerLength & ~1));
+    }
+
+    /**
+     * Decrements the TTL and patches the checksum for the change, as in
+     * RFC 1624, so the header does not need to be summed again.
+     * @return this packet
+     */
+    public IPv4 decrementTtl() {
+        short oldWord = (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff));
+        this.ttl--;
+        short newWord = (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff));
+        this.checksum = updateChecksum(this.checksum, oldWord, newWord);
+        return this;
+    }
+
+    /**
+     * Computes the checksum that results from changing one 16-bit word
+     * covered by an existing one's complement checksum; see
+     * {@link Checksum#update(short, short, short)}.
+     * @param checksum the existing checksum
+     * @param oldWord the old value of the changed word
+     * @param newWord the new value of the changed word
+     * @return the updated checksum
+     */
+    public static short updateChecksum(short checksum, short oldWord,
+            short newWord) {
+        return Checksum.update(checksum, oldWord, newWord);
+    }
+
     /**
      * @return the sourceAddress
      */
@@ -279,6 +376,15 @@ public class IPv4 extends BasePacket {
         return this;
     }
 
+    @Override
+    public int getSerializedLength() {
+        int optionsLength = 0;
+        if (this.options != null)
+            optionsLength = this.options.length / 4;
+        return (5 + optionsLength) * 4
+                + ((payload == null) ? 0 : payload.getSerializedLength());
+    }
+
     /**
      * Serializes the packet. Will compute and set the following fields if they
      * are set to specific values at the time serialize is called:
@@ -286,24 +392,32 @@ public class IPv4 extends BasePacket {
      *      -headerLength : 0
      *      -totalLength : 0
      */
-    public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
-
+    @Override
+    public void serializeInto(ByteBuffer bb) {
         int optionsLength = 0;
         if (this.options != null)
             optionsLength = this.options.length / 4;
-        this.headerLength = (byte) (5 + optionsLength);
-
-        this.totalLength = (short) (this.headerLength * 4 + ((payloadData == null) ? 0
-                : payloadData.length));
-
-        byte[] data = new byte[this.totalLength];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+        byte headerLength = (byte) (5 + optionsLength);
+        short totalLength = (short) this.getSerializedLength();
+
+        // a checksum kept up to date incrementally no longer matches once
+        // either length changes
+        if (headerLength != this.headerLength
+                || totalLength != this.totalLength)
+            this.checksum = 0;
+        this.headerLength = headerLength;
+        this.totalLength = totalLength;
+
+        // the payload goes first, since it may set the protocol
+        int start = bb.position();
+        bb.position(start + this.headerLength * 4);
+        if (payload != null) {
+            payload.setParent(this);
+            payload.serializeInto(bb);
+        }
+        int end = bb.position();
 
+        bb.position(start);
         bb.put((byte) (((this.version & 0xf) << 4) | (this.headerLength & 0xf)));
         bb.put(this.diffServ);
         bb.putShort(this.totalLength);
@@ -316,22 +430,13 @@ public class IPv4 extends BasePacket {
         bb.putInt(this.destinationAddress);
         if (this.options != null)
             bb.put(this.options);
-        if (payloadData != null)
-            bb.put(payloadData);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
-            int accumulation = 0;
-            for (int i = 0; i < this.headerLength * 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
-            }
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
-            this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(10, this.checksum);
+            this.checksum = Checksum.compute(bb, start, this.headerLength * 4);
+            bb.putShort(start + 10, this.checksum);
         }
-        return data;
+        bb.position(end);
     }
 
     @Override
@@ -361,7 +466,11 @@ public class IPv4 extends BasePacket {
         }
 
         IPacket payload;
-        if (IPv4.protocolClassMap.containsKey(this.protocol)) {
+        Supplier<? extends IPacket> factory =
+                protocolFactories[this.protocol & 0xff];
+        if (factory != null) {
+            payload = factory.get();
+        } else if (IPv4.protocolClassMap.containsKey(this.protocol)) {
             Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
             try {
                 payload = clazz.newInstance();
@@ -371,7 +480,13 @@ public class IPv4 extends BasePacket {
         } else {
             payload = new Data();
         }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
+        // frames may be padded past the end of the packet
+        int payloadLength = bb.limit() - bb.position();
+        int packetPayloadLength = (this.totalLength & 0xffff)
+                - this.headerLength * 4;
+        if (packetPayloadLength >= 0 && packetPayloadLength < payloadLength)
+            payloadLength = packetPayloadLength;
+        this.payload = payload.deserialize(data, bb.position(), payloadLength);
         this.payload.setParent(this);
 
         if (this.totalLength != length)
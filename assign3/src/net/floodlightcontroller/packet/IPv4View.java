@@ -0,0 +1,251 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A view of an IPv4 packet in place in a buffer; see {@link EthernetView}.
+ * Setters patch the header checksum for the fields they change, as in
+ * RFC 1624, so the header stays valid without being summed again.
+ */
+public class IPv4View {
+    /** Length of a header without options */
+    public static final int MIN_HEADER_LENGTH = 20;
+
+    protected ByteBuffer bb;
+    protected int offset;
+    protected int length;
+
+    /** View of the UDP payload; created on first use, then re-wrapped */
+    private UdpView udp;
+
+    /**
+     * Create a view that must be wrapped around a packet before use.
+     */
+    public IPv4View() {
+    }
+
+    /**
+     * @param bb the buffer containing the packet
+     * @param offset offset of the packet in the buffer
+     * @param length length of the packet, up to the end of the frame
+     */
+    public IPv4View(ByteBuffer bb, int offset, int length) {
+        this.wrap(bb, offset, length);
+    }
+
+    /**
+     * Point this view at a packet.
+     * @param bb the buffer containing the packet
+     * @param offset offset of the packet in the buffer
+     * @param length length of the packet, up to the end of the frame
+     * @return this view, or null if the packet is not IPv4 or its header
+     *         is incomplete
+     */
+    public IPv4View wrap(ByteBuffer bb, int offset, int length) {
+        this.bb = bb;
+        this.offset = offset;
+        this.length = length;
+        if (length < MIN_HEADER_LENGTH || this.getVersion() != 4)
+            return null;
+        int headerLength = this.getHeaderLength();
+        if (headerLength < MIN_HEADER_LENGTH || headerLength > length)
+            return null;
+        return this;
+    }
+
+    /**
+     * @return offset of the packet in the buffer
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the version
+     */
+    public byte getVersion() {
+        return (byte) ((bb.get(offset) >> 4) & 0xf);
+    }
+
+    /**
+     * @return length of the header in bytes, including options
+     */
+    public int getHeaderLength() {
+        return (bb.get(offset) & 0xf) * 4;
+    }
+
+    /**
+     * @return the diffServ
+     */
+    public byte getDiffServ() {
+        return bb.get(offset + 1);
+    }
+
+    /**
+     * @return the totalLength
+     */
+    public short getTotalLength() {
+        return bb.getShort(offset + 2);
+    }
+
+    /**
+     * @return the identification
+     */
+    public short getIdentification() {
+        return bb.getShort(offset + 4);
+    }
+
+    /**
+     * @return the flags
+     */
+    public byte getFlags() {
+        return (byte) ((bb.get(offset + 6) >> 5) & 0x7);
+    }
+
+    /**
+     * @return the fragmentOffset
+     */
+    public short getFragmentOffset() {
+        return (short) (bb.getShort(offset + 6) & 0x1fff);
+    }
+
+    /**
+     * @return True if the packet is a fragment of a larger packet
+     */
+    public boolean isFragment() {
+        return (bb.getShort(offset + 6) & 0x3fff) != 0;
+    }
+
+    /**
+     * @return the ttl
+     */
+    public byte getTtl() {
+        return bb.get(offset + 8);
+    }
+
+    /**
+     * @param ttl the ttl to write
+     */
+    public IPv4View setTtl(byte ttl) {
+        short oldWord = bb.getShort(offset + 8);
+        bb.put(offset + 8, ttl);
+        this.patchChecksum(oldWord, bb.getShort(offset + 8));
+        return this;
+    }
+
+    /**
+     * Decrements the TTL, patching the checksum.
+     * @return this view
+     */
+    public IPv4View decrementTtl() {
+        return this.setTtl((byte) (this.getTtl() - 1));
+    }
+
+    /**
+     * @return the protocol
+     */
+    public byte getProtocol() {
+        return bb.get(offset + 9);
+    }
+
+    /**
+     * @return the checksum
+     */
+    public short getChecksum() {
+        return bb.getShort(offset + 10);
+    }
+
+    /**
+     * @return the sourceAddress
+     */
+    public int getSourceAddress() {
+        return bb.getInt(offset + 12);
+    }
+
+    /**
+     * @param sourceAddress the sourceAddress to write
+     */
+    public IPv4View setSourceAddress(int sourceAddress) {
+        this.putAddress(offset + 12, sourceAddress);
+        return this;
+    }
+
+    /**
+     * @return the destinationAddress
+     */
+    public int getDestinationAddress() {
+        return bb.getInt(offset + 16);
+    }
+
+    /**
+     * @param destinationAddress the destinationAddress to write
+     */
+    public IPv4View setDestinationAddress(int destinationAddress) {
+        this.putAddress(offset + 16, destinationAddress);
+        return this;
+    }
+
+    private void putAddress(int at, int address) {
+        short oldHigh = bb.getShort(at);
+        short oldLow = bb.getShort(at + 2);
+        bb.putInt(at, address);
+        this.patchChecksum(oldHigh, (short) (address >>> 16));
+        this.patchChecksum(oldLow, (short) address);
+    }
+
+    private void patchChecksum(short oldWord, short newWord) {
+        bb.putShort(offset + 10, Checksum.update(
+                bb.getShort(offset + 10), oldWord, newWord));
+    }
+
+    /**
+     * Verifies the header checksum in place.
+     * @return true if the checksum matches the header, false otherwise
+     */
+    public boolean isChecksumValid() {
+        return Checksum.isValid(Checksum.add(0, bb, offset,
+                this.getHeaderLength()));
+    }
+
+    /**
+     * @return offset of the payload in the buffer
+     */
+    public int getPayloadOffset() {
+        return offset + this.getHeaderLength();
+    }
+
+    /**
+     * @return length of the payload, as given by the header but no longer
+     *         than the rest of the frame
+     */
+    public int getPayloadLength() {
+        int totalLength = this.getTotalLength() & 0xffff;
+        return Math.min(totalLength, length) - this.getHeaderLength();
+    }
+
+    /**
+     * The returned view is reused by later calls; see
+     * {@link EthernetView#getIPv4()}.
+     * @return view of the UDP payload, or null if the packet does not carry
+     *         UDP, is a fragment, or the UDP header is incomplete
+     */
+    public UdpView getUdp() {
+        if (this.getProtocol() != IPv4.PROTOCOL_UDP || this.isFragment())
+            return null;
+        if (udp == null)
+            udp = new UdpView();
+        return udp.wrap(bb, this.getPayloadOffset(),
+                this.getPayloadLength());
+    }
+
+    /**
+     * Decode the packet into the packet classes; see
+     * {@link EthernetView#toPacket()}.
+     * @return the decoded packet
+     */
+    public IPv4 toPacket() {
+        IPv4 packet = new IPv4();
+        EthernetView.decode(packet, bb, offset, length);
+        return packet;
+    }
+}
@@ -1,18 +1,37 @@
 package net.floodlightcontroller.packet;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
- * The class representing MAC address.
+ * The class representing MAC address. Instances are immutable, and hold
+ * the address as a 48-bit value in the low bits of a {@code long}.
  *
  * @author Sho Shimizu (sho.shimizu@gmail.com)
  */
 public class MACAddress {
     public static final int MAC_ADDRESS_LENGTH = 6;
-    private byte[] address = new byte[MAC_ADDRESS_LENGTH];
 
+    /** Mask selecting the 48 bits of a MAC address from a {@code long} */
+    public static final long MAC_ADDRESS_MASK = 0xffffffffffffL;
+
+    private final long address;
+
+    /**
+     * @param address the address; only the first 6 bytes are used, and
+     *        missing bytes are taken to be zero
+     */
     public MACAddress(byte[] address) {
-        this.address = Arrays.copyOf(address, MAC_ADDRESS_LENGTH);
+        long value = 0;
+        for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
+            value <<= 8;
+            if (i < address.length)
+                value |= address[i] & 0xffL;
+        }
+        this.address = value;
+    }
+
+    private MACAddress(long address) {
+        this.address = address & MAC_ADDRESS_MASK;
     }
 
     /**
@@ -29,13 +48,13 @@ public class MACAddress {
                     " separated pairwise by :'s.");
         }
 
-        byte[] addressInBytes = new byte[MAC_ADDRESS_LENGTH];
+        long value = 0;
         for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
             String element = elements[i];
-            addressInBytes[i] = (byte)Integer.parseInt(element, 16);
+            value = (value << 8) | (Integer.parseInt(element, 16) & 0xff);
         }
 
-        return new MACAddress(addressInBytes);
+        return new MACAddress(value);
     }
 
     /**
@@ -60,16 +79,34 @@ public class MACAddress {
      * @throws IllegalArgumentException if the long value cannot be parsed as a MAC address.
      */
     public static MACAddress valueOf(long address) {
-        byte[] addressInBytes = new byte[] {
-                (byte)((address >> 40) & 0xff),
-                (byte)((address >> 32) & 0xff),
-                (byte)((address >> 24) & 0xff),
-                (byte)((address >> 16) & 0xff),
-                (byte)((address >> 8 ) & 0xff),
-                (byte)((address >> 0) & 0xff)
-        };
+        return new MACAddress(address);
+    }
 
-        return new MACAddress(addressInBytes);
+    /**
+     * Returns the {@code long} value of a MAC address in a byte array,
+     * without creating an instance.
+     * @param address the array holding the address.
+     * @param offset the offset of the address in the array.
+     * @return the address in the lower 48 bits of a {@code long}.
+     */
+    public static long toLong(byte[] address, int offset) {
+        long value = 0;
+        for (int i = 0; i < MAC_ADDRESS_LENGTH; i++)
+            value = (value << 8) | (address[offset + i] & 0xffL);
+        return value;
+    }
+
+    /**
+     * Writes a MAC address held in a {@code long} into a byte array.
+     * @param address the address, in the lower 48 bits.
+     * @param data the array to write to.
+     * @param offset the offset in the array at which to write.
+     */
+    public static void toBytes(long address, byte[] data, int offset) {
+        for (int i = MAC_ADDRESS_LENGTH - 1; i >= 0; i--) {
+            data[offset + i] = (byte) address;
+            address >>>= 8;
+        }
     }
 
     /**
@@ -77,7 +114,7 @@ public class MACAddress {
      * @return the length of the {@code MACAddress}.
      */
     public int length() {
-        return address.length;
+        return MAC_ADDRESS_LENGTH;
     }
 
     /**
@@ -85,7 +122,9 @@ public class MACAddress {
      * @return the numeric value represented by this object after conversion to type {@code byte} array.
      */
     public byte[] toBytes() {
-        return Arrays.copyOf(address, address.length);
+        byte[] bytes = new byte[MAC_ADDRESS_LENGTH];
+        toBytes(address, bytes, 0);
+        return bytes;
     }
 
     /**
@@ -93,12 +132,27 @@ public class MACAddress {
      * @return the numeric value represented by this object after conversion to type {@code long}.
      */
     public long toLong() {
-        long mac = 0;
-        for (int i = 0; i < 6; i++) {
-            long t = (address[i] & 0xffL) << ((5 - i) * 8);
-            mac |= t;
-        }
-        return mac;
+        return address;
+    }
+
+    /**
+     * Writes the address into a buffer at its position, advancing the
+     * position past the address.
+     * @param bb the buffer, which may be direct.
+     */
+    public void writeTo(ByteBuffer bb) {
+        writeTo(address, bb);
+    }
+
+    /**
+     * Writes a MAC address held in a {@code long} into a buffer at its
+     * position, advancing the position past the address.
+     * @param address the address, in the lower 48 bits.
+     * @param bb the buffer, which may be direct.
+     */
+    public static void writeTo(long address, ByteBuffer bb) {
+        bb.putShort((short) (address >>> 32));
+        bb.putInt((int) address);
     }
 
     /**
@@ -106,11 +160,17 @@ public class MACAddress {
      * @return {@code true} if the MAC address is the broadcast address.
      */
     public boolean isBroadcast() {
-        for (byte b : address) {
-            if (b != -1) // checks if equal to 0xff
-                return false;
-        }
-        return true;
+        return isBroadcast(address);
+    }
+
+    /**
+     * Returns {@code true} if a MAC address held in a {@code long} is the
+     * broadcast address.
+     * @param address the address, in the lower 48 bits.
+     * @return {@code true} if the MAC address is the broadcast address.
+     */
+    public static boolean isBroadcast(long address) {
+        return address == MAC_ADDRESS_MASK;
     }
 
     /**
@@ -118,10 +178,20 @@ public class MACAddress {
      * @return {@code true} if the MAC address is the multicast address.
      */
     public boolean isMulticast() {
-        if (isBroadcast()) {
+        return isMulticast(address);
+    }
+
+    /**
+     * Returns {@code true} if a MAC address held in a {@code long} is a
+     * multicast address other than the broadcast address.
+     * @param address the address, in the lower 48 bits.
+     * @return {@code true} if the MAC address is the multicast address.
+     */
+    public static boolean isMulticast(long address) {
+        if (isBroadcast(address)) {
             return false;
         }
-        return (address[0] & 0x01) != 0;
+        return (address & (1L << 40)) != 0;
     }
 
     @Override
@@ -135,22 +205,22 @@ public class MACAddress {
         }
 
         MACAddress other = (MACAddress)o;
-        return Arrays.equals(this.address, other.address);
+        return this.address == other.address;
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(this.address);
+        return (int) (address ^ (address >>> 32));
     }
 
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
-        for (byte b: address) {
+        for (int shift = 40; shift >= 0; shift -= 8) {
             if (builder.length() > 0) {
                 builder.append(":");
             }
-            builder.append(String.format("%02X", b & 0xFF));
+            builder.append(String.format("%02X", (address >>> shift) & 0xFF));
         }
         return builder.toString();
     }
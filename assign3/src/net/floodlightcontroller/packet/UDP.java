@@ -20,20 +20,47 @@ package net.floodlightcontroller.packet;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  *
  * @author David Erickson (daviderickson@cs.stanford.edu)
  */
 public class UDP extends BasePacket {
+    /**
+     * Payload classes by port. Classes put here directly are still
+     * decoded, but reflectively; prefer {@link #registerPort}.
+     */
     public static Map<Short, Class<? extends IPacket>> decodeMap;
     public static short DHCP_SERVER_PORT = (short)67;
     public static short DHCP_CLIENT_PORT = (short)68;
     public static short RIP_PORT = (short)520;
 
+    /** Payload factories, indexed by port */
+    @SuppressWarnings("unchecked")
+    private static final Supplier<? extends IPacket>[] portFactories =
+            (Supplier<? extends IPacket>[]) new Supplier<?>[1 << 16];
+
     static {
         decodeMap = new HashMap<Short, Class<? extends IPacket>>();
-        UDP.decodeMap.put(RIP_PORT, RIPv2.class);
+        registerPort(RIP_PORT, RIPv2.class, new Supplier<RIPv2>() {
+            public RIPv2 get() {
+                return new RIPv2();
+            }
+        });
+    }
+
+    /**
+     * Decode the payload of datagrams to or from a port as a given class;
+     * the destination port is looked up first.
+     * @param port the port
+     * @param clazz the payload class
+     * @param factory creates an empty instance of the payload class
+     */
+    public static <T extends IPacket> void registerPort(short port,
+            Class<T> clazz, Supplier<T> factory) {
+        decodeMap.put(port, clazz);
+        portFactories[port & 0xffff] = factory;
     }
 
     protected short sourcePort;
@@ -99,65 +126,53 @@ public class UDP extends BasePacket {
         super.resetChecksum();
     }
 
+    @Override
+    public int getSerializedLength() {
+        return 8 + ((payload == null) ? 0 : payload.getSerializedLength());
+    }
+
     /**
      * Serializes the packet. Will compute and set the following fields if they
      * are set to specific values at the time serialize is called:
      *      -checksum : 0
      *      -length : 0
      */
-    public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
-
-        this.length = (short) (8 + ((payloadData == null) ? 0
-                : payloadData.length));
-
-        byte[] data = new byte[this.length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+    @Override
+    public void serializeInto(ByteBuffer bb) {
+        int start = bb.position();
+        this.length = (short) this.getSerializedLength();
 
         bb.putShort(this.sourcePort);
         bb.putShort(this.destinationPort);
         bb.putShort(this.length);
         bb.putShort(this.checksum);
-        if (payloadData != null)
-            bb.put(payloadData);
+        if (payload != null) {
+            payload.setParent(this);
+            payload.serializeInto(bb);
+        }
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_UDP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
-            int accumulation = 0;
+            long sum = 0;
 
             // compute pseudo header mac
             if (this.parent != null && this.parent instanceof IPv4) {
                 IPv4 ipv4 = (IPv4) this.parent;
-                accumulation += ((ipv4.getSourceAddress() >> 16) & 0xffff)
-                        + (ipv4.getSourceAddress() & 0xffff);
-                accumulation += ((ipv4.getDestinationAddress() >> 16) & 0xffff)
-                        + (ipv4.getDestinationAddress() & 0xffff);
-                accumulation += ipv4.getProtocol() & 0xff;
-                accumulation += this.length & 0xffff;
-            }
-
-            for (int i = 0; i < this.length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
-            }
-            // pad to an even number of shorts
-            if (this.length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
+                sum = Checksum.pseudoHeader(ipv4.getSourceAddress(),
+                        ipv4.getDestinationAddress(), ipv4.getProtocol(),
+                        this.length);
             }
 
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
-            this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(6, this.checksum);
+            sum = Checksum.add(sum, bb, start, this.length & 0xffff);
+            this.checksum = Checksum.finish(sum);
+            // a computed checksum of zero is sent as all ones
+            if (this.checksum == 0)
+                this.checksum = (short) 0xffff;
+            bb.putShort(start + 6, this.checksum);
         }
-        return data;
     }
 
     /* (non-Javadoc)
@@ -205,7 +220,13 @@ public class UDP extends BasePacket {
         this.length = bb.getShort();
         this.checksum = bb.getShort();
 
-        if (UDP.decodeMap.containsKey(this.destinationPort)) {
+        Supplier<? extends IPacket> factory =
+                portFactories[this.destinationPort & 0xffff];
+        if (factory == null)
+            factory = portFactories[this.sourcePort & 0xffff];
+        if (factory != null) {
+            this.payload = factory.get();
+        } else if (UDP.decodeMap.containsKey(this.destinationPort)) {
             try {
                 this.payload = UDP.decodeMap.get(this.destinationPort).getConstructor().newInstance();
             } catch (Exception e) {
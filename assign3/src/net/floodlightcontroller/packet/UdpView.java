@@ -0,0 +1,138 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A view of a UDP datagram in place in a buffer; see {@link EthernetView}.
+ * Setters patch the checksum for the fields they change, unless the
+ * datagram has no checksum.
+ */
+public class UdpView {
+    /** Length of the header */
+    public static final int HEADER_LENGTH = 8;
+
+    protected ByteBuffer bb;
+    protected int offset;
+    protected int length;
+
+    /**
+     * Create a view that must be wrapped around a datagram before use.
+     */
+    public UdpView() {
+    }
+
+    /**
+     * @param bb the buffer containing the datagram
+     * @param offset offset of the datagram in the buffer
+     * @param length length of the datagram
+     */
+    public UdpView(ByteBuffer bb, int offset, int length) {
+        this.wrap(bb, offset, length);
+    }
+
+    /**
+     * Point this view at a datagram.
+     * @param bb the buffer containing the datagram
+     * @param offset offset of the datagram in the buffer
+     * @param length length of the datagram
+     * @return this view, or null if the header is incomplete
+     */
+    public UdpView wrap(ByteBuffer bb, int offset, int length) {
+        this.bb = bb;
+        this.offset = offset;
+        this.length = length;
+        if (length < HEADER_LENGTH)
+            return null;
+        return this;
+    }
+
+    /**
+     * @return offset of the datagram in the buffer
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the sourcePort
+     */
+    public short getSourcePort() {
+        return bb.getShort(offset);
+    }
+
+    /**
+     * @param sourcePort the sourcePort to write
+     */
+    public UdpView setSourcePort(short sourcePort) {
+        this.putWord(offset, sourcePort);
+        return this;
+    }
+
+    /**
+     * @return the destinationPort
+     */
+    public short getDestinationPort() {
+        return bb.getShort(offset + 2);
+    }
+
+    /**
+     * @param destinationPort the destinationPort to write
+     */
+    public UdpView setDestinationPort(short destinationPort) {
+        this.putWord(offset + 2, destinationPort);
+        return this;
+    }
+
+    /**
+     * @return the length
+     */
+    public short getLength() {
+        return bb.getShort(offset + 4);
+    }
+
+    /**
+     * @return the checksum; 0 if the datagram has none
+     */
+    public short getChecksum() {
+        return bb.getShort(offset + 6);
+    }
+
+    private void putWord(int at, short word) {
+        short oldWord = bb.getShort(at);
+        bb.putShort(at, word);
+        short checksum = this.getChecksum();
+        if (checksum == 0)
+            return;
+        checksum = Checksum.update(checksum, oldWord, word);
+
+        // A computed checksum of zero is sent as all ones
+        bb.putShort(offset + 6, checksum == 0 ? (short) 0xffff : checksum);
+    }
+
+    /**
+     * @return offset of the payload in the buffer
+     */
+    public int getPayloadOffset() {
+        return offset + HEADER_LENGTH;
+    }
+
+    /**
+     * @return length of the payload, as given by the header but no longer
+     *         than the rest of the packet
+     */
+    public int getPayloadLength() {
+        int udpLength = Math.min(this.getLength() & 0xffff, length);
+        return Math.max(udpLength - HEADER_LENGTH, 0);
+    }
+
+    /**
+     * Decode the datagram into the packet classes; see
+     * {@link EthernetView#toPacket()}.
+     * @return the decoded datagram
+     */
+    public UDP toPacket() {
+        UDP packet = new UDP();
+        EthernetView.decode(packet, bb, offset, length);
+        return packet;
+    }
+}
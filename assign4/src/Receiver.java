@@ -13,6 +13,8 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Arrays;
 
+import net.floodlightcontroller.packet.Checksum;
+
 /**
  * Receiver Class
  * When receiving packets:
@@ -449,21 +451,8 @@ public class Receiver {
         System.out.println(output);
     }
 
-    // not sure if correct
+    /** One's complement checksum of the whole packet, with its checksum field zeroed */
     private short computeCheckSum(byte[] packet) {
-        ByteBuffer bb = ByteBuffer.wrap(packet);
-        bb.rewind();
-        int accumulation = 0;
-        for (int i = 0; i < packet.length/2; i++){
-            accumulation += 0xffff & bb.getShort();
-        }
-        // pad to an even number of shorts
-        if (packet.length % 2 > 0){
-            accumulation += (bb.get() & 0xff) << 8;
-        }
-        // add potential carry over
-        accumulation = ((accumulation >> 16) & 0xffff) + (accumulation & 0xffff);
-        short checksum = (short) (~accumulation & 0xffff);
-        return checksum;
+        return Checksum.compute(packet, 0, packet.length);
     }
 }
@@ -11,6 +11,8 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.lang.*;
 
+import net.floodlightcontroller.packet.Checksum;
+
 /*
     Sender class
 
@@ -476,23 +478,9 @@ public class Sender {
         System.out.println(output);
     }
 
-    // not sure if correct
+    /** One's complement checksum of the whole packet, with its checksum field zeroed */
     private short computeCheckSum(byte[] packet) {
-        //System.out.println("packet length: " + packet.length);
-	    ByteBuffer bb = ByteBuffer.wrap(packet);
-        bb.rewind();
-        int accumulation = 0;
-        for (int i = 0; i < packet.length/2; i++){
-            accumulation += 0xffff & bb.getShort();
-        }
-        // pad to an even number of shorts
-        if (packet.length % 2 > 0){
-            accumulation += (bb.get() & 0xff) << 8;
-        }
-        // add potential carry over
-        accumulation = ((accumulation >> 16) & 0xffff) + (accumulation & 0xffff);
-        short checksum = (short) (~accumulation & 0xffff);
-        return checksum;
+        return Checksum.compute(packet, 0, packet.length);
     }
 
     /** Return timeout in nanoseconds */